@@ -0,0 +1,73 @@
+package main.java.com.bag.util;
+
+import main.java.com.bag.util.storage.NodeStorage;
+import main.java.com.bag.util.storage.RelationshipStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the hash providers on nodes and relationships, run with "gradle jmh".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HashBenchmark
+{
+    @Param({HashProvider.SHA256, HashProvider.SHA1, HashProvider.MURMUR3})
+    private String algorithm;
+
+    /**
+     * Amount of properties of each element.
+     */
+    @Param({"4", "32"})
+    private int properties;
+
+    private HashProvider provider;
+    private NodeStorage node;
+    private RelationshipStorage relationship;
+
+    @Setup
+    public void setUp()
+    {
+        provider = HashProvider.forAlgorithm(algorithm);
+
+        final Map<String, Object> nodeProperties = new HashMap<>();
+        final Map<String, Object> relationshipProperties = new HashMap<>();
+        for (int i = 0; i < properties; i++)
+        {
+            nodeProperties.put("property" + i, i % 2 == 0 ? "value of the property " + i : (Object) (long) i);
+            relationshipProperties.put("weight" + i, i * 0.5);
+        }
+        node = new NodeStorage("Person", nodeProperties);
+        relationship = new RelationshipStorage("knows", relationshipProperties, node, new NodeStorage("Person", nodeProperties));
+    }
+
+    @Benchmark
+    public Digest hashNode() throws NoSuchAlgorithmException
+    {
+        return provider.hash(node);
+    }
+
+    @Benchmark
+    public Digest hashRelationship() throws NoSuchAlgorithmException
+    {
+        return provider.hash(relationship);
+    }
+}
@@ -0,0 +1,104 @@
+package main.java.com.bag.client;
+
+import com.esotericsoftware.kryo.io.Input;
+import main.java.com.bag.util.Constants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reply of a replica to a BFT read.
+ * The designated replica returns the digest and the full result, all others only the digest.
+ */
+public class BftReadReply
+{
+    /**
+     * True if the reply contains the full result.
+     */
+    private final boolean full;
+
+    /**
+     * Digest of the read result.
+     */
+    @NotNull
+    private final byte[] digest;
+
+    /**
+     * The serialized read result, null if digest only.
+     */
+    @Nullable
+    private final byte[] payload;
+
+    /**
+     * Creates a reply.
+     * @param full if the reply contains the full result.
+     * @param digest the digest.
+     * @param payload the serialized result.
+     */
+    private BftReadReply(final boolean full, @NotNull final byte[] digest, @Nullable final byte[] payload)
+    {
+        this.full = full;
+        this.digest = digest;
+        this.payload = payload;
+    }
+
+    /**
+     * Parses the content of a reply.
+     * @param content the received bytes.
+     * @return the reply or null if the content is no BFT read reply.
+     */
+    @Nullable
+    public static BftReadReply parse(@Nullable final byte[] content)
+    {
+        if (content == null || content.length == 0)
+        {
+            return null;
+        }
+
+        try (Input input = new Input(content))
+        {
+            final String type = input.readString();
+            final boolean full = Constants.BFT_READ_FULL_RESPONSE.equals(type);
+            if (!full && !Constants.BFT_READ_DIGEST_RESPONSE.equals(type))
+            {
+                return null;
+            }
+
+            final byte[] digest = input.readBytes(input.readInt());
+            final byte[] payload = full ? input.readBytes(input.readInt()) : null;
+            return new BftReadReply(full, digest, payload);
+        }
+        catch (RuntimeException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Check if the reply contains the full result.
+     * @return true if so.
+     */
+    public boolean isFull()
+    {
+        return full;
+    }
+
+    /**
+     * Getter of the digest.
+     * @return the digest of the result.
+     */
+    @NotNull
+    public byte[] getDigest()
+    {
+        return digest;
+    }
+
+    /**
+     * Getter of the payload.
+     * @return the serialized result or null if digest only.
+     */
+    @Nullable
+    public byte[] getPayload()
+    {
+        return payload;
+    }
+}
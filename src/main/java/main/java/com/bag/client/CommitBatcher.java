@@ -0,0 +1,247 @@
+package main.java.com.bag.client;
+
+import bftsmart.tom.ServiceProxy;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Collects the commits of many transaction handles and sends them as one ordered request.
+ * The replicas answer with one commit response per transaction, in the order they were sent.
+ */
+public class CommitBatcher implements Closeable, AutoCloseable
+{
+    /**
+     * The proxy used to send the batched requests.
+     */
+    private final ServiceProxy proxy;
+
+    /**
+     * Maximum amount of commits in one batch.
+     */
+    private final int maxBatchSize;
+
+    /**
+     * Maximum time in milliseconds the first commit of a batch waits for others to join.
+     */
+    private final long maxDelayMillis;
+
+    /**
+     * Commits waiting to be sent.
+     */
+    private final BlockingQueue<PendingCommit> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Thread which sends the batches.
+     */
+    private final Thread sender;
+
+    /**
+     * Set to false once the batcher is closed.
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Creates a batcher which sends its batches through the given proxy.
+     * @param proxy the proxy to use, shouldn't be used by a transaction at the same time.
+     * @param maxBatchSize maximum amount of commits in one batch.
+     * @param maxDelayMillis maximum time the first commit of a batch waits for others.
+     */
+    public CommitBatcher(@NotNull final ServiceProxy proxy, final int maxBatchSize, final long maxDelayMillis)
+    {
+        this.proxy = proxy;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayMillis = Math.max(0, maxDelayMillis);
+
+        sender = new Thread(this::run, "bag-commit-batcher");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Adds a serialized commit to the next batch and waits for its response.
+     * @param commit the serialized commit message of one transaction.
+     * @return the commit response of this transaction or null if none arrived.
+     */
+    @Nullable
+    public byte[] submit(@NotNull final byte[] commit)
+    {
+        if (!running)
+        {
+            Log.getLogger().warn("Commit batcher already closed, can't submit commit");
+            return null;
+        }
+
+        final PendingCommit pending = new PendingCommit(commit);
+        queue.add(pending);
+
+        try
+        {
+            return pending.response.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            Log.getLogger().warn("Interrupted while waiting for the batched commit", e);
+        }
+        catch (ExecutionException e)
+        {
+            Log.getLogger().warn("Batched commit failed", e);
+        }
+        return null;
+    }
+
+    /**
+     * Collects commits until the batch is full or the delay passed and sends them.
+     */
+    private void run()
+    {
+        while (running)
+        {
+            final List<PendingCommit> batch = new ArrayList<>(maxBatchSize);
+            try
+            {
+                final PendingCommit first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                {
+                    continue;
+                }
+                batch.add(first);
+
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (batch.size() < maxBatchSize)
+                {
+                    final long remaining = deadline - System.nanoTime();
+                    final PendingCommit next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null)
+                    {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                running = false;
+            }
+
+            if (!batch.isEmpty())
+            {
+                sendBatch(batch);
+            }
+        }
+
+        PendingCommit left;
+        while ((left = queue.poll()) != null)
+        {
+            left.response.complete(null);
+        }
+    }
+
+    /**
+     * Sends one batch and hands the responses to the waiting transactions.
+     * @param batch the commits to send.
+     */
+    private void sendBatch(@NotNull final List<PendingCommit> batch)
+    {
+        Log.getLogger().debug("Sending batch of " + batch.size() + " commits");
+        final Kryo kryo = new Kryo();
+
+        final Output output = new Output(0, -1);
+        kryo.writeObject(output, Constants.BATCH_COMMIT_MESSAGE);
+        kryo.writeObject(output, batch.size());
+        for (final PendingCommit pending : batch)
+        {
+            kryo.writeObject(output, pending.request);
+        }
+        final byte[] bytes = output.toBytes();
+        output.close();
+
+        final byte[] result;
+        try
+        {
+            result = proxy.invokeOrdered(bytes);
+        }
+        catch (RuntimeException e)
+        {
+            Log.getLogger().warn("Couldn't send batched commit", e);
+            batch.forEach(pending -> pending.response.complete(null));
+            return;
+        }
+
+        if (result == null)
+        {
+            Log.getLogger().warn("Server returned null for batched commit");
+            batch.forEach(pending -> pending.response.complete(null));
+            return;
+        }
+
+        final Input input = new Input(result);
+        final String type = input.readString();
+        if (!Constants.BATCH_COMMIT_RESPONSE.equals(type))
+        {
+            Log.getLogger().warn("Incorrect response to batched commit message");
+            input.close();
+            batch.forEach(pending -> pending.response.complete(null));
+            return;
+        }
+
+        final int size = input.readInt();
+        for (int i = 0; i < batch.size(); i++)
+        {
+            byte[] response = null;
+            if (i < size)
+            {
+                final int length = input.readInt();
+                response = length == 0 ? null : input.readBytes(length);
+            }
+            batch.get(i).response.complete(response);
+        }
+        input.close();
+    }
+
+    /**
+     * Stops the batcher, commits which weren't sent yet get no response.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        sender.interrupt();
+    }
+
+    /**
+     * A commit waiting for its batch.
+     */
+    private static class PendingCommit
+    {
+        /**
+         * The serialized commit.
+         */
+        private final byte[] request;
+
+        /**
+         * Completed with the response of the replicas.
+         */
+        private final CompletableFuture<byte[]> response = new CompletableFuture<>();
+
+        /**
+         * Creates a pending commit.
+         * @param request the serialized commit.
+         */
+        private PendingCommit(final byte[] request)
+        {
+            this.request = request;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package main.java.com.bag.client;
+
+import bftsmart.tom.ServiceProxy;
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.core.messages.TOMMessageType;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Admin client which creates schema indexes on all replicas and reads the index usage counters of a replica.
+ * Indexes are created with an ordered request, so all replicas create them at the same point of the history.
+ */
+public class IndexAdmin extends ServiceProxy
+{
+    /**
+     * Request id of the usage request waiting for its reply, -1 if none.
+     */
+    private volatile int usageRequestId = -1;
+
+    /**
+     * Completed with the reply to the usage request.
+     */
+    private volatile CompletableFuture<byte[]> usageReply = null;
+
+    /**
+     * Creates the admin client.
+     * @param processId the id of the client process.
+     */
+    public IndexAdmin(final int processId)
+    {
+        super(processId);
+    }
+
+    /**
+     * Creates indexes on all replicas.
+     * @param indexes the label and property key of each index.
+     * @return the amount of requested indexes which exist afterwards, -1 if the replicas didn't answer.
+     */
+    public int createIndexes(@NotNull final List<String[]> indexes)
+    {
+        final Kryo kryo = new Kryo();
+        final Output output = new Output(0, -1);
+        kryo.writeObject(output, Constants.INDEX_MESSAGE);
+        kryo.writeObject(output, indexes.size());
+        for (final String[] index : indexes)
+        {
+            kryo.writeObject(output, index[0]);
+            kryo.writeObject(output, index[1]);
+        }
+        final byte[] request = output.toBytes();
+        output.close();
+
+        final byte[] result = invokeOrdered(request);
+        if (result == null)
+        {
+            Log.getLogger().warn("Replicas didn't answer the index request");
+            return -1;
+        }
+
+        final Input input = new Input(result);
+        try
+        {
+            if (!Constants.INDEX_RESPONSE.equals(input.readString()))
+            {
+                Log.getLogger().warn("Incorrect response to index request");
+                return -1;
+            }
+            return input.readInt();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    /**
+     * Reads the usage counters of the label and property key pairs looked up in one replica.
+     * The counters differ between replicas, so the request only goes to the one asked for.
+     * @param replica the id of the replica.
+     * @param timeout the time to wait at most for the reply in milliseconds.
+     * @return one line per pair with the label, key, if it is indexed and the lookups, or null if the replica didn't answer.
+     */
+    @Nullable
+    public List<String> getIndexUsage(final int replica, final long timeout)
+    {
+        final Kryo kryo = new Kryo();
+        final Output output = new Output(0, -1);
+        kryo.writeObject(output, Constants.INDEX_USAGE_MESSAGE);
+        final byte[] request = output.toBytes();
+        output.close();
+
+        final CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        usageReply = reply;
+        usageRequestId = generateRequestId(TOMMessageType.UNORDERED_REQUEST);
+        sendMessageToTargets(request, usageRequestId, new int[] {replica}, TOMMessageType.UNORDERED_REQUEST);
+
+        final byte[] result;
+        try
+        {
+            result = reply.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            Log.getLogger().warn("Replica " + replica + " didn't answer the index usage request", e);
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        finally
+        {
+            usageRequestId = -1;
+        }
+
+        final Input input = new Input(result);
+        try
+        {
+            if (!Constants.INDEX_USAGE_RESPONSE.equals(input.readString()))
+            {
+                Log.getLogger().warn("Incorrect response to index usage request");
+                return null;
+            }
+
+            final int size = input.readInt();
+            final List<String> usages = new ArrayList<>(size);
+            for (int i = 0; i < size; i++)
+            {
+                usages.add(input.readString() + "." + input.readString() + " indexed: " + input.readBoolean() + " lookups: " + input.readLong()
+                        + " ordered: " + input.readLong() + " indexed lookups: " + input.readLong());
+            }
+            return usages;
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    @Override
+    public void replyReceived(final TOMMessage reply)
+    {
+        final CompletableFuture<byte[]> current = usageReply;
+        if (current != null && reply.getReqType() == TOMMessageType.UNORDERED_REQUEST && reply.getSequence() == usageRequestId)
+        {
+            current.complete(reply.getContent());
+            return;
+        }
+        super.replyReceived(reply);
+    }
+
+    /**
+     * Creates indexes or prints the index usage of a replica.
+     * @param args the id of the client process, then create and label.key pairs or usage and the id of the replica.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 3 || !("create".equals(args[1]) || "usage".equals(args[1])))
+        {
+            Log.getLogger().warn("Usage: IndexAdmin <processId> create <label.key>... | IndexAdmin <processId> usage <serverId>");
+            return;
+        }
+
+        final IndexAdmin admin;
+        try
+        {
+            admin = new IndexAdmin(Integer.parseInt(args[0]));
+        }
+        catch (NumberFormatException e)
+        {
+            Log.getLogger().warn("Invalid program arguments, terminating admin client", e);
+            return;
+        }
+
+        try
+        {
+            if ("create".equals(args[1]))
+            {
+                final List<String[]> indexes = new ArrayList<>();
+                for (int i = 2; i < args.length; i++)
+                {
+                    final int separator = args[i].lastIndexOf('.');
+                    if (separator <= 0 || separator == args[i].length() - 1)
+                    {
+                        Log.getLogger().warn("Invalid index " + args[i] + ", expected label.key");
+                        return;
+                    }
+                    indexes.add(new String[] {args[i].substring(0, separator), args[i].substring(separator + 1)});
+                }
+                Log.getLogger().info("Replicas have " + admin.createIndexes(indexes) + " of " + indexes.size() + " requested indexes");
+            }
+            else
+            {
+                final List<String> usages = admin.getIndexUsage(Integer.parseInt(args[2]), admin.getInvokeTimeout() * 1000L);
+                if (usages != null)
+                {
+                    for (final String usage : usages)
+                    {
+                        Log.getLogger().info(usage);
+                    }
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            Log.getLogger().warn("Invalid program arguments, terminating admin client", e);
+        }
+        finally
+        {
+            admin.close();
+        }
+    }
+}
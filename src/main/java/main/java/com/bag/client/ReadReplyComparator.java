@@ -0,0 +1,24 @@
+package main.java.com.bag.client;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Compares replies of the replicas, BFT read replies match if their digests match.
+ * All other replies have to be identical.
+ */
+public class ReadReplyComparator implements Comparator<byte[]>
+{
+    @Override
+    public int compare(final byte[] first, final byte[] second)
+    {
+        final BftReadReply firstReply = BftReadReply.parse(first);
+        final BftReadReply secondReply = BftReadReply.parse(second);
+
+        if (firstReply != null && secondReply != null)
+        {
+            return Arrays.equals(firstReply.getDigest(), secondReply.getDigest()) ? 0 : -1;
+        }
+        return Arrays.equals(first, second) ? 0 : -1;
+    }
+}
@@ -0,0 +1,159 @@
+package main.java.com.bag.client;
+
+import bftsmart.tom.core.messages.TOMMessage;
+import bftsmart.tom.util.Extractor;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Picks the reply handed to the client once enough replies matched.
+ * For BFT reads this is the full result whose digest matches the agreed one.
+ * If the full result isn't among the matching replies, e.g. because the designated replica is slow,
+ * the digest reply is returned and the full result can be awaited from the replies arriving later.
+ */
+public class ReadReplyExtractor implements Extractor
+{
+    /**
+     * The full result awaited for the last read, null if none is missing.
+     */
+    private volatile MissingFullReply missing = null;
+
+    @Override
+    public TOMMessage extractResponse(final TOMMessage[] replies, final int sameContent, final int lastReceived)
+    {
+        final TOMMessage agreed = replies[lastReceived];
+        final BftReadReply agreedReply = BftReadReply.parse(agreed.getContent());
+        missing = null;
+
+        if (agreedReply == null || agreedReply.isFull())
+        {
+            return agreed;
+        }
+
+        final List<Integer> agreeing = new ArrayList<>();
+        for (final TOMMessage reply : replies)
+        {
+            if (reply == null)
+            {
+                continue;
+            }
+
+            final BftReadReply candidate = BftReadReply.parse(reply.getContent());
+            if (candidate != null && Arrays.equals(candidate.getDigest(), agreedReply.getDigest()))
+            {
+                if (candidate.isFull())
+                {
+                    return reply;
+                }
+                agreeing.add(reply.getSender());
+            }
+        }
+
+        missing = new MissingFullReply(agreed.getSequence(), agreedReply.getDigest(), agreeing);
+        return agreed;
+    }
+
+    /**
+     * Offers a reply which arrived after the replicas agreed, completes the missing full result if it matches.
+     * @param reply the received reply.
+     */
+    public void offer(final TOMMessage reply)
+    {
+        final MissingFullReply current = missing;
+        if (current == null || reply.getSequence() != current.sequence)
+        {
+            return;
+        }
+
+        final BftReadReply candidate = BftReadReply.parse(reply.getContent());
+        if (candidate != null && candidate.isFull() && Arrays.equals(candidate.getDigest(), current.digest))
+        {
+            current.fullReply.complete(candidate);
+        }
+    }
+
+    /**
+     * Waits for the full result missing from the agreed replies of the last read.
+     * @param timeout the time to wait at most in milliseconds.
+     * @return the full result or null if none is missing or it didn't arrive in time.
+     */
+    @Nullable
+    public BftReadReply awaitFullReply(final long timeout)
+    {
+        final MissingFullReply current = missing;
+        if (current == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            return current.fullReply.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException | TimeoutException e)
+        {
+            return null;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Getter of the replicas which sent the agreed digest of the last read without the full result.
+     * @return the ids of the replicas, empty if no full result is missing.
+     */
+    public List<Integer> getAgreeingReplicas()
+    {
+        final MissingFullReply current = missing;
+        return current == null ? new ArrayList<>() : current.agreeing;
+    }
+
+    /**
+     * The full result of a read the replicas agreed on without it.
+     */
+    private static final class MissingFullReply
+    {
+        /**
+         * Sequence of the read request.
+         */
+        private final int sequence;
+
+        /**
+         * The agreed digest.
+         */
+        private final byte[] digest;
+
+        /**
+         * The replicas which sent the agreed digest.
+         */
+        private final List<Integer> agreeing;
+
+        /**
+         * Completed with the full result once it arrives.
+         */
+        private final CompletableFuture<BftReadReply> fullReply = new CompletableFuture<>();
+
+        /**
+         * Creates the missing result of a read.
+         * @param sequence the sequence of the request.
+         * @param digest the agreed digest.
+         * @param agreeing the replicas which sent the digest.
+         */
+        private MissingFullReply(final int sequence, final byte[] digest, final List<Integer> agreeing)
+        {
+            this.sequence = sequence;
+            this.digest = digest;
+            this.agreeing = agreeing;
+        }
+    }
+}
@@ -10,11 +10,17 @@ import com.esotericsoftware.kryo.io.Input;
 import com.esotericsoftware.kryo.io.Output;
 import com.esotericsoftware.kryo.pool.KryoFactory;
 import com.esotericsoftware.kryo.pool.KryoPool;
+import main.java.com.bag.client.routing.PendingRead;
+import main.java.com.bag.client.routing.ReadLatencyTracker;
+import main.java.com.bag.client.routing.ReplicaSelector;
+import main.java.com.bag.client.routing.ReplicaStatistics;
 import main.java.com.bag.operations.CreateOperation;
 import main.java.com.bag.operations.DeleteOperation;
 import main.java.com.bag.operations.Operation;
 import main.java.com.bag.operations.UpdateOperation;
 import main.java.com.bag.util.*;
+import main.java.com.bag.util.storage.CompactProperties;
+import main.java.com.bag.util.storage.CompactPropertiesSerializer;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
 import org.jetbrains.annotations.NotNull;
@@ -22,6 +28,12 @@ import org.jetbrains.annotations.NotNull;
 import java.io.Closeable;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Class handling the client.
@@ -32,6 +44,17 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
      * Should the transaction run in secure mode?
      */
     private boolean secureMode = false;
+
+    /**
+     * Should reads be sent to all replicas, with only the designated replica returning the full result?
+     */
+    private boolean bftReads = false;
+
+    /**
+     * Extracts the BFT read replies, null if not reading in BFT mode.
+     */
+    private ReadReplyExtractor readReplyExtractor = null;
+
     /**
      * Sets to log reads, updates, deletes and node creations.
      */
@@ -50,6 +73,73 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
      */
     private final int serverProcess;
 
+    /**
+     * Optional batcher which bundles the commits of many transactions into one ordered request.
+     */
+    private CommitBatcher commitBatcher = null;
+
+    /**
+     * A replica which didn't answer in time is skipped for this multiple of the failover timeout.
+     */
+    private static final int SUSPECT_FACTOR = 10;
+
+    /**
+     * Chooses the replica reads are sent to, if null all reads go to serverProcess.
+     */
+    private ReplicaSelector replicaSelector = null;
+
+    /**
+     * Load and latency of the replicas, filled from the reply timings.
+     */
+    private ReplicaStatistics replicaStatistics = null;
+
+    /**
+     * Reads awaiting their first answer, by request id.
+     */
+    private final Map<Integer, PendingRead> pendingReads = new ConcurrentHashMap<>();
+
+    /**
+     * Time in milliseconds after which an unanswered read is sent to another replica.
+     */
+    private long failoverTimeout = 0;
+
+    /**
+     * Checks the pending reads for replicas which stopped answering.
+     */
+    private ScheduledExecutorService readMonitor = null;
+
+    /**
+     * The scheduled check of the pending reads, null if not scheduled.
+     */
+    private ScheduledFuture<?> pendingReadCheck = null;
+
+    /**
+     * Amount of recent read latencies hedging bases its delay on.
+     */
+    private static final int HEDGE_WINDOW = 1024;
+
+    /**
+     * Percentile of the recent read latency after which a read is hedged, 0 if hedging is disabled.
+     */
+    private double hedgePercentile = 0;
+
+    /**
+     * Minimum time in milliseconds before a read is hedged.
+     */
+    private long minHedgeDelay = 0;
+
+    /**
+     * Recent read latencies.
+     */
+    private final ReadLatencyTracker readLatencies = new ReadLatencyTracker(HEDGE_WINDOW);
+
+    /**
+     * Counters of the sent, hedged and by the hedge won reads.
+     */
+    private final AtomicLong sentReads  = new AtomicLong();
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final AtomicLong hedgeWins  = new AtomicLong();
+
     /**
      * Create a threadsafe version of kryo.
      */
@@ -57,6 +147,7 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
     {
         Kryo kryo = new Kryo();
         kryo.register(NodeStorage.class, 100);
+        kryo.register(CompactProperties.class, new CompactPropertiesSerializer(), 150);
         kryo.register(RelationshipStorage.class, 200);
         kryo.register(CreateOperation.class, 250);
         kryo.register(DeleteOperation.class, 300);
@@ -72,6 +163,34 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
         initClient();
     }
 
+    /**
+     * Creates a client which may read in BFT mode.
+     * In BFT mode, reads go to all replicas, the replica serverId returns the full result and the others only a digest of it.
+     * @param processId the id of the client process.
+     * @param serverId the replica which returns the full result.
+     * @param bftReads true if reads should be Byzantine fault-tolerant.
+     */
+    public TestClient(final int processId, final int serverId, final boolean bftReads)
+    {
+        this(processId, serverId, bftReads ? new ReadReplyExtractor() : null);
+    }
+
+    /**
+     * Creates a client which reads in BFT mode if it has a read reply extractor.
+     * @param processId the id of the client process.
+     * @param serverId the replica which returns the full result.
+     * @param readReplyExtractor the extractor of the BFT read replies, null if not reading in BFT mode.
+     */
+    private TestClient(final int processId, final int serverId, final ReadReplyExtractor readReplyExtractor)
+    {
+        super(processId, null, readReplyExtractor == null ? null : new ReadReplyComparator(), readReplyExtractor);
+        secureMode = true;
+        this.bftReads = readReplyExtractor != null;
+        this.readReplyExtractor = readReplyExtractor;
+        this.serverProcess = serverId;
+        initClient();
+    }
+
     public TestClient(final int processId, final String configHome)
     {
         super(processId, configHome);
@@ -96,6 +215,136 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
         writeSet = new ArrayList<>();
     }
 
+    /**
+     * Sets the batcher the commits of this client should go through, null to send them directly.
+     * @param commitBatcher the batcher to use.
+     */
+    public void setCommitBatcher(final CommitBatcher commitBatcher)
+    {
+        this.commitBatcher = commitBatcher;
+    }
+
+    /**
+     * Sets how the replica reads are sent to is chosen, null to send all reads to serverProcess.
+     * @param replicaSelector the selection strategy.
+     * @param failoverTimeout time in milliseconds after which an unanswered read is sent to another replica,
+     *                        0 to never fail over, unanswered reads then expire after the invoke timeout.
+     */
+    public synchronized void setReplicaSelector(final ReplicaSelector replicaSelector, final long failoverTimeout)
+    {
+        this.failoverTimeout = failoverTimeout;
+        if(replicaStatistics == null)
+        {
+            replicaStatistics = new ReplicaStatistics(getViewManager().getCurrentViewProcesses(), failoverTimeout * SUSPECT_FACTOR);
+        }
+        else
+        {
+            replicaStatistics.setSuspectTime(failoverTimeout * SUSPECT_FACTOR);
+        }
+
+        if(pendingReadCheck != null)
+        {
+            pendingReadCheck.cancel(false);
+            pendingReadCheck = null;
+        }
+        if(replicaSelector != null)
+        {
+            long period = Math.max(1, getPendingReadTimeout() / 2);
+            pendingReadCheck = getReadMonitor().scheduleWithFixedDelay(this::checkPendingReads, period, period, TimeUnit.MILLISECONDS);
+        }
+        this.replicaSelector = replicaSelector;
+    }
+
+    /**
+     * Gets the time after which a pending read is given up on its replica.
+     * @return the failover timeout or the invoke timeout if reads don't fail over, in milliseconds.
+     */
+    private long getPendingReadTimeout()
+    {
+        return failoverTimeout > 0 ? failoverTimeout : TimeUnit.SECONDS.toMillis(getInvokeTimeout());
+    }
+
+    /**
+     * Enables hedged reads, needs a replica selector.
+     * If a read isn't answered within the given percentile of the recent read latency, it's also sent to another replica.
+     * @param percentile the percentile, between 0 and 100, 0 to disable hedging.
+     * @param minHedgeDelay minimum time in milliseconds before a read is hedged.
+     */
+    public void setHedgedReads(final double percentile, final long minHedgeDelay)
+    {
+        if(replicaSelector == null && percentile > 0)
+        {
+            Log.getLogger().warn("Hedged reads need a replica selector, not enabling them");
+            return;
+        }
+        this.hedgePercentile = percentile;
+        this.minHedgeDelay = minHedgeDelay;
+    }
+
+    /**
+     * Getter of the amount of reads sent through the replica selector.
+     * @return the amount of reads.
+     */
+    public long getSentReads()
+    {
+        return sentReads.get();
+    }
+
+    /**
+     * Getter of the amount of hedged reads.
+     * @return the amount of reads which have also been sent to a second replica.
+     */
+    public long getHedgedReads()
+    {
+        return hedgedReads.get();
+    }
+
+    /**
+     * Getter of the amount of hedged reads the second replica answered first.
+     * @return the amount of won hedges.
+     */
+    public long getHedgeWins()
+    {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Getter of the hedge rate.
+     * @return the share of reads which have been hedged.
+     */
+    public double getHedgeRate()
+    {
+        long reads = sentReads.get();
+        return reads == 0 ? 0 : (double) hedgedReads.get() / reads;
+    }
+
+    /**
+     * Gets the executor checking the pending reads, creates it if necessary.
+     * @return the executor.
+     */
+    private synchronized ScheduledExecutorService getReadMonitor()
+    {
+        if(readMonitor == null)
+        {
+            readMonitor = Executors.newSingleThreadScheduledExecutor(runnable ->
+            {
+                Thread thread = new Thread(runnable, "bag-read-monitor");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return readMonitor;
+    }
+
+    /**
+     * Getter of the replica statistics.
+     * @return the load and latency of the replicas, null if no replica selector has been set.
+     */
+    public ReplicaStatistics getReplicaStatistics()
+    {
+        return replicaStatistics;
+    }
+
     /**
      * write requests. (Only reach database on commit)
      */
@@ -185,14 +434,19 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
     {
         for(Object identifier: identifiers)
         {
-            if (identifier instanceof NodeStorage)
+            if (bftReads && (identifier instanceof NodeStorage || identifier instanceof RelationshipStorage))
+            {
+                String reason = identifier instanceof NodeStorage ? Constants.READ_MESSAGE : Constants.RELATIONSHIP_READ_MESSAGE;
+                readBft(this.serialize(reason, localTimestamp, identifier));
+            }
+            else if (identifier instanceof NodeStorage)
             {
-                //this sends the message straight to server 0 not to the others.
-                sendMessageToTargets(this.serialize(Constants.READ_MESSAGE, localTimestamp, identifier), 0, new int[] {serverProcess}, TOMMessageType.UNORDERED_REQUEST);
+                //this sends the message straight to one server not to the others.
+                sendRead(this.serialize(Constants.READ_MESSAGE, localTimestamp, identifier));
             }
             else if (identifier instanceof RelationshipStorage)
             {
-                sendMessageToTargets(this.serialize(Constants.RELATIONSHIP_READ_MESSAGE, localTimestamp, identifier), 0, new int[] {serverProcess}, TOMMessageType.UNORDERED_REQUEST);
+                sendRead(this.serialize(Constants.RELATIONSHIP_READ_MESSAGE, localTimestamp, identifier));
             }
             else
             {
@@ -201,6 +455,243 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
         }
     }
 
+    /**
+     * Sends a read to the replica chosen by the replica selector.
+     * @param request the serialized read request.
+     */
+    private void sendRead(byte[] request)
+    {
+        if(replicaSelector == null)
+        {
+            sendMessageToTargets(request, 0, new int[] {serverProcess}, TOMMessageType.UNORDERED_REQUEST);
+            return;
+        }
+
+        int replica = replicaSelector.selectReplica(replicaStatistics);
+        if(replica == -1)
+        {
+            Log.getLogger().warn("No replica available to send the read to");
+            return;
+        }
+
+        int requestId = generateRequestId(TOMMessageType.UNORDERED_REQUEST);
+        PendingRead pending = new PendingRead(request);
+        pendingReads.put(requestId, pending);
+        sentReads.incrementAndGet();
+        sendReadTo(requestId, pending, replica);
+
+        if(hedgePercentile > 0)
+        {
+            long delay = readLatencies.getPercentile(hedgePercentile);
+            if(delay >= 0)
+            {
+                delay = Math.max(delay, TimeUnit.MILLISECONDS.toNanos(minHedgeDelay));
+                getReadMonitor().schedule(() -> hedgeRead(requestId), delay, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Sends a read which hasn't been answered yet also to another replica, the first answer wins.
+     * @param requestId the id of the read.
+     */
+    private void hedgeRead(int requestId)
+    {
+        PendingRead pending = pendingReads.get(requestId);
+        if(pending == null || pending.getTargets().length > 1 || replicaSelector == null)
+        {
+            return;
+        }
+
+        int replica = replicaSelector.selectReplica(replicaStatistics, pending.getTargets());
+        if(replica == -1)
+        {
+            return;
+        }
+
+        hedgedReads.incrementAndGet();
+        pending.addHedgeTarget(replica, System.nanoTime());
+        replicaStatistics.readSent(replica);
+        sendMessageToTargets(pending.getRequest(), requestId, new int[] {replica}, TOMMessageType.UNORDERED_REQUEST);
+    }
+
+    /**
+     * Sends a pending read to a replica.
+     * @param requestId the id of the request.
+     * @param pending the pending read.
+     * @param replica the replica to send it to.
+     */
+    private void sendReadTo(int requestId, PendingRead pending, int replica)
+    {
+        pending.addTarget(replica, System.nanoTime());
+        replicaStatistics.readSent(replica);
+        sendMessageToTargets(pending.getRequest(), requestId, new int[] {replica}, TOMMessageType.UNORDERED_REQUEST);
+    }
+
+    /**
+     * Sends reads to another replica if the replica they have been sent to didn't answer in time.
+     * Without failover the reads expire instead.
+     */
+    private void checkPendingReads()
+    {
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(getPendingReadTimeout());
+
+        for(Map.Entry<Integer, PendingRead> entry : pendingReads.entrySet())
+        {
+            PendingRead pending = entry.getValue();
+            int lastTarget = pending.getLastTarget();
+            long elapsed = now - pending.getSentAt(lastTarget);
+            if(elapsed < timeout || pending.isTimedOut(lastTarget))
+            {
+                continue;
+            }
+
+            pending.markTimedOut(lastTarget);
+            replicaStatistics.readTimedOut(lastTarget, elapsed);
+
+            int replica = replicaSelector == null || failoverTimeout <= 0 ? -1 : replicaSelector.selectReplica(replicaStatistics, pending.getTargets());
+            if(replica == -1)
+            {
+                if(pendingReads.remove(entry.getKey()) != null)
+                {
+                    Log.getLogger().warn("TimeOut, none of the replicas answered the read!");
+                }
+                continue;
+            }
+
+            Log.getLogger().info("Replica " + lastTarget + " didn't answer in time, sending read to replica " + replica);
+            sendReadTo(entry.getKey(), pending, replica);
+        }
+    }
+
+    /**
+     * Updates the replica statistics once the first answer to a read arrived.
+     * @param pending the answered read.
+     * @param sender the replica which answered.
+     */
+    private void completeRead(PendingRead pending, int sender)
+    {
+        long now = System.nanoTime();
+        if(sender != -1 && sender == pending.getHedgeTarget())
+        {
+            hedgeWins.incrementAndGet();
+        }
+
+        for(int target : pending.getTargets())
+        {
+            if(target == sender)
+            {
+                long latency = now - pending.getSentAt(target);
+                replicaStatistics.readAnswered(target, latency);
+                readLatencies.record(latency);
+            }
+            else if(!pending.isTimedOut(target))
+            {
+                replicaStatistics.readAbandoned(target);
+            }
+        }
+    }
+
+    /**
+     * Sends a read to all replicas and waits until enough of them agree on the digest of the result.
+     * If the full result of the designated replica isn't among the agreeing replies, it's awaited until the invoke timeout.
+     * If it doesn't arrive, the read is sent again with one of the replicas which sent the agreed digest as designated replica.
+     * @param request the serialized read request.
+     */
+    private void readBft(byte[] request)
+    {
+        int designatedReplica = replicaSelector == null ? serverProcess : replicaSelector.selectReplica(replicaStatistics);
+        if(designatedReplica == -1)
+        {
+            designatedReplica = serverProcess;
+        }
+
+        final Set<Integer> designated = new HashSet<>();
+        final int attempts = getViewManager().getCurrentViewProcesses().length;
+        for(int attempt = 0; attempt < attempts; attempt++)
+        {
+            designated.add(designatedReplica);
+            if(replicaStatistics != null)
+            {
+                replicaStatistics.readSent(designatedReplica);
+            }
+            long sentAt = System.nanoTime();
+
+            BftReadReply reply = BftReadReply.parse(invokeUnordered(serializeBftRead(designatedReplica, request)));
+            if(reply == null)
+            {
+                if(replicaStatistics != null)
+                {
+                    replicaStatistics.readTimedOut(designatedReplica, System.nanoTime() - sentAt);
+                }
+                Log.getLogger().warn("TimeOut, Didn't receive a valid answer from the replicas!");
+                return;
+            }
+
+            if(!reply.isFull())
+            {
+                //A slow designated replica answers after the others agreed.
+                reply = readReplyExtractor.awaitFullReply(TimeUnit.SECONDS.toMillis(getInvokeTimeout()));
+            }
+
+            if(reply != null)
+            {
+                if(replicaStatistics != null)
+                {
+                    replicaStatistics.readAnswered(designatedReplica, System.nanoTime() - sentAt);
+                }
+                processReadReturn(reply.getPayload(), reply.getDigest());
+                return;
+            }
+
+            if(replicaStatistics != null)
+            {
+                replicaStatistics.readTimedOut(designatedReplica, System.nanoTime() - sentAt);
+            }
+
+            int next = -1;
+            for(int replica : readReplyExtractor.getAgreeingReplicas())
+            {
+                if(!designated.contains(replica))
+                {
+                    next = replica;
+                    break;
+                }
+            }
+            if(next == -1)
+            {
+                break;
+            }
+
+            Log.getLogger().info("Full result of replica " + designatedReplica + " is missing, requesting it from replica " + next);
+            designatedReplica = next;
+        }
+        Log.getLogger().warn("Replicas agreed on the read but none of them returned the full result");
+    }
+
+    /**
+     * Serializes a BFT read.
+     * @param designatedReplica the replica which should return the full result.
+     * @param request the serialized read request.
+     * @return the message to send to all replicas.
+     */
+    private byte[] serializeBftRead(int designatedReplica, byte[] request)
+    {
+        KryoPool pool = new KryoPool.Builder(factory).softReferences().build();
+        Kryo kryo = pool.borrow();
+
+        Output output = new Output(0, -1);
+        kryo.writeObject(output, Constants.BFT_READ_MESSAGE);
+        kryo.writeObject(output, designatedReplica);
+        kryo.writeObject(output, request);
+
+        byte[] bytes = output.toBytes();
+        output.close();
+        pool.release(kryo);
+        return bytes;
+    }
+
     /**
      * Receiving read requests replies here
      * @param reply the received message.
@@ -209,18 +700,38 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
     public void replyReceived(final TOMMessage reply)
     {
         Log.getLogger().info("reply");
-        if(reply.getReqType() == TOMMessageType.UNORDERED_REQUEST)
+        if(reply.getReqType() == TOMMessageType.UNORDERED_REQUEST && !bftReads)
         {
-            processReadReturn(reply.getContent());
+            if(replicaSelector == null)
+            {
+                processReadReturn(reply.getContent(), null);
+            }
+            else
+            {
+                //Only the first answer to a read counts, later ones of replicas it failed over from are dropped.
+                PendingRead pending = pendingReads.remove(reply.getSequence());
+                if(pending != null)
+                {
+                    completeRead(pending, reply.getSender());
+                    processReadReturn(reply.getContent(), null);
+                }
+            }
         }
         super.replyReceived(reply);
+
+        //After the replicas agreed, a late full result can only be seen here.
+        if(reply.getReqType() == TOMMessageType.UNORDERED_REQUEST && readReplyExtractor != null)
+        {
+            readReplyExtractor.offer(reply);
+        }
     }
 
     /**
      * Processes the return of a read request. Filling the readsets.
      * @param value the received bytes.
+     * @param expectedDigest the digest the replicas agreed on, null if not read in BFT mode.
      */
-    private void processReadReturn(byte[] value)
+    private void processReadReturn(byte[] value, byte[] expectedDigest)
     {
         if(value == null)
         {
@@ -232,11 +743,20 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
         Kryo kryo = pool.borrow();
 
         Input input = new Input(value);
-        this.localTimestamp = kryo.readObject(input, Long.class);
+        long snapshotId = kryo.readObject(input, Long.class);
 
         Object nodes = kryo.readClassAndObject(input);
         Object relationships = kryo.readClassAndObject(input);
 
+        if(expectedDigest != null && !matchesDigest(expectedDigest, snapshotId, nodes, relationships))
+        {
+            Log.getLogger().warn("Full read result doesn't match the digest of the replicas, ignoring it");
+            input.close();
+            pool.release(kryo);
+            return;
+        }
+        this.localTimestamp = snapshotId;
+
         if(nodes instanceof ArrayList && !((ArrayList) nodes).isEmpty() && ((ArrayList) nodes).get(0) instanceof NodeStorage)
         {
             for (NodeStorage storage : (ArrayList<NodeStorage>) nodes)
@@ -244,7 +764,7 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
                 NodeStorage tempStorage = new NodeStorage(storage.getId(), storage.getProperties());
                 try
                 {
-                    tempStorage.addProperty("hash", HashCreator.sha1FromNode(storage));
+                    tempStorage.addProperty(Constants.TAG_HASH, HashCreator.hashFromNode(storage).toBytes());
                 }
                 catch (NoSuchAlgorithmException e)
                 {
@@ -261,7 +781,7 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
                 RelationshipStorage tempStorage = new RelationshipStorage(storage.getId(), storage.getProperties(), storage.getStartNode(), storage.getEndNode());
                 try
                 {
-                    tempStorage.addProperty("hash", HashCreator.sha1FromRelationship(storage));
+                    tempStorage.addProperty(Constants.TAG_HASH, HashCreator.hashFromRelationship(storage).toBytes());
                 }
                 catch (NoSuchAlgorithmException e)
                 {
@@ -274,7 +794,54 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
         input.close();
         pool.release(kryo);
     }
-    
+
+    /**
+     * Checks if a read result matches the digest the replicas agreed on.
+     * @param expectedDigest the agreed digest.
+     * @param snapshotId the received snapshotId.
+     * @param nodes the received nodes.
+     * @param relationships the received relationships.
+     * @return true if it matches.
+     */
+    private boolean matchesDigest(byte[] expectedDigest, long snapshotId, Object nodes, Object relationships)
+    {
+        if(!(nodes instanceof List) || !(relationships instanceof List))
+        {
+            return false;
+        }
+
+        //The result comes from a single replica, so the element types are checked before hashing it.
+        final List<NodeStorage> nodeList = new ArrayList<>();
+        for (final Object node : (List<?>) nodes)
+        {
+            if (!(node instanceof NodeStorage))
+            {
+                return false;
+            }
+            nodeList.add((NodeStorage) node);
+        }
+
+        final List<RelationshipStorage> relationshipList = new ArrayList<>();
+        for (final Object relationship : (List<?>) relationships)
+        {
+            if (!(relationship instanceof RelationshipStorage))
+            {
+                return false;
+            }
+            relationshipList.add((RelationshipStorage) relationship);
+        }
+
+        try
+        {
+            return Arrays.equals(expectedDigest, HashCreator.hashFromReadResult(snapshotId, nodeList, relationshipList));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't create digest of read result", e);
+            return false;
+        }
+    }
+
     /**
      * Commit reaches the server, if secure commit send to all, else only send to one
      */
@@ -291,10 +858,14 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
             resetSets();
             return;
         }
-        else
+        else if(commitBatcher == null)
         {
            result = invokeOrdered(bytes);
         }
+        else
+        {
+            result = commitBatcher.submit(bytes);
+        }
 
         KryoPool pool = new KryoPool.Builder(factory).softReferences().build();
         Kryo kryo = pool.borrow();
@@ -389,6 +960,16 @@ public class TestClient extends ServiceProxy implements ReplyReceiver, Closeable
         return bytes;
     }
 
+    @Override
+    public void close()
+    {
+        if(readMonitor != null)
+        {
+            readMonitor.shutdownNow();
+        }
+        super.close();
+    }
+
     /**
      * Resets all the read and write sets.
      */
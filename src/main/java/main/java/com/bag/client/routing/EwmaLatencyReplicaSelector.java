@@ -0,0 +1,53 @@
+package main.java.com.bag.client.routing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Sends the reads to the answering replicas with a probability inversely proportional to their average latency.
+ * Replicas without a latency sample are treated like the fastest one, so they get probed.
+ */
+public class EwmaLatencyReplicaSelector implements ReplicaSelector
+{
+    @Override
+    public int selectReplica(@NotNull final ReplicaStatistics statistics, @NotNull final int... excluded)
+    {
+        final int[] available = statistics.getAvailableReplicas(excluded);
+        if (available.length == 0)
+        {
+            return -1;
+        }
+
+        final double[] latencies = new double[available.length];
+        double fastest = Double.MAX_VALUE;
+        for (int i = 0; i < available.length; i++)
+        {
+            latencies[i] = statistics.getLatency(available[i]);
+            if (latencies[i] > 0 && latencies[i] < fastest)
+            {
+                fastest = latencies[i];
+            }
+        }
+
+        final double[] weights = new double[available.length];
+        double total = 0;
+        for (int i = 0; i < available.length; i++)
+        {
+            final double latency = latencies[i] > 0 ? latencies[i] : Math.min(fastest, Double.MAX_VALUE / 2);
+            weights[i] = 1.0 / Math.max(1.0, latency);
+            total += weights[i];
+        }
+
+        double point = ThreadLocalRandom.current().nextDouble() * total;
+        for (int i = 0; i < available.length; i++)
+        {
+            point -= weights[i];
+            if (point <= 0)
+            {
+                return available[i];
+            }
+        }
+        return available[available.length - 1];
+    }
+}
@@ -0,0 +1,27 @@
+package main.java.com.bag.client.routing;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Sends the reads to the answering replica with the least reads awaiting an answer.
+ */
+public class LeastOutstandingReplicaSelector implements ReplicaSelector
+{
+    @Override
+    public int selectReplica(@NotNull final ReplicaStatistics statistics, @NotNull final int... excluded)
+    {
+        int selected = -1;
+        int lowest = Integer.MAX_VALUE;
+
+        for (final int replica : statistics.getAvailableReplicas(excluded))
+        {
+            final int outstanding = statistics.getOutstanding(replica);
+            if (outstanding < lowest)
+            {
+                lowest = outstanding;
+                selected = replica;
+            }
+        }
+        return selected;
+    }
+}
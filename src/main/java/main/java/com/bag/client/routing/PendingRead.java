@@ -0,0 +1,137 @@
+package main.java.com.bag.client.routing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read which has been sent to one or more replicas and awaits its first answer.
+ */
+public class PendingRead
+{
+    /**
+     * The serialized read request.
+     */
+    private final byte[] request;
+
+    /**
+     * The replicas the read has been sent to with the nano time it has been sent, in sending order.
+     */
+    private final Map<Integer, Long> targets = new LinkedHashMap<>();
+
+    /**
+     * The replicas which didn't answer in time.
+     */
+    private final Set<Integer> timedOut = new HashSet<>();
+
+    /**
+     * The replica the read has been sent to last.
+     */
+    private int lastTarget = -1;
+
+    /**
+     * The replica the hedged copy of the read has been sent to, -1 if not hedged.
+     */
+    private int hedgeTarget = -1;
+
+    /**
+     * Creates a pending read.
+     * @param request the serialized read request.
+     */
+    public PendingRead(@NotNull final byte[] request)
+    {
+        this.request = request;
+    }
+
+    /**
+     * Getter of the request.
+     * @return the serialized read request.
+     */
+    @NotNull
+    public byte[] getRequest()
+    {
+        return request;
+    }
+
+    /**
+     * Registers that the read has been sent to a replica.
+     * @param replica the replica.
+     * @param sentAt the nano time it has been sent.
+     */
+    public synchronized void addTarget(final int replica, final long sentAt)
+    {
+        targets.put(replica, sentAt);
+        lastTarget = replica;
+    }
+
+    /**
+     * Getter of the replicas the read has been sent to.
+     * @return the replica ids in sending order.
+     */
+    @NotNull
+    public synchronized int[] getTargets()
+    {
+        return targets.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Getter of the time the read has been sent to a replica.
+     * @param replica the replica.
+     * @return the nano time or -1 if it hasn't been sent to the replica.
+     */
+    public synchronized long getSentAt(final int replica)
+    {
+        return targets.getOrDefault(replica, -1L);
+    }
+
+    /**
+     * Getter of the replica the read has been sent to last.
+     * @return the replica id.
+     */
+    public synchronized int getLastTarget()
+    {
+        return lastTarget;
+    }
+
+    /**
+     * Registers that a replica didn't answer in time.
+     * @param replica the replica.
+     */
+    public synchronized void markTimedOut(final int replica)
+    {
+        timedOut.add(replica);
+    }
+
+    /**
+     * Checks if a replica didn't answer in time.
+     * @param replica the replica.
+     * @return true if so.
+     */
+    public synchronized boolean isTimedOut(final int replica)
+    {
+        return timedOut.contains(replica);
+    }
+
+    /**
+     * Registers that a hedged copy of the read has been sent to a replica.
+     * @param replica the replica.
+     * @param sentAt the nano time it has been sent.
+     */
+    public synchronized void addHedgeTarget(final int replica, final long sentAt)
+    {
+        addTarget(replica, sentAt);
+        hedgeTarget = replica;
+    }
+
+    /**
+     * Getter of the replica the hedged copy of the read has been sent to.
+     * @return the replica id or -1 if not hedged.
+     */
+    public synchronized int getHedgeTarget()
+    {
+        return hedgeTarget;
+    }
+}
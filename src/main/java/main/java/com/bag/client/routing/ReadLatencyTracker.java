@@ -0,0 +1,81 @@
+package main.java.com.bag.client.routing;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent read latencies to estimate their percentiles.
+ */
+public class ReadLatencyTracker
+{
+    /**
+     * Amount of samples needed before percentiles are estimated.
+     */
+    private static final int MIN_SAMPLES = 16;
+
+    /**
+     * After this amount of new samples the sorted copy is refreshed.
+     */
+    private static final int REFRESH_INTERVAL = 64;
+
+    /**
+     * Ring buffer of the latest samples in nanoseconds.
+     */
+    private final long[] samples;
+
+    /**
+     * Total amount of samples recorded.
+     */
+    private long count = 0;
+
+    /**
+     * Sorted copy of the samples, refreshed every few samples.
+     */
+    private long[] sorted = new long[0];
+
+    /**
+     * Amount of samples when the sorted copy has been refreshed.
+     */
+    private long sortedAt = 0;
+
+    /**
+     * Creates a tracker.
+     * @param window the amount of recent samples to keep.
+     */
+    public ReadLatencyTracker(final int window)
+    {
+        this.samples = new long[Math.max(MIN_SAMPLES, window)];
+    }
+
+    /**
+     * Records the latency of a read.
+     * @param latencyNanos the latency in nanoseconds.
+     */
+    public synchronized void record(final long latencyNanos)
+    {
+        samples[(int) (count % samples.length)] = latencyNanos;
+        count++;
+    }
+
+    /**
+     * Estimates a percentile of the recent latencies.
+     * @param percentile the percentile, between 0 and 100.
+     * @return the latency in nanoseconds or -1 if there are not enough samples yet.
+     */
+    public synchronized long getPercentile(final double percentile)
+    {
+        if (count < MIN_SAMPLES)
+        {
+            return -1;
+        }
+
+        if (sorted.length == 0 || count - sortedAt >= REFRESH_INTERVAL)
+        {
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, samples.length));
+            Arrays.sort(sorted);
+            sortedAt = count;
+        }
+
+        final int index = (int) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -0,0 +1,18 @@
+package main.java.com.bag.client.routing;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Chooses the replica a read is sent to.
+ */
+@FunctionalInterface
+public interface ReplicaSelector
+{
+    /**
+     * Selects a replica.
+     * @param statistics the statistics of the replicas.
+     * @param excluded replicas which shouldn't be selected, for example because they already got the read.
+     * @return the replica id or -1 if all replicas are excluded.
+     */
+    int selectReplica(@NotNull final ReplicaStatistics statistics, @NotNull final int... excluded);
+}
@@ -0,0 +1,240 @@
+package main.java.com.bag.client.routing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the outstanding reads and the read latency of every replica.
+ */
+public class ReplicaStatistics
+{
+    /**
+     * Weight of a new latency sample in the moving average.
+     */
+    private static final double EWMA_ALPHA = 0.3;
+
+    /**
+     * The replicas reads may be sent to.
+     */
+    private final int[] replicas;
+
+    /**
+     * The state of every replica, by replica id.
+     */
+    private final Map<Integer, ReplicaState> states = new HashMap<>();
+
+    /**
+     * How long a replica which didn't answer in time is skipped.
+     */
+    private volatile long suspectNanos;
+
+    /**
+     * Creates the statistics for a set of replicas.
+     * @param replicas the replica ids.
+     * @param suspectMillis how long a replica which didn't answer in time is skipped.
+     */
+    public ReplicaStatistics(@NotNull final int[] replicas, final long suspectMillis)
+    {
+        this.replicas = replicas.clone();
+        this.suspectNanos = TimeUnit.MILLISECONDS.toNanos(suspectMillis);
+        for (final int replica : replicas)
+        {
+            states.put(replica, new ReplicaState());
+        }
+    }
+
+    /**
+     * Sets how long a replica which doesn't answer in time is skipped, applies to later timeouts.
+     * @param suspectMillis the time in milliseconds.
+     */
+    public void setSuspectTime(final long suspectMillis)
+    {
+        this.suspectNanos = TimeUnit.MILLISECONDS.toNanos(suspectMillis);
+    }
+
+    /**
+     * Getter of the replicas.
+     * @return a copy of the replica ids.
+     */
+    @NotNull
+    public int[] getReplicas()
+    {
+        return replicas.clone();
+    }
+
+    /**
+     * Returns the replicas which are currently answering, without the excluded ones.
+     * If no replica is answering, all replicas which aren't excluded are returned.
+     * @param excluded replicas which shouldn't be returned.
+     * @return the candidates, may be empty if all replicas are excluded.
+     */
+    @NotNull
+    public int[] getAvailableReplicas(@NotNull final int... excluded)
+    {
+        final long now = System.nanoTime();
+        int[] available = Arrays.stream(replicas).filter(replica -> !contains(excluded, replica) && !getState(replica).isSuspected(now)).toArray();
+        if (available.length == 0)
+        {
+            available = Arrays.stream(replicas).filter(replica -> !contains(excluded, replica)).toArray();
+        }
+        return available;
+    }
+
+    /**
+     * Called when a read has been sent to a replica.
+     * @param replica the replica.
+     */
+    public void readSent(final int replica)
+    {
+        final ReplicaState state = getState(replica);
+        synchronized (state)
+        {
+            state.outstanding++;
+        }
+    }
+
+    /**
+     * Called when a replica answered a read.
+     * @param replica the replica.
+     * @param latencyNanos the time it took the replica to answer.
+     */
+    public void readAnswered(final int replica, final long latencyNanos)
+    {
+        final ReplicaState state = getState(replica);
+        synchronized (state)
+        {
+            state.outstanding = Math.max(0, state.outstanding - 1);
+            state.addSample(latencyNanos);
+            state.suspectedUntil = 0;
+        }
+    }
+
+    /**
+     * Called when a read has been answered by another replica first, the reply of this replica isn't awaited anymore.
+     * @param replica the replica.
+     */
+    public void readAbandoned(final int replica)
+    {
+        final ReplicaState state = getState(replica);
+        synchronized (state)
+        {
+            state.outstanding = Math.max(0, state.outstanding - 1);
+        }
+    }
+
+    /**
+     * Called when a replica didn't answer a read in time, it will be skipped for a while.
+     * @param replica the replica.
+     * @param elapsedNanos the time waited for the answer.
+     */
+    public void readTimedOut(final int replica, final long elapsedNanos)
+    {
+        final ReplicaState state = getState(replica);
+        synchronized (state)
+        {
+            state.outstanding = Math.max(0, state.outstanding - 1);
+            state.addSample(elapsedNanos);
+            state.suspectedUntil = System.nanoTime() + suspectNanos;
+        }
+    }
+
+    /**
+     * Getter of the outstanding reads of a replica.
+     * @param replica the replica.
+     * @return the amount of reads awaiting an answer.
+     */
+    public int getOutstanding(final int replica)
+    {
+        final ReplicaState state = getState(replica);
+        synchronized (state)
+        {
+            return state.outstanding;
+        }
+    }
+
+    /**
+     * Getter of the moving average of the read latency of a replica.
+     * @param replica the replica.
+     * @return the latency in nanoseconds, 0 if no sample exists yet.
+     */
+    public double getLatency(final int replica)
+    {
+        final ReplicaState state = getState(replica);
+        synchronized (state)
+        {
+            return state.latency;
+        }
+    }
+
+    /**
+     * Gets the state of a replica, replicas which joined later are added on the fly.
+     * @param replica the replica.
+     * @return its state.
+     */
+    private synchronized ReplicaState getState(final int replica)
+    {
+        return states.computeIfAbsent(replica, key -> new ReplicaState());
+    }
+
+    /**
+     * Checks if an array contains a value.
+     * @param array the array.
+     * @param value the value.
+     * @return true if so.
+     */
+    private static boolean contains(final int[] array, final int value)
+    {
+        for (final int entry : array)
+        {
+            if (entry == value)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * State of a single replica.
+     */
+    private static class ReplicaState
+    {
+        /**
+         * Reads awaiting an answer.
+         */
+        private int outstanding = 0;
+
+        /**
+         * Moving average of the latency in nanoseconds.
+         */
+        private double latency = 0;
+
+        /**
+         * Nano time until the replica is skipped.
+         */
+        private long suspectedUntil = 0;
+
+        /**
+         * Adds a latency sample to the moving average.
+         * @param sample the sample in nanoseconds.
+         */
+        private void addSample(final long sample)
+        {
+            latency = latency == 0 ? sample : EWMA_ALPHA * sample + (1 - EWMA_ALPHA) * latency;
+        }
+
+        /**
+         * Checks if the replica is skipped at the moment.
+         * @param now the current nano time.
+         * @return true if so.
+         */
+        private synchronized boolean isSuspected(final long now)
+        {
+            return suspectedUntil != 0 && now - suspectedUntil < 0;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package main.java.com.bag.client.routing;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the reads to the answering replicas one after the other.
+ */
+public class RoundRobinReplicaSelector implements ReplicaSelector
+{
+    /**
+     * Counter of the selections.
+     */
+    private final AtomicInteger counter = new AtomicInteger();
+
+    @Override
+    public int selectReplica(@NotNull final ReplicaStatistics statistics, @NotNull final int... excluded)
+    {
+        final int[] available = statistics.getAvailableReplicas(excluded);
+        if (available.length == 0)
+        {
+            return -1;
+        }
+        return available[Math.floorMod(counter.getAndIncrement(), available.length)];
+    }
+}
@@ -1,6 +1,7 @@
 package main.java.com.bag.operations;
 
 import main.java.com.bag.server.database.interfaces.IDatabaseAccess;
+import main.java.com.bag.util.Constants;
 import main.java.com.bag.util.Log;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
@@ -24,6 +25,31 @@ public class CreateOperation<S extends Serializable> implements Operation, Seria
         this.storage = key;
     }
 
+    /**
+     * Getter of the storage.
+     * @return the created node or relationship.
+     */
+    public S getStorage()
+    {
+        return storage;
+    }
+
+    /**
+     * Assigns the stable id to the created node or relationship, replaces an id set by the client.
+     * @param elementId the id.
+     */
+    public void assignElementId(final long elementId)
+    {
+        if(storage instanceof NodeStorage)
+        {
+            ((NodeStorage) storage).addProperty(Constants.TAG_ID, elementId);
+        }
+        else if(storage instanceof RelationshipStorage)
+        {
+            ((RelationshipStorage) storage).addProperty(Constants.TAG_ID, elementId);
+        }
+    }
+
     @Override
     public void apply(final IDatabaseAccess access, long snapshotId)
     {
@@ -25,6 +25,15 @@ public class DeleteOperation<S extends Serializable> implements Operation, Seria
         this.storage = key;
     }
 
+    /**
+     * Getter of the storage.
+     * @return the deleted node or relationship.
+     */
+    public S getStorage()
+    {
+        return storage;
+    }
+
     @Override
     public void apply(@NotNull final IDatabaseAccess access, long snapshotId)
     {
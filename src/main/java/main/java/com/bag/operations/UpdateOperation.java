@@ -1,6 +1,7 @@
 package main.java.com.bag.operations;
 
 import main.java.com.bag.server.database.interfaces.IDatabaseAccess;
+import main.java.com.bag.util.Constants;
 import main.java.com.bag.util.Log;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
@@ -26,15 +27,36 @@ public class UpdateOperation<S extends Serializable> implements Operation, Seria
         this.value = value;
     }
 
+    /**
+     * Getter of the key.
+     * @return the node or relationship to update.
+     */
+    public S getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Getter of the value.
+     * @return the properties to set.
+     */
+    public S getValue()
+    {
+        return value;
+    }
+
     @Override
     public void apply(final IDatabaseAccess access, long snapshotId)
     {
+        //The id of an element never changes.
         if(key instanceof NodeStorage && value instanceof NodeStorage)
         {
+            ((NodeStorage) value).removeProperty(Constants.TAG_ID);
             access.applyUpdate((NodeStorage) key,(NodeStorage) value, snapshotId);
         }
         else if(key instanceof RelationshipStorage && value instanceof RelationshipStorage)
         {
+            ((RelationshipStorage) value).removeProperty(Constants.TAG_ID);
             access.applyUpdate((RelationshipStorage) key,(RelationshipStorage) value, snapshotId);
         }
         else
@@ -0,0 +1,16 @@
+package main.java.com.bag.server;
+
+/**
+ * Gives access to the nodes of a merkle tree, of the local replica or of a remote one.
+ */
+@FunctionalInterface
+public interface MerkleNodeSource
+{
+    /**
+     * Gets the hash of a node of the tree.
+     * @param level the level, 0 is the root.
+     * @param index the index inside the level.
+     * @return the hash, empty if there is no element below the node.
+     */
+    byte[] getNode(int level, int index);
+}
@@ -0,0 +1,386 @@
+package main.java.com.bag.server;
+
+import main.java.com.bag.server.database.interfaces.IHashListener;
+import main.java.com.bag.util.CanonicalEncoder;
+import main.java.com.bag.util.HashCreator;
+import main.java.com.bag.util.Hasher;
+import main.java.com.bag.util.Log;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Merkle tree over the stored hashes of all elements of a replica.
+ * The elements are spread over a fixed amount of leaves, first by label or type and then by the range of their
+ * element id. Consecutive id ranges go to consecutive leaves of the label and wrap around, so replicas can be compared
+ * label by label and id range by id range. Each leaf keeps an order independent sum of the hashes in it, so adding
+ * and removing an element only recomputes the path from its leaf to the root. Comparing the root of two replicas is
+ * O(1) and finding a divergent leaf takes one comparison per level.
+ */
+public class MerkleTree implements IHashListener, MerkleNodeSource
+{
+    /**
+     * Amount of 64 bit lanes of the sum in each leaf.
+     */
+    private static final int LANES = 4;
+
+    /**
+     * Hash of a node without elements below.
+     */
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Depth of the tree, it has 2^depth leaves.
+     */
+    private final int depth;
+
+    /**
+     * Amount of id ranges each label gets.
+     */
+    private final int ranges;
+
+    /**
+     * Amount of low bits of the element id inside one range, a range has 2^rangeBits ids.
+     */
+    private final int rangeBits;
+
+    /**
+     * The hashes of the tree as a binary heap, index 1 is the root, the leaves start at 2^depth.
+     */
+    private final byte[][] nodes;
+
+    /**
+     * Amount of elements in each leaf.
+     */
+    private final long[] counts;
+
+    /**
+     * Sum of the element hashes in each leaf, LANES longs per leaf.
+     */
+    private final long[] sums;
+
+    /**
+     * Snapshot id the tree represents.
+     */
+    private long snapshotId = 0;
+
+    /**
+     * True while the tree is filled with a scan of the store, the inner nodes are computed at the end.
+     */
+    private boolean bulkLoading = false;
+
+    /**
+     * Creates an empty tree.
+     * @param depth the depth, the tree has 2^depth leaves.
+     * @param ranges the amount of id ranges per label, a power of two not larger than the leaves.
+     * @param rangeBits the size of an id range as power of two, between 0 and 62.
+     */
+    public MerkleTree(final int depth, final int ranges, final int rangeBits)
+    {
+        if (depth < 1 || depth > 24 || Integer.bitCount(ranges) != 1 || ranges > (1 << depth) || rangeBits < 0 || rangeBits > 62)
+        {
+            throw new IllegalArgumentException("Invalid merkle tree shape, depth: " + depth + " ranges: " + ranges + " range bits: " + rangeBits);
+        }
+        this.depth = depth;
+        this.ranges = ranges;
+        this.rangeBits = rangeBits;
+        this.nodes = new byte[2 << depth][];
+        this.counts = new long[1 << depth];
+        this.sums = new long[LANES << depth];
+        Arrays.fill(nodes, EMPTY);
+    }
+
+    /**
+     * Getter of the depth.
+     * @return the depth, the tree has 2^depth leaves.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * Getter of the root hash.
+     * @return the root, empty if the store is empty.
+     */
+    public synchronized byte[] getRoot()
+    {
+        return nodes[1].clone();
+    }
+
+    @Override
+    public synchronized byte[] getNode(final int level, final int index)
+    {
+        if (level < 0 || level > depth || index < 0 || index >= (1 << level))
+        {
+            throw new IllegalArgumentException("No merkle node at level " + level + " index " + index);
+        }
+        return nodes[(1 << level) + index].clone();
+    }
+
+    /**
+     * Gets the amount of elements in a leaf.
+     * @param index the index of the leaf.
+     * @return the amount.
+     */
+    public synchronized long getLeafSize(final int index)
+    {
+        return counts[index];
+    }
+
+    /**
+     * Getter of the snapshot id the tree represents.
+     * @return the snapshot id.
+     */
+    public synchronized long getSnapshotId()
+    {
+        return snapshotId;
+    }
+
+    /**
+     * Setter of the snapshot id the tree represents, called after a write set has been applied.
+     * @param snapshotId the snapshot id.
+     */
+    public synchronized void setSnapshotId(final long snapshotId)
+    {
+        this.snapshotId = snapshotId;
+    }
+
+    /**
+     * Starts filling the tree with a scan of the store.
+     */
+    public synchronized void beginBulkLoad()
+    {
+        bulkLoading = true;
+    }
+
+    /**
+     * Ends filling the tree and computes all nodes once.
+     */
+    public synchronized void endBulkLoad()
+    {
+        bulkLoading = false;
+        final int leaves = 1 << depth;
+        for (int leaf = 0; leaf < leaves; leaf++)
+        {
+            nodes[leaves + leaf] = hashLeaf(leaf);
+        }
+        for (int node = leaves - 1; node >= 1; node--)
+        {
+            nodes[node] = hashInner(nodes[node * 2], nodes[node * 2 + 1]);
+        }
+    }
+
+    @Override
+    public synchronized void hashAdded(@NotNull final ElementType type, @NotNull final String label, final long elementId, @Nullable final Object hash)
+    {
+        update(type, label, elementId, hash, 1);
+    }
+
+    @Override
+    public synchronized void hashRemoved(@NotNull final ElementType type, @NotNull final String label, final long elementId, @Nullable final Object hash)
+    {
+        update(type, label, elementId, hash, -1);
+    }
+
+    /**
+     * Finds a leaf in which two trees of the same shape differ, descending from the root.
+     * @param first the first tree.
+     * @param second the second tree.
+     * @param depth the depth of both trees.
+     * @return the index of a divergent leaf or -1 if the roots are equal.
+     */
+    public static int locateDivergence(@NotNull final MerkleNodeSource first, @NotNull final MerkleNodeSource second, final int depth)
+    {
+        if (Arrays.equals(first.getNode(0, 0), second.getNode(0, 0)))
+        {
+            return -1;
+        }
+
+        int index = 0;
+        for (int level = 1; level <= depth; level++)
+        {
+            index *= 2;
+            if (Arrays.equals(first.getNode(level, index), second.getNode(level, index)))
+            {
+                index++;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Adds or subtracts an element hash from its leaf and recomputes the path to the root.
+     * @param type node or relationship.
+     * @param label the label or type.
+     * @param elementId the element id.
+     * @param hash the stored hash.
+     * @param sign 1 to add, -1 to remove.
+     */
+    private void update(final ElementType type, final String label, final long elementId, final Object hash, final int sign)
+    {
+        final byte[] bytes = toBytes(hash);
+        if (bytes == null)
+        {
+            return;
+        }
+
+        final int leaf = getLeaf(type, label, elementId);
+        counts[leaf] += sign;
+        for (int lane = 0; lane < LANES; lane++)
+        {
+            long value = 0;
+            for (int i = 0; i < 8; i++)
+            {
+                final int position = lane * 8 + i;
+                value = (value << 8) | (position < bytes.length ? bytes[position] & 0xffL : 0);
+            }
+            sums[leaf * LANES + lane] += sign * value;
+        }
+
+        if (bulkLoading)
+        {
+            return;
+        }
+
+        int node = (1 << depth) + leaf;
+        nodes[node] = hashLeaf(leaf);
+        while (node > 1)
+        {
+            node /= 2;
+            nodes[node] = hashInner(nodes[node * 2], nodes[node * 2 + 1]);
+        }
+    }
+
+    /**
+     * Gets the leaf of an element, the label picks a group of leaves and the range of the id a leaf inside it.
+     * Imported elements have negative ids, their ranges wrap around from the last leaf of the group downwards.
+     * @param type node or relationship.
+     * @param label the label or type.
+     * @param elementId the element id.
+     * @return the leaf index.
+     */
+    private int getLeaf(final ElementType type, final String label, final long elementId)
+    {
+        final int labelGroups = (1 << depth) / ranges;
+        int labelHash = 31 * type.ordinal() + label.hashCode();
+        labelHash ^= labelHash >>> 16;
+        labelHash *= 0x85ebca6b;
+        labelHash ^= labelHash >>> 13;
+
+        final int range = (int) Math.floorMod(elementId >> rangeBits, (long) ranges);
+        return Math.floorMod(labelHash, labelGroups) * ranges + range;
+    }
+
+    /**
+     * Hashes the sum of a leaf.
+     * @param leaf the leaf index.
+     * @return the hash, empty if the leaf has no elements.
+     */
+    private byte[] hashLeaf(final int leaf)
+    {
+        if (counts[leaf] == 0 && isZeroSum(leaf))
+        {
+            return EMPTY;
+        }
+
+        try
+        {
+            final Hasher hasher = HashCreator.getProvider().getHasher();
+            final CanonicalEncoder encoder = hasher.getEncoder();
+            encoder.writeLong(counts[leaf]);
+            for (int lane = 0; lane < LANES; lane++)
+            {
+                encoder.writeLong(sums[leaf * LANES + lane]);
+            }
+            return hasher.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't hash merkle leaf", e);
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Hashes two children.
+     * @param left the left child.
+     * @param right the right child.
+     * @return the hash, empty if both children are empty.
+     */
+    private static byte[] hashInner(final byte[] left, final byte[] right)
+    {
+        if (left.length == 0 && right.length == 0)
+        {
+            return EMPTY;
+        }
+
+        try
+        {
+            final Hasher hasher = HashCreator.getProvider().getHasher();
+            hasher.getEncoder().writeValue(left).writeValue(right);
+            return hasher.digest();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't hash merkle node", e);
+            return EMPTY;
+        }
+    }
+
+    /**
+     * Checks if the sum of a leaf is zero.
+     * @param leaf the leaf index.
+     * @return true if so.
+     */
+    private boolean isZeroSum(final int leaf)
+    {
+        for (int lane = 0; lane < LANES; lane++)
+        {
+            if (sums[leaf * LANES + lane] != 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Converts a stored hash to bytes, hex strings of older stores are decoded.
+     * @param hash the stored hash.
+     * @return the bytes or null if there is no hash.
+     */
+    @Nullable
+    private static byte[] toBytes(@Nullable final Object hash)
+    {
+        if (hash instanceof byte[])
+        {
+            return (byte[]) hash;
+        }
+        if (!(hash instanceof String))
+        {
+            return null;
+        }
+
+        final String hex = (String) hash;
+        if (hex.length() % 2 != 0)
+        {
+            return hex.getBytes(StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            final int high = Character.digit(hex.charAt(i * 2), 16);
+            final int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0)
+            {
+                return hex.getBytes(StandardCharsets.UTF_8);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
@@ -14,16 +14,20 @@ import main.java.com.bag.operations.CreateOperation;
 import main.java.com.bag.operations.DeleteOperation;
 import main.java.com.bag.operations.Operation;
 import main.java.com.bag.operations.UpdateOperation;
+import main.java.com.bag.server.database.IndexUsage;
 import main.java.com.bag.server.database.SparkseeDatabaseAccess;
 import main.java.com.bag.server.database.Neo4jDatabaseAccess;
 import main.java.com.bag.server.database.OrientDBDatabaseAccess;
 import main.java.com.bag.server.database.TitanDatabaseAccess;
 import main.java.com.bag.server.database.interfaces.IDatabaseAccess;
 import main.java.com.bag.util.*;
+import main.java.com.bag.util.storage.CompactProperties;
+import main.java.com.bag.util.storage.CompactPropertiesSerializer;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
 import main.java.com.bag.util.storage.TransactionStorage;
 
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
 /**
@@ -62,10 +66,16 @@ public class TestServer extends DefaultRecoverable
      */
     private HashMap<Long, List<Operation>> globalWriteSet;
 
+    /**
+     * Merkle tree over the hashes of all elements in the database.
+     */
+    private MerkleTree merkleTree;
+
     private KryoFactory factory = () ->
     {
         Kryo kryo = new Kryo();
         kryo.register(NodeStorage.class, 100);
+        kryo.register(CompactProperties.class, new CompactPropertiesSerializer(), 150);
         kryo.register(RelationshipStorage.class, 200);
         kryo.register(CreateOperation.class, 250);
         kryo.register(DeleteOperation.class, 300);
@@ -93,6 +103,21 @@ public class TestServer extends DefaultRecoverable
         instantiateDBAccess(instance);
 
         databaseAccess.start();
+        initMerkleTree();
+    }
+
+    /**
+     * Builds the merkle tree from the hashes in the database and keeps it updated from then on.
+     */
+    private void initMerkleTree()
+    {
+        merkleTree = new MerkleTree(BagConfiguration.getInt("merkle.depth", 12), BagConfiguration.getInt("merkle.ranges", 16),
+                BagConfiguration.getInt("merkle.range.bits", 20));
+        merkleTree.beginBulkLoad();
+        databaseAccess.scanHashes(merkleTree);
+        merkleTree.endBulkLoad();
+        merkleTree.setSnapshotId(globalSnapshotId);
+        databaseAccess.setHashListener(merkleTree);
     }
 
     /**
@@ -152,6 +177,7 @@ public class TestServer extends DefaultRecoverable
         this.id = kryo.readObject(input, Integer.class);
         String instance = kryo.readObject(input, String.class);
         instantiateDBAccess(instance);
+        initMerkleTree();
 
         this.replica = new ServiceReplica(id, this, this);
         this.replica.setReplyController(new DefaultReplier());
@@ -221,8 +247,10 @@ public class TestServer extends DefaultRecoverable
     @Override
     public byte[][] appExecuteBatch(final byte[][] bytes, final MessageContext[] messageContexts)
     {
+        byte[][] allResults = new byte[bytes.length][];
         for(int i = 0; i < bytes.length; ++i)
         {
+            allResults[i] = new byte[0];
             if(messageContexts != null && messageContexts[i] != null)
             {
                 KryoPool pool = new KryoPool.Builder(factory).softReferences().build();
@@ -233,13 +261,102 @@ public class TestServer extends DefaultRecoverable
 
                 if(Constants.COMMIT_MESSAGE.equals(type))
                 {
-                    return executeCommit(kryo, input);
+                    byte[][] result = executeCommit(kryo, input);
+                    if(result.length > 0)
+                    {
+                        allResults[i] = result[0];
+                    }
                 }
+                else if(Constants.BATCH_COMMIT_MESSAGE.equals(type))
+                {
+                    allResults[i] = executeBatchCommit(kryo, input);
+                }
+                else if(Constants.INDEX_MESSAGE.equals(type))
+                {
+                    allResults[i] = executeCreateIndex(kryo, input);
+                }
+                pool.release(kryo);
             }
         }
-        return new byte[0][];
+        return allResults;
     }
 
+    /**
+     * Executes a batch of commits sent by the client in one ordered request.
+     * Every commit is checked and applied in the order it was batched.
+     * @param kryo the kryo object.
+     * @param input the input containing the commits.
+     * @return one commit response for each commit of the batch.
+     */
+    private byte[] executeBatchCommit(Kryo kryo, Input input)
+    {
+        int size = kryo.readObject(input, Integer.class);
+
+        Output output = new Output(0, -1);
+        output.writeString(Constants.BATCH_COMMIT_RESPONSE);
+        output.writeInt(size);
+
+        for(int i = 0; i < size; i++)
+        {
+            byte[] commit = kryo.readObject(input, byte[].class);
+            Input commitInput = new Input(commit);
+            byte[] response = new byte[0];
+
+            if(Constants.COMMIT_MESSAGE.equals(kryo.readObject(commitInput, String.class)))
+            {
+                byte[][] result = executeCommit(kryo, commitInput);
+                if(result.length > 0)
+                {
+                    response = result[0];
+                }
+            }
+            else
+            {
+                Log.getLogger().warn("Received batch containing a non commit message");
+                commitInput.close();
+            }
+
+            output.writeInt(response.length);
+            output.writeBytes(response);
+        }
+        input.close();
+
+        byte[] returnBytes = output.toBytes();
+        output.close();
+        Log.getLogger().info("Executed batch of " + size + " commits");
+        return returnBytes;
+    }
+
+
+    /**
+     * Creates the indexes an admin requested, ordered so all replicas create the same indexes at the same point.
+     * @param kryo the kryo object.
+     * @param input the input containing the amount of indexes and the label and property key of each.
+     * @return the response containing the amount of indexes which exist afterwards.
+     */
+    private byte[] executeCreateIndex(Kryo kryo, Input input)
+    {
+        int size = kryo.readObject(input, Integer.class);
+        int created = 0;
+        for(int i = 0; i < size; i++)
+        {
+            String label = kryo.readObject(input, String.class);
+            String key = kryo.readObject(input, String.class);
+            if(databaseAccess.createIndex(label, key))
+            {
+                created++;
+            }
+        }
+        input.close();
+
+        Output output = new Output(0, -1);
+        output.writeString(Constants.INDEX_RESPONSE);
+        output.writeInt(created);
+        byte[] returnBytes = output.toBytes();
+        output.close();
+        Log.getLogger().info("Created " + created + " of " + size + " requested indexes");
+        return returnBytes;
+    }
 
     public byte[][] executeCommit(Kryo kryo, Input input)
     {
@@ -282,13 +399,31 @@ public class TestServer extends DefaultRecoverable
             return returnBytes;
         }
 
+        if (localWriteSet.stream().filter(op -> op instanceof CreateOperation).count() > ElementIds.MAX_CREATES_PER_COMMIT)
+        {
+            Log.getLogger().warn("Too many creates in one commit, returning abort");
+            output.writeString(Constants.ABORT);
+            byte[][] returnBytes = {output.toBytes()};
+            output.close();
+            return returnBytes;
+        }
+
         globalSnapshotId+=1;
-        //Execute the transaction.
+        //Created elements get their id from the snapshotId and their position.
+        int createSequence = 0;
         for(Operation op: localWriteSet)
         {
-            op.apply(databaseAccess, globalSnapshotId);
+            if(op instanceof CreateOperation)
+            {
+                ((CreateOperation<?>) op).assignElementId(ElementIds.create(globalSnapshotId, createSequence++));
+            }
         }
 
+        //Execute the transaction.
+        databaseAccess.applyWriteSet(localWriteSet, globalSnapshotId);
+
+        merkleTree.setSnapshotId(globalSnapshotId);
+
         //Store the write set.
         this.globalWriteSet.put(globalSnapshotId, localWriteSet);
         output.writeString(Constants.COMMIT);
@@ -317,6 +452,15 @@ public class TestServer extends DefaultRecoverable
             case Constants.RELATIONSHIP_READ_MESSAGE:
                 output = handleRelationshipRead(input, messageContext, kryo, output);
                 break;
+            case Constants.BFT_READ_MESSAGE:
+                output = handleBftRead(input, messageContext, kryo, output);
+                break;
+            case Constants.MERKLE_MESSAGE:
+                output = handleMerkleRead(input, kryo, output);
+                break;
+            case Constants.INDEX_USAGE_MESSAGE:
+                output = handleIndexUsage(input, output);
+                break;
             default:
                 Log.getLogger().warn("Incorrect operation sent unordered to the server");
                 output.close();
@@ -334,6 +478,142 @@ public class TestServer extends DefaultRecoverable
         return returnValue;
     }
 
+    /**
+     * Handles a request for the usage counters of the label and property key pairs looked up in this replica.
+     * Returns the amount of pairs and for each the label, key, if it is indexed, the lookups,
+     * the lookups of ordered requests and the lookups answered by an index.
+     * @param input get info from.
+     * @param output write info to.
+     * @return output object to return to client.
+     */
+    private Output handleIndexUsage(final Input input, final Output output)
+    {
+        input.close();
+        List<IndexUsage> usages = databaseAccess.getIndexUsage();
+
+        output.writeString(Constants.INDEX_USAGE_RESPONSE);
+        output.writeInt(usages.size());
+        for(IndexUsage usage : usages)
+        {
+            output.writeString(usage.getLabel());
+            output.writeString(usage.getKey());
+            output.writeBoolean(usage.isIndexed());
+            output.writeLong(usage.getLookups());
+            output.writeLong(usage.getOrderedLookups());
+            output.writeLong(usage.getIndexedLookups());
+        }
+        return output;
+    }
+
+    /**
+     * Handles a request for a node of the merkle tree, used to audit the replicas.
+     * Returns the snapshotId, the depth, the hash of the node and the hashes of its two children,
+     * or the amount of elements if the node is a leaf.
+     * @param input get info from.
+     * @param kryo kryo object.
+     * @param output write info to.
+     * @return output object to return to client.
+     */
+    private Output handleMerkleRead(final Input input, final Kryo kryo, final Output output)
+    {
+        int level = kryo.readObject(input, Integer.class);
+        int index = kryo.readObject(input, Integer.class);
+        input.close();
+
+        int depth = merkleTree.getDepth();
+        if(level < 0 || level > depth || index < 0 || index >= (1 << level))
+        {
+            Log.getLogger().warn("Received request for invalid merkle node " + level + "/" + index);
+            output.writeString(Constants.MERKLE_RESPONSE);
+            output.writeLong(-1);
+            return output;
+        }
+
+        synchronized (merkleTree)
+        {
+            output.writeString(Constants.MERKLE_RESPONSE);
+            output.writeLong(merkleTree.getSnapshotId());
+            output.writeInt(depth);
+            writeHash(output, merkleTree.getNode(level, index));
+            if(level < depth)
+            {
+                writeHash(output, merkleTree.getNode(level + 1, index * 2));
+                writeHash(output, merkleTree.getNode(level + 1, index * 2 + 1));
+            }
+            else
+            {
+                output.writeLong(merkleTree.getLeafSize(index));
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Writes a length prefixed hash.
+     * @param output the output.
+     * @param hash the hash.
+     */
+    private static void writeHash(final Output output, final byte[] hash)
+    {
+        output.writeInt(hash.length);
+        output.writeBytes(hash);
+    }
+
+    /**
+     * Handles a read sent to all replicas.
+     * Only the designated replica returns the full result, all replicas return the digest of it.
+     * @param input get info from.
+     * @param messageContext additional context.
+     * @param kryo kryo object.
+     * @param output write info to.
+     * @return output object to return to client.
+     */
+    private Output handleBftRead(final Input input, final MessageContext messageContext, final Kryo kryo, final Output output)
+    {
+        int designatedReplica = kryo.readObject(input, Integer.class);
+        byte[] request = kryo.readObject(input, byte[].class);
+        input.close();
+
+        byte[] result = appExecuteUnordered(request, messageContext);
+        if(result.length == 0)
+        {
+            output.writeString(Constants.BFT_READ_DIGEST_RESPONSE);
+            output.writeInt(0);
+            return output;
+        }
+
+        Input resultInput = new Input(result);
+        long snapshotId = kryo.readObject(resultInput, Long.class);
+        //Both lists were written by the unordered read of this replica just before.
+        @SuppressWarnings("unchecked")
+        List<NodeStorage> nodes = (List<NodeStorage>) kryo.readClassAndObject(resultInput);
+        @SuppressWarnings("unchecked")
+        List<RelationshipStorage> relationships = (List<RelationshipStorage>) kryo.readClassAndObject(resultInput);
+        resultInput.close();
+
+        byte[] digest;
+        try
+        {
+            digest = HashCreator.hashFromReadResult(snapshotId, nodes, relationships);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't create digest of read result", e);
+            digest = new byte[0];
+        }
+
+        boolean full = designatedReplica == id;
+        output.writeString(full ? Constants.BFT_READ_FULL_RESPONSE : Constants.BFT_READ_DIGEST_RESPONSE);
+        output.writeInt(digest.length);
+        output.writeBytes(digest);
+        if(full)
+        {
+            output.writeInt(result.length);
+            output.writeBytes(result);
+        }
+        return output;
+    }
+
     /**
      * Handles the relationship read message and requests it to the database.
      * @param input get info from.
@@ -0,0 +1,395 @@
+package main.java.com.bag.server.database;
+
+import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.storage.CompactProperties;
+import main.java.com.bag.util.storage.NodeStorage;
+import main.java.com.bag.util.storage.RelationshipStorage;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of parameterized cypher queries by the shape of their pattern.
+ * The shape is the kind of query, the labels and the sorted property keys. All values are passed as the params
+ * {p0}, {p1}, ... in the order start node, relationship, end node. Equal shapes therefore share one query text,
+ * which is built once and hits the plan cache of neo4j.
+ * The batch kinds unwind the param rows, each row is a map with the same positional params and the written
+ * properties as props.
+ */
+class CypherQueryCache
+{
+    /**
+     * The kinds of queries.
+     */
+    enum Kind
+    {
+        MATCH_NODE(false),
+        MATCH_RELATIONSHIP(false),
+        CREATE_RELATIONSHIP(false),
+        DELETE_RELATIONSHIP(false),
+        CREATE_NODES(true),
+        UPDATE_NODES(true),
+        DELETE_NODES(true),
+        CREATE_RELATIONSHIPS(true),
+        UPDATE_RELATIONSHIPS(true),
+        DELETE_RELATIONSHIPS(true);
+
+        /**
+         * True if the query unwinds the param rows.
+         */
+        private final boolean batch;
+
+        Kind(final boolean batch)
+        {
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * Param holding the rows of a batch query.
+     */
+    static final String ROWS = "rows";
+
+    /**
+     * Key of the written properties in a row of a batch query.
+     */
+    static final String PROPS = "props";
+
+    /**
+     * Amount of shapes after which the cache is cleared, protects against clients sending arbitrary keys.
+     */
+    private static final int MAX_SHAPES = 4096;
+
+    /**
+     * Prefix of the params.
+     */
+    private static final String PARAM = "p";
+
+    /**
+     * The query texts by shape.
+     */
+    private final Map<Shape, String> queries = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the query matching a node, it returns the node as n.
+     * @param nodeStorage the node.
+     * @return the query text.
+     */
+    String getNodeQuery(@NotNull final NodeStorage nodeStorage)
+    {
+        return getNodeQuery(Kind.MATCH_NODE, nodeStorage);
+    }
+
+    /**
+     * Gets a query on a node.
+     * @param kind the kind of node query.
+     * @param nodeStorage the node.
+     * @return the query text.
+     */
+    String getNodeQuery(@NotNull final Kind kind, @NotNull final NodeStorage nodeStorage)
+    {
+        final CompactProperties properties = kind == Kind.CREATE_NODES ? CompactProperties.EMPTY : nodeStorage.getMatchProperties();
+        final Shape shape = new Shape(kind, nodeStorage.getId(), properties, "", CompactProperties.EMPTY, "", CompactProperties.EMPTY);
+        return get(shape);
+    }
+
+    /**
+     * Gets a query on a relationship and its start and end node.
+     * @param kind the kind of relationship query.
+     * @param relationshipStorage the relationship.
+     * @param properties the properties of the relationship in the pattern.
+     * @return the query text.
+     */
+    String getRelationshipQuery(@NotNull final Kind kind, @NotNull final RelationshipStorage relationshipStorage, @NotNull final CompactProperties properties)
+    {
+        final NodeStorage start = relationshipStorage.getStartNode();
+        final NodeStorage end = relationshipStorage.getEndNode();
+        final Shape shape = new Shape(kind, start.getId(), start.getMatchProperties(), relationshipStorage.getId(), properties, end.getId(), end.getMatchProperties());
+        return get(shape);
+    }
+
+    /**
+     * Gets the params of a node query.
+     * @param nodeStorage the node.
+     * @return the params.
+     */
+    static Map<String, Object> getNodeParams(@NotNull final NodeStorage nodeStorage)
+    {
+        final CompactProperties properties = nodeStorage.getMatchProperties();
+        final Map<String, Object> params = new HashMap<>(properties.size() * 2);
+        addParams(params, properties, 0);
+        return params;
+    }
+
+    /**
+     * Gets the params of a relationship query.
+     * @param relationshipStorage the relationship.
+     * @param properties the properties of the relationship in the pattern.
+     * @return the params.
+     */
+    static Map<String, Object> getRelationshipParams(@NotNull final RelationshipStorage relationshipStorage, @NotNull final CompactProperties properties)
+    {
+        final CompactProperties start = relationshipStorage.getStartNode().getMatchProperties();
+        final CompactProperties end = relationshipStorage.getEndNode().getMatchProperties();
+        final Map<String, Object> params = new HashMap<>((start.size() + properties.size() + end.size()) * 2);
+        int offset = addParams(params, start, 0);
+        offset = addParams(params, properties, offset);
+        addParams(params, end, offset);
+        return params;
+    }
+
+    /**
+     * Adds the values of properties as positional params.
+     * @param params the params to add to.
+     * @param properties the properties.
+     * @param offset the position of the first value.
+     * @return the position after the last value.
+     */
+    private static int addParams(final Map<String, Object> params, final CompactProperties properties, final int offset)
+    {
+        for (int i = 0; i < properties.size(); i++)
+        {
+            params.put(PARAM + (offset + i), properties.getValue(i));
+        }
+        return offset + properties.size();
+    }
+
+    /**
+     * Gets the query of a shape and builds it on the first use.
+     * @param shape the shape.
+     * @return the query text.
+     */
+    private String get(final Shape shape)
+    {
+        final String query = queries.get(shape);
+        if (query != null)
+        {
+            return query;
+        }
+
+        if (queries.size() >= MAX_SHAPES)
+        {
+            queries.clear();
+        }
+        final String built = build(shape);
+        queries.put(shape, built);
+        return built;
+    }
+
+    /**
+     * Builds the query text of a shape.
+     * @param shape the shape.
+     * @return the query text.
+     */
+    private static String build(final Shape shape)
+    {
+        final boolean batch = shape.kind.batch;
+        final StringBuilder builder = new StringBuilder(batch ? "UNWIND {" + ROWS + "} AS row " : "");
+
+        switch (shape.kind)
+        {
+            case CREATE_NODES:
+                builder.append("CREATE ");
+                appendNode(builder, "n", shape.labels[0], shape.keys[0], 0, true);
+                return builder.append(" SET n = row.").append(PROPS).toString();
+            case MATCH_NODE:
+            case UPDATE_NODES:
+            case DELETE_NODES:
+                builder.append("MATCH ");
+                appendNode(builder, "n", shape.labels[0], shape.keys[0], 0, batch);
+                if (shape.kind == Kind.UPDATE_NODES)
+                {
+                    return builder.append(" SET n += row.").append(PROPS).append(" RETURN n").toString();
+                }
+                return builder.append(shape.kind == Kind.DELETE_NODES ? " RETURN DISTINCT n" : " RETURN n").toString();
+            default:
+                break;
+        }
+
+        final int relationshipOffset = shape.keys[0].length;
+        final int endOffset = relationshipOffset + shape.keys[1].length;
+
+        builder.append("MATCH ");
+        appendNode(builder, "n1", shape.labels[0], shape.keys[0], 0, batch);
+        if (shape.kind == Kind.CREATE_RELATIONSHIP || shape.kind == Kind.CREATE_RELATIONSHIPS)
+        {
+            builder.append(", ");
+            appendNode(builder, "n2", shape.labels[2], shape.keys[2], endOffset, batch);
+            builder.append(" CREATE (n1)");
+            appendRelationship(builder, shape.labels[1], shape.keys[1], relationshipOffset, batch);
+            builder.append("(n2)");
+            if (batch)
+            {
+                builder.append(" SET r = row.").append(PROPS);
+            }
+            return builder.append(" RETURN r").toString();
+        }
+
+        appendRelationship(builder, shape.labels[1], shape.keys[1], relationshipOffset, batch);
+        appendNode(builder, "n2", shape.labels[2], shape.keys[2], endOffset, batch);
+
+        switch (shape.kind)
+        {
+            case DELETE_RELATIONSHIP:
+            case DELETE_RELATIONSHIPS:
+                return builder.append(" WITH DISTINCT r WITH r, type(r) AS type, r.").append(escape(Constants.TAG_ID))
+                        .append(" AS id, r.").append(escape(Constants.TAG_HASH)).append(" AS hash DELETE r RETURN type, id, hash").toString();
+            case UPDATE_RELATIONSHIPS:
+                return builder.append(" SET r += row.").append(PROPS).append(" RETURN r").toString();
+            default:
+                return builder.append(" RETURN r").toString();
+        }
+    }
+
+    /**
+     * Appends a node pattern.
+     * @param builder the builder.
+     * @param variable the variable of the node.
+     * @param label the label, empty if any.
+     * @param keys the property keys.
+     * @param offset the position of the first param.
+     * @param batch true if the params are read from the row.
+     */
+    private static void appendNode(final StringBuilder builder, final String variable, final String label, final String[] keys, final int offset, final boolean batch)
+    {
+        builder.append('(').append(variable);
+        appendLabel(builder, label);
+        appendProperties(builder, keys, offset, batch);
+        builder.append(')');
+    }
+
+    /**
+     * Appends an outgoing relationship pattern, the relationship is r.
+     * @param builder the builder.
+     * @param type the type, empty if any.
+     * @param keys the property keys.
+     * @param offset the position of the first param.
+     * @param batch true if the params are read from the row.
+     */
+    private static void appendRelationship(final StringBuilder builder, final String type, final String[] keys, final int offset, final boolean batch)
+    {
+        builder.append("-[r");
+        appendLabel(builder, type);
+        appendProperties(builder, keys, offset, batch);
+        builder.append("]->");
+    }
+
+    /**
+     * Appends a label or type if not empty.
+     * @param builder the builder.
+     * @param label the label.
+     */
+    private static void appendLabel(final StringBuilder builder, final String label)
+    {
+        if (!label.isEmpty())
+        {
+            builder.append(':').append(escape(label));
+        }
+    }
+
+    /**
+     * Appends a property map with positional params.
+     * @param builder the builder.
+     * @param keys the keys.
+     * @param offset the position of the first param.
+     * @param batch true if the params are read from the row.
+     */
+    private static void appendProperties(final StringBuilder builder, final String[] keys, final int offset, final boolean batch)
+    {
+        if (keys.length == 0)
+        {
+            return;
+        }
+
+        builder.append(" {");
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (i > 0)
+            {
+                builder.append(", ");
+            }
+            builder.append(escape(keys[i])).append(": ");
+            if (batch)
+            {
+                builder.append("row.").append(PARAM).append(offset + i);
+            }
+            else
+            {
+                builder.append('{').append(PARAM).append(offset + i).append('}');
+            }
+        }
+        builder.append('}');
+    }
+
+    /**
+     * Quotes an identifier with backticks, so labels and keys can't change the query.
+     * @param identifier the identifier.
+     * @return the quoted identifier.
+     */
+    private static String escape(final String identifier)
+    {
+        return '`' + identifier.replace("`", "``") + '`';
+    }
+
+    /**
+     * Shape of a query, the labels and keys of start node, relationship and end node.
+     */
+    private static final class Shape
+    {
+        private final Kind       kind;
+        private final String[]   labels;
+        private final String[][] keys;
+        private final int        hash;
+
+        private Shape(
+                final Kind kind,
+                final String startLabel, final CompactProperties startProperties,
+                final String label, final CompactProperties properties,
+                final String endLabel, final CompactProperties endProperties)
+        {
+            this.kind = kind;
+            this.labels = new String[] {startLabel, label, endLabel};
+            this.keys = new String[][] {getKeys(startProperties), getKeys(properties), getKeys(endProperties)};
+            this.hash = 31 * (31 * kind.ordinal() + Arrays.hashCode(labels)) + Arrays.deepHashCode(keys);
+        }
+
+        /**
+         * Gets the sorted keys of properties.
+         * @param properties the properties.
+         * @return the keys.
+         */
+        private static String[] getKeys(final CompactProperties properties)
+        {
+            final String[] keys = new String[properties.size()];
+            for (int i = 0; i < keys.length; i++)
+            {
+                keys[i] = properties.getKey(i);
+            }
+            return keys;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof Shape))
+            {
+                return false;
+            }
+            final Shape other = (Shape) o;
+            return kind == other.kind && hash == other.hash && Arrays.equals(labels, other.labels) && Arrays.deepEquals(keys, other.keys);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package main.java.com.bag.server.database;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Usage counters of a label and property key pair in the lookups of a database.
+ * Lookups done while executing ordered requests are counted apart, they are the same on all replicas
+ * which executed the same requests and may therefore trigger the creation of an index.
+ */
+public class IndexUsage
+{
+    /**
+     * The label or type.
+     */
+    private final String label;
+
+    /**
+     * The property key.
+     */
+    private final String key;
+
+    /**
+     * True if the database has an index on the pair.
+     */
+    private volatile boolean indexed = false;
+
+    /**
+     * Amount of lookups matching on the pair.
+     */
+    private final AtomicLong lookups = new AtomicLong();
+
+    /**
+     * Amount of lookups matching on the pair while executing ordered requests.
+     */
+    private final AtomicLong orderedLookups = new AtomicLong();
+
+    /**
+     * Amount of lookups which were answered by the index.
+     */
+    private final AtomicLong indexedLookups = new AtomicLong();
+
+    /**
+     * Creates the counters of a pair.
+     * @param label the label or type.
+     * @param key the property key.
+     */
+    public IndexUsage(@NotNull final String label, @NotNull final String key)
+    {
+        this.label = label;
+        this.key = key;
+    }
+
+    /**
+     * Counts a lookup matching on the pair.
+     * @param ordered true if executed for an ordered request.
+     * @param usedIndex true if the index answered it.
+     * @return the amount of ordered lookups, or -1 if not ordered.
+     */
+    public long recordLookup(final boolean ordered, final boolean usedIndex)
+    {
+        lookups.incrementAndGet();
+        if (usedIndex)
+        {
+            indexedLookups.incrementAndGet();
+        }
+        return ordered ? orderedLookups.incrementAndGet() : -1;
+    }
+
+    /**
+     * Getter of the label.
+     * @return the label or type.
+     */
+    public String getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * Getter of the key.
+     * @return the property key.
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+    /**
+     * Checks if the pair is indexed.
+     * @return true if so.
+     */
+    public boolean isIndexed()
+    {
+        return indexed;
+    }
+
+    /**
+     * Setter of the index state.
+     * @param indexed true if the database has an index on the pair.
+     */
+    public void setIndexed(final boolean indexed)
+    {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Getter of the lookups.
+     * @return the amount of lookups matching on the pair.
+     */
+    public long getLookups()
+    {
+        return lookups.get();
+    }
+
+    /**
+     * Getter of the ordered lookups.
+     * @return the amount of lookups matching on the pair while executing ordered requests.
+     */
+    public long getOrderedLookups()
+    {
+        return orderedLookups.get();
+    }
+
+    /**
+     * Getter of the indexed lookups.
+     * @return the amount of lookups answered by the index.
+     */
+    public long getIndexedLookups()
+    {
+        return indexedLookups.get();
+    }
+
+    @Override
+    public String toString()
+    {
+        return label + "." + key + (indexed ? " (indexed)" : "") + " lookups: " + getLookups() + " ordered: " + getOrderedLookups()
+                + " indexed: " + getIndexedLookups();
+    }
+}
@@ -0,0 +1,358 @@
+package main.java.com.bag.server.database;
+
+import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.ElementIds;
+import main.java.com.bag.util.HashCreator;
+import main.java.com.bag.util.Log;
+import main.java.com.bag.util.storage.CompactProperties;
+import main.java.com.bag.util.storage.NodeStorage;
+import main.java.com.bag.util.storage.RelationshipStorage;
+import org.jetbrains.annotations.NotNull;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Offline bulk import which builds the neo4j store of a replica directly with the batch inserter.
+ * Every replica is seeded from the same file before the cluster starts, so all get the same elements, ids and hashes.
+ * The file has one element per line with tab separated fields:
+ * node, label, reference, properties... or rel, type, start reference, end reference, properties...
+ * A property is key=value, the value is a string unless the key has one of the suffixes
+ * :int, :long, :float, :double or :boolean. Tabs, newlines and backslashes in keys and values are escaped
+ * as \t, \n and \\. Empty lines and lines starting with # are skipped, relationships reference nodes of earlier lines.
+ */
+public class Neo4jBulkImport
+{
+    /**
+     * Marker of node lines.
+     */
+    private static final String NODE = "node";
+
+    /**
+     * Marker of relationship lines.
+     */
+    private static final String RELATIONSHIP = "rel";
+
+    /**
+     * Amount of elements between two progress logs.
+     */
+    private static final long PROGRESS_INTERVAL = 1_000_000;
+
+    /**
+     * Used to hide the implicit default constructor.
+     */
+    private Neo4jBulkImport()
+    {
+        /**
+         * Intentionally left empty.
+         */
+    }
+
+    /**
+     * Imports a file into the store of a replica.
+     * @param args the id of the replica, the file and optionally the snapshotId of the elements, 1 by default.
+     */
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            Log.getLogger().warn("Usage: Neo4jBulkImport <serverId> <file> [snapshotId]");
+            return;
+        }
+
+        try
+        {
+            final int serverId = Integer.parseInt(args[0]);
+            final long snapshotId = args.length > 2 ? Long.parseLong(args[2]) : 1;
+            final long elements = importFile(Neo4jDatabaseAccess.getDatabasePath(serverId), Paths.get(args[1]), snapshotId);
+            Log.getLogger().info("Imported " + elements + " elements into the store of server " + serverId);
+        }
+        catch (NumberFormatException e)
+        {
+            Log.getLogger().warn("Invalid program arguments, terminating import", e);
+        }
+        catch (IOException | NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't import " + args[1], e);
+        }
+    }
+
+    /**
+     * Builds a new store from an import file.
+     * The elements get the ids of their position in the file, their hash and the snapshotId.
+     * An index on the element id is created for every label, as well as the indexes of the configuration.
+     * @param storeDir the directory of the store, has to be empty or missing.
+     * @param file the import file.
+     * @param snapshotId the snapshotId of the elements, the one the replicas start with.
+     * @return the amount of imported elements.
+     * @throws IOException if the file is invalid or the store exists already, the partial store is deleted then.
+     * @throws NoSuchAlgorithmException if the hash algorithm is missing.
+     */
+    public static long importFile(@NotNull final File storeDir, @NotNull final Path file, final long snapshotId) throws IOException, NoSuchAlgorithmException
+    {
+        final String[] existing = storeDir.list();
+        if (existing != null && existing.length > 0)
+        {
+            throw new IOException("Store " + storeDir + " exists already, bulk imports only build new stores");
+        }
+
+        final Map<String, Long> nodes = new HashMap<>();
+        final Set<String> labels = new HashSet<>();
+        long position = 0;
+        int lineNumber = 0;
+
+        boolean imported = false;
+        try
+        {
+            final BatchInserter inserter = BatchInserters.inserter(storeDir);
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    lineNumber++;
+                    if (line.isEmpty() || line.startsWith("#"))
+                    {
+                        continue;
+                    }
+
+                    final String[] fields = line.split("\t", -1);
+                    final long elementId = ElementIds.createImported(position);
+                    if (NODE.equals(fields[0]) && fields.length >= 3)
+                    {
+                        final String reference = unescape(fields[2]);
+                        if (nodes.containsKey(reference))
+                        {
+                            throw new IOException("Duplicate node reference " + fields[2] + " in line " + lineNumber);
+                        }
+
+                        final NodeStorage node = new NodeStorage(unescape(fields[1]));
+                        node.setCompactProperties(parseProperties(fields, 3, lineNumber).putLong(Constants.TAG_ID, elementId).build());
+
+                        final Map<String, Object> properties = toStoredProperties(node.getCompactProperties(), HashCreator.hashFromNode(node).toBytes(), snapshotId);
+                        final long nodeId = node.getId().isEmpty()
+                                ? inserter.createNode(properties)
+                                : inserter.createNode(properties, Label.label(node.getId()));
+                        nodes.put(reference, nodeId);
+                        labels.add(node.getId());
+                    }
+                    else if (RELATIONSHIP.equals(fields[0]) && fields.length >= 4)
+                    {
+                        final long startId = getNode(nodes, fields[2], lineNumber);
+                        final long endId = getNode(nodes, fields[3], lineNumber);
+
+                        //The hash covers the full start and end node like the one computed from the running store.
+                        final RelationshipStorage relationship = new RelationshipStorage(unescape(fields[1]), readNode(inserter, startId), readNode(inserter, endId));
+                        relationship.setCompactProperties(parseProperties(fields, 4, lineNumber).putLong(Constants.TAG_ID, elementId).build());
+
+                        inserter.createRelationship(startId, endId, RelationshipType.withName(relationship.getId()),
+                                toStoredProperties(relationship.getCompactProperties(), HashCreator.hashFromRelationship(relationship).toBytes(), snapshotId));
+                    }
+                    else
+                    {
+                        throw new IOException("Invalid element in line " + lineNumber + ": " + fields[0]);
+                    }
+
+                    position++;
+                    if (position % PROGRESS_INTERVAL == 0)
+                    {
+                        Log.getLogger().info("Imported " + position + " elements");
+                    }
+                }
+
+                for (final String label : labels)
+                {
+                    if (!label.isEmpty())
+                    {
+                        inserter.createDeferredSchemaIndex(Label.label(label)).on(Constants.TAG_ID).create();
+                    }
+                }
+                for (final String[] index : Neo4jDatabaseAccess.getConfiguredIndexes())
+                {
+                    if (!Constants.TAG_ID.equals(index[1]) || !labels.contains(index[0]))
+                    {
+                        inserter.createDeferredSchemaIndex(Label.label(index[0])).on(index[1]).create();
+                    }
+                }
+            }
+            finally
+            {
+                //Writes the store and populates the indexes.
+                inserter.shutdown();
+            }
+            imported = true;
+        }
+        finally
+        {
+            //A partial store would make the next import refuse to run.
+            if (!imported)
+            {
+                deleteStore(storeDir);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Deletes the store of a failed import.
+     * @param storeDir the directory of the store.
+     */
+    private static void deleteStore(final File storeDir)
+    {
+        final File[] files = storeDir.listFiles();
+        if (files != null)
+        {
+            for (final File child : files)
+            {
+                deleteStore(child);
+            }
+        }
+
+        if (storeDir.exists() && !storeDir.delete())
+        {
+            Log.getLogger().warn("Couldn't delete " + storeDir + " of the failed import, delete it before importing again");
+        }
+    }
+
+    /**
+     * Gets the neo4j id of a node referenced in the file.
+     * @param nodes the ids by reference.
+     * @param reference the escaped reference.
+     * @param lineNumber the line, for errors.
+     * @return the id.
+     * @throws IOException if the node doesn't exist.
+     */
+    private static long getNode(final Map<String, Long> nodes, final String reference, final int lineNumber) throws IOException
+    {
+        final Long nodeId = nodes.get(unescape(reference));
+        if (nodeId == null)
+        {
+            throw new IOException("Unknown node reference " + reference + " in line " + lineNumber);
+        }
+        return nodeId;
+    }
+
+    /**
+     * Reads an imported node back from the store.
+     * @param inserter the inserter.
+     * @param nodeId the neo4j id.
+     * @return the node, the stored hash and snapshotId are ignored by the hash.
+     */
+    private static NodeStorage readNode(final BatchInserter inserter, final long nodeId)
+    {
+        final Iterator<Label> labels = inserter.getNodeLabels(nodeId).iterator();
+        return new NodeStorage(labels.hasNext() ? labels.next().name() : "", inserter.getNodeProperties(nodeId));
+    }
+
+    /**
+     * Gets the properties to store, the element properties with hash and snapshotId.
+     * @param properties the properties of the element.
+     * @param hash the hash of the element.
+     * @param snapshotId the snapshotId.
+     * @return the properties to store.
+     */
+    private static Map<String, Object> toStoredProperties(final CompactProperties properties, final byte[] hash, final long snapshotId)
+    {
+        return properties.with(Constants.TAG_HASH, hash).with(Constants.TAG_SNAPSHOT_ID, snapshotId).toHashMap();
+    }
+
+    /**
+     * Parses the properties of a line.
+     * @param fields the fields of the line.
+     * @param start the first property field.
+     * @param lineNumber the line, for errors.
+     * @return a builder with the properties.
+     * @throws IOException if a property is invalid.
+     */
+    private static CompactProperties.Builder parseProperties(final String[] fields, final int start, final int lineNumber) throws IOException
+    {
+        final CompactProperties.Builder builder = CompactProperties.builder(fields.length - start + 1);
+        for (int i = start; i < fields.length; i++)
+        {
+            final int separator = fields[i].indexOf('=');
+            if (separator <= 0)
+            {
+                throw new IOException("Invalid property " + fields[i] + " in line " + lineNumber);
+            }
+
+            final String key = unescape(fields[i].substring(0, separator));
+            final String value = unescape(fields[i].substring(separator + 1));
+            final int typeSeparator = key.lastIndexOf(':');
+            final String type = typeSeparator < 0 ? "" : key.substring(typeSeparator + 1);
+
+            try
+            {
+                switch (type)
+                {
+                    case "int":
+                        builder.putInt(key.substring(0, typeSeparator), Integer.parseInt(value));
+                        break;
+                    case "long":
+                        builder.putLong(key.substring(0, typeSeparator), Long.parseLong(value));
+                        break;
+                    case "float":
+                        builder.putFloat(key.substring(0, typeSeparator), Float.parseFloat(value));
+                        break;
+                    case "double":
+                        builder.putDouble(key.substring(0, typeSeparator), Double.parseDouble(value));
+                        break;
+                    case "boolean":
+                        builder.putBoolean(key.substring(0, typeSeparator), Boolean.parseBoolean(value));
+                        break;
+                    default:
+                        builder.put(key, value);
+                        break;
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                throw new IOException("Invalid " + type + " value " + value + " in line " + lineNumber, e);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Replaces the escapes of tabs, newlines and backslashes.
+     * @param text the escaped text.
+     * @return the text.
+     */
+    private static String unescape(final String text)
+    {
+        if (text.indexOf('\\') < 0)
+        {
+            return text;
+        }
+
+        final StringBuilder builder = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++)
+        {
+            final char current = text.charAt(i);
+            if (current == '\\' && i + 1 < text.length())
+            {
+                final char escaped = text.charAt(++i);
+                builder.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped);
+            }
+            else
+            {
+                builder.append(current);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -1,28 +1,54 @@
 package main.java.com.bag.server.database;
 
 import main.java.com.bag.exceptions.OutDatedDataException;
+import main.java.com.bag.operations.CreateOperation;
+import main.java.com.bag.operations.DeleteOperation;
+import main.java.com.bag.operations.Operation;
+import main.java.com.bag.operations.UpdateOperation;
 import main.java.com.bag.server.database.interfaces.IDatabaseAccess;
+import main.java.com.bag.server.database.interfaces.IHashListener;
 import main.java.com.bag.util.*;
+import main.java.com.bag.util.storage.CompactProperties;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
 import org.jetbrains.annotations.NotNull;
 import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.config.Setting;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
 import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.graphdb.factory.GraphDatabaseSettings;
-import org.neo4j.kernel.impl.core.NodeProxy;
-import org.neo4j.kernel.impl.core.RelationshipProxy;
+import org.neo4j.graphdb.schema.IndexDefinition;
+import org.neo4j.helpers.collection.Iterators;
 
 import java.io.File;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Class created to handle access to the neo4j database.
  */
 public class Neo4jDatabaseAccess implements IDatabaseAccess
 {
-    private static final String BASE_PATH    = "/home/ray/IdeaProjects/BAG - Byzantine fault-tolerant Architecture for Graph database/Neo4jDB";
+    /**
+     * Default directory of the stores, the id of the replica is appended.
+     */
+    private static final String BASE_PATH    = "Neo4jDB";
+
+    /**
+     * Neo4j settings which can be set in the configuration, by configuration key.
+     */
+    private static final Map<String, Setting<?>> SETTINGS = new LinkedHashMap<>();
+    static
+    {
+        SETTINGS.put("neo4j.pagecache.memory", GraphDatabaseSettings.pagecache_memory);
+        SETTINGS.put("neo4j.log.rotation.threshold", GraphDatabaseSettings.logical_log_rotation_threshold);
+        SETTINGS.put("neo4j.log.keep", GraphDatabaseSettings.keep_logical_logs);
+        SETTINGS.put("neo4j.checkpoint.interval.tx", GraphDatabaseSettings.check_point_interval_tx);
+        SETTINGS.put("neo4j.checkpoint.interval.time", GraphDatabaseSettings.check_point_interval_time);
+        SETTINGS.put("neo4j.checkpoint.iops.limit", GraphDatabaseSettings.check_point_iops_limit);
+    }
 
     /**
      * The graphDB object.
@@ -35,12 +61,34 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     private final int id;
 
     /**
-     * String used to match key value pairs.
+     * Parameterized queries by the shape of their pattern.
      */
-    private static final String KEY_VALUE_PAIR = "%s: {%s}";
-    private static final String KEY_VALUE_PAIR_STRING = "%s: '%s'";
+    private final CypherQueryCache queries = new CypherQueryCache();
 
-    private static final String MATCH = "MATCH ";
+    /**
+     * Gets notified about the hashes of written and deleted elements.
+     */
+    private IHashListener hashListener = IHashListener.NONE;
+
+    /**
+     * Usage counters of the label and property key pairs in lookups, by label and key.
+     */
+    private final Map<String, Map<String, IndexUsage>> indexUsage = new ConcurrentHashMap<>();
+
+    /**
+     * Amount of ordered lookups of a label and property key pair after which an index is created on it, 0 to disable.
+     */
+    private final long autoIndexThreshold = BagConfiguration.getLong("neo4j.index.auto.threshold", 0);
+
+    /**
+     * Seconds to wait at most for a created index to come online.
+     */
+    private final long indexOnlineTimeout = BagConfiguration.getLong("neo4j.index.online.timeout", 60);
+
+    /**
+     * Pairs which reached the threshold, created before the next ordered request runs.
+     */
+    private final Set<IndexUsage> pendingIndexes = new LinkedHashSet<>();
 
     /**
      * Public constructor.
@@ -54,11 +102,265 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public void start()
     {
-        File dbPath = new File(BASE_PATH + id);
+        File dbPath = getDatabasePath(id);
         Log.getLogger().info("Starting neo4j database service on " + id);
 
-        graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(dbPath).newGraphDatabase();
+        graphDb = newDatabaseBuilder(dbPath).newGraphDatabase();
         registerShutdownHook( graphDb );
+
+        try(Transaction tx = graphDb.beginTx())
+        {
+            for (final IndexDefinition index : graphDb.schema().getIndexes())
+            {
+                for (final String key : index.getPropertyKeys())
+                {
+                    getIndexUsage(index.getLabel().name(), key).setIndexed(true);
+                }
+            }
+            tx.success();
+        }
+
+        for (final String[] index : getConfiguredIndexes())
+        {
+            createIndex(index[0], index[1]);
+        }
+
+        if (BagConfiguration.getBoolean("neo4j.warmup", true))
+        {
+            warmUp();
+        }
+    }
+
+    /**
+     * Creates the builder of an embedded database with the settings of the configuration.
+     * @param dbPath the directory of the store.
+     * @return the builder.
+     */
+    private static GraphDatabaseBuilder newDatabaseBuilder(final File dbPath)
+    {
+        final GraphDatabaseBuilder builder = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(dbPath);
+        for (final Map.Entry<String, Setting<?>> setting : SETTINGS.entrySet())
+        {
+            final String value = BagConfiguration.getString(setting.getKey(), null);
+            if (value != null)
+            {
+                builder.setConfig(setting.getValue(), value);
+            }
+        }
+        return builder;
+    }
+
+    /**
+     * Reads all nodes and relationships with their properties once, so their store pages are in the page cache
+     * before the first requests arrive.
+     */
+    private void warmUp()
+    {
+        final long start = System.currentTimeMillis();
+        long nodes = 0;
+        long relationships = 0;
+        try(Transaction tx = graphDb.beginTx())
+        {
+            for (final Node node : graphDb.getAllNodes())
+            {
+                node.getAllProperties();
+                nodes++;
+            }
+            for (final Relationship relationship : graphDb.getAllRelationships())
+            {
+                relationship.getAllProperties();
+                relationships++;
+            }
+            tx.success();
+        }
+        Log.getLogger().info("Warmed up " + nodes + " nodes and " + relationships + " relationships in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Gets the indexes declared in the configuration as label.key pairs, separated by commas.
+     * @return the label and key of each index.
+     */
+    static List<String[]> getConfiguredIndexes()
+    {
+        return BagConfiguration.getPairs("neo4j.indexes");
+    }
+
+    /**
+     * Gets the directory of the store of a replica, "neo4j.path.<id>" or else "neo4j.path" with the id appended.
+     * @param id the id of the replica.
+     * @return the directory.
+     */
+    static File getDatabasePath(final int id)
+    {
+        final String path = BagConfiguration.getString("neo4j.path." + id, null);
+        return path == null ? new File(BagConfiguration.getString("neo4j.path", BASE_PATH) + id) : new File(path);
+    }
+
+    @Override
+    public boolean createIndex(final String label, final String key)
+    {
+        if (label.isEmpty() || key.isEmpty())
+        {
+            return false;
+        }
+
+        final IndexUsage usage = getIndexUsage(label, key);
+        if (usage.isIndexed())
+        {
+            return true;
+        }
+
+        //Schema changes can't be mixed with data changes, so this runs in its own transaction.
+        try(Transaction tx = graphDb.beginTx())
+        {
+            graphDb.schema().indexFor(Label.label(label)).on(key).create();
+            tx.success();
+        }
+        catch (Exception e)
+        {
+            //Fails as well if the index exists already, which is checked below.
+            Log.getLogger().info("Couldn't create index on " + label + "." + key + ", checking for an existing one", e);
+        }
+
+        try(Transaction tx = graphDb.beginTx())
+        {
+            for (final IndexDefinition index : graphDb.schema().getIndexes(Label.label(label)))
+            {
+                if (Iterators.asList(index.getPropertyKeys().iterator()).contains(key))
+                {
+                    graphDb.schema().awaitIndexOnline(index, indexOnlineTimeout, TimeUnit.SECONDS);
+                    tx.success();
+                    Log.getLogger().info("Created index on " + label + "." + key);
+                    usage.setIndexed(true);
+                    return true;
+                }
+            }
+            Log.getLogger().warn("Couldn't create index on " + label + "." + key + " in server " + id);
+            return false;
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Index on " + label + "." + key + " didn't come online in server " + id, e);
+            return false;
+        }
+    }
+
+    @Override
+    public List<IndexUsage> getIndexUsage()
+    {
+        final List<IndexUsage> usages = new ArrayList<>();
+        for (final Map<String, IndexUsage> keys : indexUsage.values())
+        {
+            usages.addAll(keys.values());
+        }
+        return usages;
+    }
+
+    /**
+     * Gets the usage counters of a label and property key pair, creates them on the first use.
+     * @param label the label.
+     * @param key the property key.
+     * @return the counters.
+     */
+    private IndexUsage getIndexUsage(final String label, final String key)
+    {
+        return indexUsage.computeIfAbsent(label, l -> new ConcurrentHashMap<>()).computeIfAbsent(key, k -> new IndexUsage(label, k));
+    }
+
+    /**
+     * Counts a lookup of a node by its label and properties.
+     * The pairs reaching the threshold through ordered lookups are the same on all replicas and become pending indexes.
+     * @param label the label.
+     * @param properties the matched properties.
+     * @param lookup the index of the property the node was looked up by.
+     * @param ordered true if executed for an ordered request.
+     */
+    private void recordLookup(final String label, final CompactProperties properties, final int lookup, final boolean ordered)
+    {
+        for (int i = 0; i < properties.size(); i++)
+        {
+            final IndexUsage usage = getIndexUsage(label, properties.getKey(i));
+            final long orderedLookups = usage.recordLookup(ordered, i == lookup && usage.isIndexed());
+            if (autoIndexThreshold > 0 && orderedLookups == autoIndexThreshold && !usage.isIndexed())
+            {
+                synchronized (pendingIndexes)
+                {
+                    pendingIndexes.add(usage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the indexes which reached the threshold, called at the start of ordered requests outside of a transaction.
+     */
+    private void createPendingIndexes()
+    {
+        final List<IndexUsage> pending;
+        synchronized (pendingIndexes)
+        {
+            if (pendingIndexes.isEmpty())
+            {
+                return;
+            }
+            pending = new ArrayList<>(pendingIndexes);
+            pendingIndexes.clear();
+        }
+
+        for (final IndexUsage usage : pending)
+        {
+            createIndex(usage.getLabel(), usage.getKey());
+        }
+    }
+
+    @Override
+    public void setHashListener(final IHashListener listener)
+    {
+        this.hashListener = listener;
+    }
+
+    @Override
+    public void scanHashes(final IHashListener listener)
+    {
+        if (graphDb == null)
+        {
+            start();
+        }
+
+        try(Transaction tx = graphDb.beginTx())
+        {
+            for (final Node node : graphDb.getAllNodes())
+            {
+                listener.hashAdded(IHashListener.ElementType.NODE, getLabel(node), getElementId(node), node.getProperty(Constants.TAG_HASH, null));
+            }
+            for (final Relationship relationship : graphDb.getAllRelationships())
+            {
+                listener.hashAdded(IHashListener.ElementType.RELATIONSHIP, relationship.getType().name(), getElementId(relationship), relationship.getProperty(Constants.TAG_HASH, null));
+            }
+            tx.success();
+        }
+    }
+
+    /**
+     * Gets the label of a node, we only support one label each node.
+     * @param node the node.
+     * @return the label or an empty string if it has none.
+     */
+    private static String getLabel(final Node node)
+    {
+        final Iterator<Label> labels = node.getLabels().iterator();
+        return labels.hasNext() ? labels.next().name() : "";
+    }
+
+    /**
+     * Gets the element id of a node or relationship.
+     * @param container the node or relationship.
+     * @return the id or ElementIds.NONE if it has none.
+     */
+    private static long getElementId(final PropertyContainer container)
+    {
+        return ElementIds.fromValue(container.getProperty(Constants.TAG_ID, null));
     }
 
     @Override
@@ -73,9 +375,9 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
      */
     public void startReadOnly(int id)
     {
-        File dbPath = new File(BASE_PATH + id);
+        File dbPath = getDatabasePath(id);
 
-        graphDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder( dbPath )
+        graphDb = newDatabaseBuilder( dbPath )
                 .setConfig( GraphDatabaseSettings.read_only, "true" )
                 .newGraphDatabase();
     }
@@ -114,70 +416,32 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
         ArrayList<Object> returnStorage =  new ArrayList<>();
         try(Transaction tx = graphDb.beginTx())
         {
-            StringBuilder builder = new StringBuilder(MATCH);
-            Map<String, Object> properties;
-
             if(nodeStorage == null)
             {
-                Log.getLogger().info(Long.toString(snapshotId));
-                builder.append(buildRelationshipString(relationshipStorage));
-                builder.append(" RETURN r");
-                Log.getLogger().info(builder.toString());
-
-                //Contains params of relationshipStorage.
-                properties = transFormToPropertyMap(relationshipStorage.getProperties(), "");
-
-                //Adds also params of start and end node.
-                properties.putAll(transFormToPropertyMap(relationshipStorage.getStartNode().getProperties(), "1"));
-                properties.putAll(transFormToPropertyMap(relationshipStorage.getEndNode().getProperties(), "2"));
+                for (final Relationship relationship : findRelationships(relationshipStorage, false))
+                {
+                    final RelationshipStorage temp = toRelationshipStorage(relationship);
+                    if(temp.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
+                    {
+                        Object sId =  temp.getProperties().get(Constants.TAG_SNAPSHOT_ID);
+                        OutDatedDataException.checkSnapshotId(sId, snapshotId);
+                        temp.removeProperty(Constants.TAG_SNAPSHOT_ID);
+                    }
+                    returnStorage.add(temp);
+                }
             }
             else
             {
-                Log.getLogger().info(Long.toString(snapshotId));
-                builder.append(buildNodeString(nodeStorage, ""));
-                builder.append(" RETURN n");
-                Log.getLogger().info(builder.toString());
-
-                //Converts the keys to upper case to fit the params we send to neo4j.
-                properties = transFormToPropertyMap(nodeStorage.getProperties(), "");
-            }
-
-            Log.getLogger().info("To database: " + builder.toString());
-
-            Result result = graphDb.execute(builder.toString(), properties);
-            while (result.hasNext())
-            {
-                Map<String, Object> value = result.next();
-
-                for(Map.Entry<String, Object> entry: value.entrySet())
+                for (final Node node : findNodes(nodeStorage, false))
                 {
-                    if(entry.getValue() instanceof NodeProxy)
+                    final NodeStorage temp = toNodeStorage(node);
+                    if(temp.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
                     {
-                        NodeProxy n = (NodeProxy) entry.getValue();
-                        NodeStorage temp = new NodeStorage(n.getLabels().iterator().next().name(), n.getAllProperties());
-                        if(temp.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
-                        {
-                            Object sId =  temp.getProperties().get(Constants.TAG_SNAPSHOT_ID);
-                            OutDatedDataException.checkSnapshotId(sId, snapshotId);
-                            temp.removeProperty(Constants.TAG_SNAPSHOT_ID);
-                        }
-                        returnStorage.add(temp);
-                    }
-                    else if(entry.getValue() instanceof RelationshipProxy)
-                    {
-                        RelationshipProxy r = (RelationshipProxy) entry.getValue();
-                        NodeStorage start = new NodeStorage(r.getStartNode().getLabels().iterator().next().name(), r.getStartNode().getAllProperties());
-                        NodeStorage end = new NodeStorage(r.getEndNode().getLabels().iterator().next().name(), r.getEndNode().getAllProperties());
-
-                        RelationshipStorage temp = new RelationshipStorage(r.getType().name(), r.getAllProperties(), start, end);
-                        returnStorage.add(temp);
-                        if(temp.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
-                        {
-                            Object sId =  temp.getProperties().get(Constants.TAG_SNAPSHOT_ID);
-                            OutDatedDataException.checkSnapshotId(sId, snapshotId);
-                            temp.removeProperty(Constants.TAG_SNAPSHOT_ID);
-                        }
+                        Object sId =  temp.getProperties().get(Constants.TAG_SNAPSHOT_ID);
+                        OutDatedDataException.checkSnapshotId(sId, snapshotId);
+                        temp.removeProperty(Constants.TAG_SNAPSHOT_ID);
                     }
+                    returnStorage.add(temp);
                 }
             }
 
@@ -187,103 +451,181 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     }
 
     /**
-     * Transforms a map of properties to a map of params for neo4j.
-     * @param map the map to transform.
-     * @param id the id to add.
-     * @return the transformed map.
+     * Finds the nodes matching a nodeStorage, has to be called inside a transaction.
+     * Nodes with a label are found with the core api by one property and filtered by the others in memory,
+     * this skips the cypher parser and planner. Nodes without label fall back to cypher.
+     * @param nodeStorage the nodeStorage.
+     * @param ordered true if executed for an ordered request.
+     * @return the matching nodes.
      */
-    private Map<String, Object> transFormToPropertyMap(Map<String, Object> map, String id)
+    private List<Node> findNodes(final NodeStorage nodeStorage, final boolean ordered)
     {
-        return map.entrySet().stream()
-                .collect(Collectors.toMap(
-                        e -> e.getKey().toUpperCase() + id,
-                        Map.Entry::getValue));
-    }
+        if (nodeStorage.getId().isEmpty())
+        {
+            return Iterators.asList(graphDb.execute(queries.getNodeQuery(nodeStorage), CypherQueryCache.getNodeParams(nodeStorage)).<Node>columnAs("n"));
+        }
 
-    /**
-     * Creates a complete Neo4j cypher String for a certain relationshipStorage
-     * @param relationshipStorage the relationshipStorage to transform.
-     * @return a string which may be sent with cypher to neo4j.
-     */
-    private String buildRelationshipString(final RelationshipStorage relationshipStorage)
-    {
-        return buildNodeString(relationshipStorage.getStartNode(), "1") + buildPureRelationshipString(relationshipStorage) +
-                buildNodeString(relationshipStorage.getEndNode(), "2");
+        final Label label = Label.label(nodeStorage.getId());
+        final CompactProperties properties = nodeStorage.getMatchProperties();
+        final int lookup = properties.isEmpty() ? -1 : getLookupIndex(nodeStorage.getId(), properties);
+        recordLookup(nodeStorage.getId(), properties, lookup, ordered);
+        final List<Node> nodes = new ArrayList<>();
+
+        try(ResourceIterator<Node> candidates = lookup < 0
+                ? graphDb.findNodes(label)
+                : graphDb.findNodes(label, properties.getKey(lookup), properties.getValue(lookup)))
+        {
+            while (candidates.hasNext())
+            {
+                final Node node = candidates.next();
+                if (matches(node, properties, lookup))
+                {
+                    nodes.add(node);
+                }
+            }
+        }
+        return nodes;
     }
 
     /**
-     * Creates a Neo4j cypher String for a certain relationshipStorage
-     * @param relationshipStorage the relationshipStorage to transform.
-     * @return a string which may be sent with cypher to neo4j.
+     * Finds the relationships matching a relationshipStorage, has to be called inside a transaction.
+     * Relationships with a type are found by expanding the outgoing relationships of the start nodes,
+     * relationships without type fall back to cypher.
+     * @param relationshipStorage the relationshipStorage.
+     * @param ordered true if executed for an ordered request.
+     * @return the matching relationships.
      */
-    private String buildPureRelationshipString(final RelationshipStorage relationshipStorage)
+    private List<Relationship> findRelationships(final RelationshipStorage relationshipStorage, final boolean ordered)
     {
-        StringBuilder builder = new StringBuilder();
-
-        builder.append("-[r");
+        final CompactProperties properties = relationshipStorage.getMatchProperties();
+        if (relationshipStorage.getId().isEmpty())
+        {
+            final String query = queries.getRelationshipQuery(CypherQueryCache.Kind.MATCH_RELATIONSHIP, relationshipStorage, properties);
+            return Iterators.asList(graphDb.execute(query, CypherQueryCache.getRelationshipParams(relationshipStorage, properties)).<Relationship>columnAs("r"));
+        }
 
-        if (!relationshipStorage.getId().isEmpty())
+        final List<Node> startNodes = findNodes(relationshipStorage.getStartNode(), ordered);
+        if (startNodes.isEmpty())
         {
-            builder.append(String.format(":%s", relationshipStorage.getId()));
+            return Collections.emptyList();
         }
 
-        if(!relationshipStorage.getProperties().isEmpty())
+        final Set<Long> endNodes = new HashSet<>();
+        for (final Node node : findNodes(relationshipStorage.getEndNode(), ordered))
         {
-            builder.append(" {");
-            Iterator<Map.Entry<String, Object>> iterator = relationshipStorage.getProperties().entrySet().iterator();
+            endNodes.add(node.getId());
+        }
 
-            while (iterator.hasNext())
+        final RelationshipType type = RelationshipType.withName(relationshipStorage.getId());
+        final List<Relationship> relationships = new ArrayList<>();
+        for (final Node startNode : startNodes)
+        {
+            for (final Relationship relationship : startNode.getRelationships(type, Direction.OUTGOING))
             {
-                Map.Entry<String, Object> currentProperty = iterator.next();
-                builder.append(String.format(KEY_VALUE_PAIR, currentProperty.getKey(), currentProperty.getKey().toUpperCase()));
-
-                if (iterator.hasNext())
+                if (endNodes.contains(relationship.getEndNode().getId()) && matches(relationship, properties, -1))
                 {
-                    builder.append(" , ");
+                    relationships.add(relationship);
                 }
             }
-            builder.append("}");
         }
-        builder.append("]->");
-
-        return builder.toString();
+        return relationships;
     }
 
     /**
-     * Creates a Neo4j cypher String for a certain nodeStorage.
-     * @param nodeStorage the nodeStorage to transform.
-     * @param n optional identifier in the query.
-     * @return a string which may be sent with cypher to neo4j.
+     * Picks the property to look nodes up by, the element id if present since it is unique, else an indexed property.
+     * @param label the label.
+     * @param properties the properties to match, not empty.
+     * @return the index of the property.
      */
-    private String buildNodeString(NodeStorage nodeStorage, String n)
+    private int getLookupIndex(final String label, final CompactProperties properties)
     {
-        StringBuilder builder = new StringBuilder("(n").append(n);
-
-        if (!nodeStorage.getId().isEmpty())
+        final int idIndex = properties.indexOf(Constants.TAG_ID);
+        if (idIndex >= 0)
         {
-            builder.append(String.format(":%s", nodeStorage.getId()));
+            return idIndex;
         }
 
-        if(!nodeStorage.getProperties().isEmpty())
+        final Map<String, IndexUsage> keys = indexUsage.get(label);
+        if (keys != null)
         {
-            builder.append(" {");
+            for (int i = 0; i < properties.size(); i++)
+            {
+                final IndexUsage usage = keys.get(properties.getKey(i));
+                if (usage != null && usage.isIndexed())
+                {
+                    return i;
+                }
+            }
+        }
+        return 0;
+    }
 
-            Iterator<Map.Entry<String, Object>> iterator = nodeStorage.getProperties().entrySet().iterator();
+    /**
+     * Checks if a node or relationship has all properties.
+     * @param element the node or relationship.
+     * @param properties the properties.
+     * @param skip index of a property which is known to match, -1 if none.
+     * @return true if all match.
+     */
+    private static boolean matches(final PropertyContainer element, final CompactProperties properties, final int skip)
+    {
+        for (int i = 0; i < properties.size(); i++)
+        {
+            if (i == skip)
+            {
+                continue;
+            }
 
-            while (iterator.hasNext())
+            final Object stored = element.getProperty(properties.getKey(i), null);
+            if (stored == null || !valueEquals(stored, properties, i))
             {
-                Map.Entry<String, Object> currentProperty = iterator.next();
-                builder.append(String.format(KEY_VALUE_PAIR, currentProperty.getKey(), currentProperty.getKey().toUpperCase() + n));
+                return false;
+            }
+        }
+        return true;
+    }
 
-                if (iterator.hasNext())
-                {
-                    builder.append(" , ");
-                }
+    /**
+     * Compares a stored value with a property like cypher equality, numbers are equal across their types.
+     * @param stored the stored value.
+     * @param properties the properties.
+     * @param index the index of the property.
+     * @return true if equal.
+     */
+    private static boolean valueEquals(final Object stored, final CompactProperties properties, final int index)
+    {
+        final byte type = properties.getType(index);
+        if (stored instanceof Number && properties.isPrimitive(index) && type != CompactProperties.TYPE_BOOLEAN)
+        {
+            final boolean integral = type == CompactProperties.TYPE_INT || type == CompactProperties.TYPE_LONG;
+            if (integral && !(stored instanceof Double || stored instanceof Float))
+            {
+                return ((Number) stored).longValue() == properties.getLong(index);
             }
-            builder.append("}");
+            return ((Number) stored).doubleValue() == (integral ? properties.getLong(index) : properties.getDouble(index));
         }
-        builder.append(")");
-        return builder.toString();
+        return Objects.deepEquals(stored, properties.getValue(index));
+    }
+
+    /**
+     * Creates a NodeStorage from a node.
+     * @param node the node.
+     * @return the nodeStorage.
+     */
+    private static NodeStorage toNodeStorage(final Node node)
+    {
+        return new NodeStorage(getLabel(node), node.getAllProperties());
+    }
+
+    /**
+     * Creates a RelationshipStorage from a relationship.
+     * @param relationship the relationship.
+     * @return the relationshipStorage.
+     */
+    private static RelationshipStorage toRelationshipStorage(final Relationship relationship)
+    {
+        return new RelationshipStorage(relationship.getType().name(), relationship.getAllProperties(),
+                toNodeStorage(relationship.getStartNode()), toNodeStorage(relationship.getEndNode()));
     }
 
     @Override
@@ -293,33 +635,21 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
         {
             start();
         }
+        createPendingIndexes();
 
-        final String builder = MATCH + buildNodeString(nodeStorage, "") + " RETURN n";
-        Map<String, Object> properties = transFormToPropertyMap(nodeStorage.getProperties(), "");
-
-        Result result = graphDb.execute(builder, properties);
-
-        //Assuming we only get one node in return.
-        if (result.hasNext())
+        try(Transaction tx = graphDb.beginTx())
         {
-            Map<String, Object> value = result.next();
-            for (Map.Entry<String, Object> entry : value.entrySet())
+            //Assuming we only get one node in return.
+            for (final Node node : findNodes(nodeStorage, true))
             {
-                if (entry.getValue() instanceof NodeProxy)
-                {
-                    NodeProxy n = (NodeProxy) entry.getValue();
-
-                    try
-                    {
-                        return HashCreator.sha1FromNode(nodeStorage).equals(n.getProperty(Constants.TAG_HASH));
-                    }
-                    catch (NoSuchAlgorithmException e)
-                    {
-                        Log.getLogger().warn("Couldn't execute SHA1 for node", e);
-                    }
-                    break;
-                }
+                tx.success();
+                return HashCreator.hashFromNode(nodeStorage).matches(node.getProperty(Constants.TAG_HASH, null));
             }
+            tx.success();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't execute hash for node", e);
         }
 
         //If can't find the node its different probably.
@@ -329,34 +659,35 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyUpdate(final NodeStorage key, final NodeStorage value, final long snapshotId)
     {
+        createPendingIndexes();
+
         try
         {
-            Set<String> keys = new HashSet<>();
-            keys.addAll(key.getProperties().keySet());
-            keys.addAll(value.getProperties().keySet());
-            graphDb.beginTx();
+            final List<Object[]> changedHashes = new ArrayList<>();
 
-            Result result = graphDb.execute(MATCH + buildNodeString(key, "") + " RETURN n");
-
-            while (result.hasNext())
+            try(Transaction tx = graphDb.beginTx())
             {
-                Map<String, Object> resultValue = result.next();
-
-                for (Map.Entry<String, Object> entry : resultValue.entrySet())
+                for (final Node node : findNodes(key, true))
                 {
-                    if (entry.getValue() instanceof NodeProxy)
-                    {
-                        NodeProxy proxy = (NodeProxy) entry.getValue();
+                    final Object oldHash = node.getProperty(Constants.TAG_HASH, null);
 
-                        for (Map.Entry<String, Object> properties : value.getProperties().entrySet())
-                        {
-                            proxy.setProperty(properties.getKey(), properties.getValue());
-                        }
-
-                        proxy.setProperty(Constants.TAG_HASH, HashCreator.sha1FromNode(new NodeStorage(proxy.getLabels().iterator().next().name(), proxy.getAllProperties())));
-                        proxy.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                    for (Map.Entry<String, Object> properties : value.getProperties().entrySet())
+                    {
+                        node.setProperty(properties.getKey(), properties.getValue());
                     }
+
+                    final String label = getLabel(node);
+                    final byte[] newHash = HashCreator.hashFromNode(new NodeStorage(label, node.getAllProperties())).toBytes();
+                    node.setProperty(Constants.TAG_HASH, newHash);
+                    node.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                    changedHashes.add(new Object[] {label, getElementId(node), oldHash, newHash});
                 }
+                tx.success();
+            }
+
+            for (final Object[] changedHash : changedHashes)
+            {
+                hashListener.hashReplaced(IHashListener.ElementType.NODE, (String) changedHash[0], (long) changedHash[1], changedHash[2], changedHash[3]);
             }
         }
         catch (Exception e)
@@ -371,6 +702,10 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyCreate(final NodeStorage storage, final long snapshotId)
     {
+        createPendingIndexes();
+        createIndex(storage.getId(), Constants.TAG_ID);
+
+        final byte[] hash;
         try(Transaction tx = graphDb.beginTx())
         {
             final Label label = storage::getId;
@@ -380,7 +715,8 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
             {
                 myNode.setProperty(entry.getKey(), entry.getValue());
             }
-            myNode.setProperty(Constants.TAG_HASH, HashCreator.sha1FromNode(storage));
+            hash = HashCreator.hashFromNode(storage).toBytes();
+            myNode.setProperty(Constants.TAG_HASH, hash);
             myNode.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
 
             tx.success();
@@ -390,6 +726,7 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
             Log.getLogger().warn("Couldn't execute create node transaction in server:  " + id, e);
             return false;
         }
+        hashListener.hashAdded(IHashListener.ElementType.NODE, storage.getId(), storage.getElementId(), hash);
         Log.getLogger().warn("Executed create node transaction in server:  " + id);
         return true;
     }
@@ -397,16 +734,34 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyDelete(final NodeStorage storage, final long snapshotId)
     {
-        try
+        createPendingIndexes();
+
+        final List<Object[]> removedHashes = new ArrayList<>();
+        try(Transaction tx = graphDb.beginTx())
         {
-            final String cypher = MATCH + buildNodeString(storage, "") + " DETACH DELETE n";
-            graphDb.execute(cypher);
+            //Deletes the relationships of the node as well, like detach delete.
+            for (final Node node : findNodes(storage, true))
+            {
+                for (final Relationship relationship : node.getRelationships())
+                {
+                    removedHashes.add(new Object[] {IHashListener.ElementType.RELATIONSHIP, relationship.getType().name(), getElementId(relationship), relationship.getProperty(Constants.TAG_HASH, null)});
+                    relationship.delete();
+                }
+                removedHashes.add(new Object[] {IHashListener.ElementType.NODE, getLabel(node), getElementId(node), node.getProperty(Constants.TAG_HASH, null)});
+                node.delete();
+            }
+            tx.success();
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute delete node transaction in server:  " + id, e);
             return false;
         }
+
+        for (final Object[] removedHash : removedHashes)
+        {
+            hashListener.hashRemoved((IHashListener.ElementType) removedHash[0], (String) removedHash[1], (long) removedHash[2], removedHash[3]);
+        }
         Log.getLogger().warn("Executed delete node transaction in server:  " + id);
         return true;
     }
@@ -414,40 +769,34 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyUpdate(final RelationshipStorage key, final RelationshipStorage value, final long snapshotId)
     {
+        createPendingIndexes();
+
         try
         {
-            //Transform relationship params.
-            Map<String, Object> propertyMap = transFormToPropertyMap(key.getProperties(), "");
-
-            //Adds also params of start and end node.
-            propertyMap.putAll(transFormToPropertyMap(key.getStartNode().getProperties(), "1"));
-            propertyMap.putAll(transFormToPropertyMap(key.getEndNode().getProperties(), "2"));
-
-            Result result = graphDb.execute(MATCH + buildRelationshipString(key) + " RETURN r", propertyMap);
-            while (result.hasNext())
+            final List<Object[]> changedHashes = new ArrayList<>();
+            try(Transaction tx = graphDb.beginTx())
             {
-                Map<String, Object> relValue = result.next();
-
-                for(Map.Entry<String, Object> entry: relValue.entrySet())
+                for (final Relationship relationship : findRelationships(key, true))
                 {
-                    if(entry.getValue() instanceof RelationshipProxy)
-                    {
-                        RelationshipProxy proxy = (RelationshipProxy) entry.getValue();
-
-                        for (Map.Entry<String, Object> properties : value.getProperties().entrySet())
-                        {
-                            proxy.setProperty(properties.getKey(), properties.getValue());
-                        }
-
-                        NodeStorage start = new NodeStorage(proxy.getStartNode().getLabels().iterator().next().name(), proxy.getStartNode().getAllProperties());
-                        NodeStorage end = new NodeStorage(proxy.getEndNode().getLabels().iterator().next().name(), proxy.getEndNode().getAllProperties());
+                    final Object oldHash = relationship.getProperty(Constants.TAG_HASH, null);
 
-                        proxy.setProperty(Constants.TAG_HASH, HashCreator.sha1FromRelationship(new RelationshipStorage(proxy.getType().name(), proxy.getAllProperties(), start, end)));
-                        proxy.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                    for (Map.Entry<String, Object> properties : value.getProperties().entrySet())
+                    {
+                        relationship.setProperty(properties.getKey(), properties.getValue());
                     }
+
+                    final byte[] newHash = HashCreator.hashFromRelationship(toRelationshipStorage(relationship)).toBytes();
+                    relationship.setProperty(Constants.TAG_HASH, newHash);
+                    relationship.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                    changedHashes.add(new Object[] {relationship.getType().name(), getElementId(relationship), oldHash, newHash});
                 }
+                tx.success();
             }
 
+            for (final Object[] changedHash : changedHashes)
+            {
+                hashListener.hashReplaced(IHashListener.ElementType.RELATIONSHIP, (String) changedHash[0], (long) changedHash[1], changedHash[2], changedHash[3]);
+            }
         }
         catch (NoSuchAlgorithmException e)
         {
@@ -461,32 +810,47 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyCreate(final RelationshipStorage storage, final long snapshotId)
     {
-        try
+        createPendingIndexes();
+
+        final List<Object[]> createdHashes = new ArrayList<>();
+        try(Transaction tx = graphDb.beginTx())
         {
-            storage.addProperty(Constants.TAG_HASH, HashCreator.sha1FromRelationship(storage));
             storage.addProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
 
-            final String builder = MATCH + buildNodeString(storage.getStartNode(), "1") +
-                    ", " +
-                    buildNodeString(storage.getEndNode(), "2") +
-                    " CREATE (n1)" +
-                    buildPureRelationshipString(storage) +
-                    "(n2)";
+            final String query = queries.getRelationshipQuery(CypherQueryCache.Kind.CREATE_RELATIONSHIP, storage, storage.getCompactProperties());
+
+            //Transform relationship params, adds also params of start and end node.
+            Map<String, Object> properties = CypherQueryCache.getRelationshipParams(storage, storage.getCompactProperties());
 
-            //Transform relationship params.
-            Map<String, Object> properties = transFormToPropertyMap(storage.getProperties(), "");
+            //The hash covers the stored start and end node, the request may only reference them.
+            final List<Relationship> relationships = Iterators.asList(graphDb.execute(query, properties).<Relationship>columnAs("r"));
 
-            //Adds also params of start and end node.
-            properties.putAll(transFormToPropertyMap(storage.getStartNode().getProperties(), "1"));
-            properties.putAll(transFormToPropertyMap(storage.getEndNode().getProperties(), "2"));
+            //An element id names a single relationship, so it can only connect exactly one start and one end node.
+            if (storage.hasElementId() && relationships.size() != 1)
+            {
+                Log.getLogger().warn("Create of relationship " + storage.getElementId() + " matched " + relationships.size()
+                        + " start and end node pairs instead of one, rejecting it in server: " + id);
+                return false;
+            }
 
-             graphDb.execute(builder, properties);
+            for (final Relationship relationship : relationships)
+            {
+                final byte[] hash = HashCreator.hashFromRelationship(toRelationshipStorage(relationship)).toBytes();
+                relationship.setProperty(Constants.TAG_HASH, hash);
+                createdHashes.add(new Object[] {getElementId(relationship), hash});
+            }
+            tx.success();
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute create relationship transaction in server:  " + id, e);
             return false;
         }
+
+        for (final Object[] createdHash : createdHashes)
+        {
+            hashListener.hashAdded(IHashListener.ElementType.RELATIONSHIP, storage.getId(), (long) createdHash[0], createdHash[1]);
+        }
         Log.getLogger().warn("Executed create relationship transaction in server:  " + id);
 
         return true;
@@ -495,25 +859,35 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyDelete(final RelationshipStorage storage, final long snapshotId)
     {
-        try
+        createPendingIndexes();
+
+        final List<Object[]> removedHashes = new ArrayList<>();
+        try(Transaction tx = graphDb.beginTx())
         {
             //Delete relationship
-            final String cypher = MATCH + buildRelationshipString(storage) + " DELETE r";
+            final String cypher = queries.getRelationshipQuery(CypherQueryCache.Kind.DELETE_RELATIONSHIP, storage, storage.getMatchProperties());
 
-            //Transform relationship params.
-            Map<String, Object> properties = transFormToPropertyMap(storage.getProperties(), "");
+            //Transform relationship params, adds also params of start and end node.
+            Map<String, Object> properties = CypherQueryCache.getRelationshipParams(storage, storage.getMatchProperties());
 
-            //Adds also params of start and end node.
-            properties.putAll(transFormToPropertyMap(storage.getStartNode().getProperties(), "1"));
-            properties.putAll(transFormToPropertyMap(storage.getEndNode().getProperties(), "2"));
-
-            graphDb.execute(cypher, properties);
+            final Result result = graphDb.execute(cypher, properties);
+            while (result.hasNext())
+            {
+                final Map<String, Object> row = result.next();
+                removedHashes.add(new Object[] {row.get("type"), ElementIds.fromValue(row.get("id")), row.get("hash")});
+            }
+            tx.success();
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute delete relationship transaction in server:  " + id, e);
             return false;
         }
+
+        for (final Object[] removedHash : removedHashes)
+        {
+            hashListener.hashRemoved(IHashListener.ElementType.RELATIONSHIP, (String) removedHash[0], (long) removedHash[1], removedHash[2]);
+        }
         Log.getLogger().warn("Executed delete relationship transaction in server:  " + id);
         return true;
     }
@@ -521,42 +895,336 @@ public class Neo4jDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean compareRelationship(final RelationshipStorage relationshipStorage)
     {
+        createPendingIndexes();
 
-        final String builder = MATCH + buildRelationshipString(relationshipStorage) + " RETURN r";
+        try(Transaction tx = graphDb.beginTx())
+        {
+            //Assuming we only get one relationship in return.
+            for (final Relationship relationship : findRelationships(relationshipStorage, true))
+            {
+                tx.success();
+                return HashCreator.hashFromRelationship(relationshipStorage).matches(relationship.getProperty(Constants.TAG_HASH, null));
+            }
+            tx.success();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't execute hash for relationship", e);
+        }
+
+        return false;
+    }
+
+    /**
+     * Applies a write set with one UNWIND query for each run of consecutive operations of the same kind and shape,
+     * all inside one transaction. Runs keep the order of the write set, so later operations see the earlier ones.
+     * If an operation can't be batched or the batch fails, the operations are applied one by one instead.
+     * @param writeSet the operations of the commit.
+     * @param snapshotId the snapshot id of the commit.
+     */
+    @Override
+    public void applyWriteSet(final List<Operation> writeSet, final long snapshotId)
+    {
+        if (writeSet.size() < 2)
+        {
+            IDatabaseAccess.super.applyWriteSet(writeSet, snapshotId);
+            return;
+        }
+
+        for (final Operation op : writeSet)
+        {
+            if (getBatchKind(op) == null)
+            {
+                Log.getLogger().info("Can't batch operation " + op + ", applying the write set per operation");
+                IDatabaseAccess.super.applyWriteSet(writeSet, snapshotId);
+                return;
+            }
+        }
+
+        //Schema changes can't run in the transaction of the batch.
+        createPendingIndexes();
+        for (final Operation op : writeSet)
+        {
+            if (op instanceof CreateOperation && ((CreateOperation<?>) op).getStorage() instanceof NodeStorage)
+            {
+                createIndex(((NodeStorage) ((CreateOperation<?>) op).getStorage()).getId(), Constants.TAG_ID);
+            }
+        }
+
+        final List<Runnable> notifications = new ArrayList<>();
+        try(Transaction tx = graphDb.beginTx())
+        {
+            BatchGroup group = null;
+            for (final Operation op : writeSet)
+            {
+                final CypherQueryCache.Kind kind = getBatchKind(op);
+                final String query = getBatchQuery(kind, op);
+                if (group == null || !group.query.equals(query))
+                {
+                    executeBatch(group, notifications);
+                    group = new BatchGroup(kind, query);
+                }
+                group.rows.add(getBatchRow(kind, op, snapshotId, notifications));
+            }
+            executeBatch(group, notifications);
+            tx.success();
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Couldn't execute batched write set in server " + id + ", applying it per operation", e);
+            IDatabaseAccess.super.applyWriteSet(writeSet, snapshotId);
+            return;
+        }
 
-        //Contains params of relationshipStorage.
-        Map<String, Object> properties = transFormToPropertyMap(relationshipStorage.getProperties(), "");
+        for (final Runnable notification : notifications)
+        {
+            notification.run();
+        }
+        Log.getLogger().info("Executed batched write set of " + writeSet.size() + " operations in server: " + id);
+    }
+
+    /**
+     * Gets the kind of batch query of an operation.
+     * @param op the operation.
+     * @return the kind or null if the operation has no node or relationship.
+     */
+    private static CypherQueryCache.Kind getBatchKind(final Operation op)
+    {
+        if (op instanceof CreateOperation)
+        {
+            final Object storage = ((CreateOperation<?>) op).getStorage();
+            if (storage instanceof NodeStorage)
+            {
+                return CypherQueryCache.Kind.CREATE_NODES;
+            }
+            return storage instanceof RelationshipStorage ? CypherQueryCache.Kind.CREATE_RELATIONSHIPS : null;
+        }
+        if (op instanceof DeleteOperation)
+        {
+            final Object storage = ((DeleteOperation<?>) op).getStorage();
+            if (storage instanceof NodeStorage)
+            {
+                return CypherQueryCache.Kind.DELETE_NODES;
+            }
+            return storage instanceof RelationshipStorage ? CypherQueryCache.Kind.DELETE_RELATIONSHIPS : null;
+        }
+        if (op instanceof UpdateOperation)
+        {
+            final Object key = ((UpdateOperation<?>) op).getKey();
+            final Object value = ((UpdateOperation<?>) op).getValue();
+            if (key instanceof NodeStorage && value instanceof NodeStorage)
+            {
+                return CypherQueryCache.Kind.UPDATE_NODES;
+            }
+            if (key instanceof RelationshipStorage && value instanceof RelationshipStorage)
+            {
+                return CypherQueryCache.Kind.UPDATE_RELATIONSHIPS;
+            }
+        }
+        return null;
+    }
 
-        //Adds also params of start and end node.
-        properties.putAll(transFormToPropertyMap(relationshipStorage.getStartNode().getProperties(), "1"));
-        properties.putAll(transFormToPropertyMap(relationshipStorage.getEndNode().getProperties(), "2"));
+    /**
+     * Gets the node or relationship an operation matches or creates.
+     * @param op the operation.
+     * @return the storage.
+     */
+    private static Object getBatchStorage(final Operation op)
+    {
+        if (op instanceof CreateOperation)
+        {
+            return ((CreateOperation<?>) op).getStorage();
+        }
+        if (op instanceof DeleteOperation)
+        {
+            return ((DeleteOperation<?>) op).getStorage();
+        }
+        return ((UpdateOperation<?>) op).getKey();
+    }
 
-        Result result = graphDb.execute(builder, properties);
+    /**
+     * Gets the batch query of an operation, equal for operations of the same kind and shape.
+     * @param kind the kind of the operation.
+     * @param op the operation.
+     * @return the query text.
+     */
+    private String getBatchQuery(final CypherQueryCache.Kind kind, final Operation op)
+    {
+        final Object storage = getBatchStorage(op);
+        switch (kind)
+        {
+            case CREATE_NODES:
+            case UPDATE_NODES:
+            case DELETE_NODES:
+                return queries.getNodeQuery(kind, (NodeStorage) storage);
+            case CREATE_RELATIONSHIPS:
+                return queries.getRelationshipQuery(kind, (RelationshipStorage) storage, CompactProperties.EMPTY);
+            default:
+                return queries.getRelationshipQuery(kind, (RelationshipStorage) storage, ((RelationshipStorage) storage).getMatchProperties());
+        }
+    }
 
-        //Assuming we only get one node in return.
-        if (result.hasNext())
+    /**
+     * Gets the param row of an operation, creates get their hash here already.
+     * @param kind the kind of the operation.
+     * @param op the operation.
+     * @param snapshotId the snapshot id of the commit.
+     * @param notifications the hash notifications to add to, sent after the commit.
+     * @return the row.
+     * @throws NoSuchAlgorithmException if the hash algorithm is missing.
+     */
+    private Map<String, Object> getBatchRow(final CypherQueryCache.Kind kind, final Operation op, final long snapshotId, final List<Runnable> notifications)
+            throws NoSuchAlgorithmException
+    {
+        final Object storage = getBatchStorage(op);
+        final Map<String, Object> row;
+        switch (kind)
         {
-            Map<String, Object> value = result.next();
-            for (Map.Entry<String, Object> entry : value.entrySet())
+            case CREATE_NODES:
             {
-                if (entry.getValue() instanceof NodeProxy)
+                final NodeStorage node = (NodeStorage) storage;
+                final byte[] hash = HashCreator.hashFromNode(node).toBytes();
+                row = new HashMap<>();
+                row.put(CypherQueryCache.PROPS, node.getCompactProperties().with(Constants.TAG_HASH, hash).with(Constants.TAG_SNAPSHOT_ID, snapshotId).toHashMap());
+                notifications.add(() -> hashListener.hashAdded(IHashListener.ElementType.NODE, node.getId(), node.getElementId(), hash));
+                return row;
+            }
+            case CREATE_RELATIONSHIPS:
+            {
+                //The hash is set once the relationship exists, it covers the stored start and end node.
+                final RelationshipStorage relationship = (RelationshipStorage) storage;
+                row = CypherQueryCache.getRelationshipParams(relationship, CompactProperties.EMPTY);
+                row.put(CypherQueryCache.PROPS, relationship.getCompactProperties().with(Constants.TAG_SNAPSHOT_ID, snapshotId).toHashMap());
+                return row;
+            }
+            case UPDATE_NODES:
+                row = CypherQueryCache.getNodeParams((NodeStorage) storage);
+                break;
+            case DELETE_NODES:
+                return CypherQueryCache.getNodeParams((NodeStorage) storage);
+            default:
+                row = CypherQueryCache.getRelationshipParams((RelationshipStorage) storage, ((RelationshipStorage) storage).getMatchProperties());
+                if (kind == CypherQueryCache.Kind.DELETE_RELATIONSHIPS)
                 {
-                    NodeProxy n = (NodeProxy) entry.getValue();
+                    return row;
+                }
+                break;
+        }
+
+        //The id of an element never changes.
+        final Object value = ((UpdateOperation<?>) op).getValue();
+        final CompactProperties properties = value instanceof NodeStorage
+                ? ((NodeStorage) value).getCompactProperties()
+                : ((RelationshipStorage) value).getCompactProperties();
+        row.put(CypherQueryCache.PROPS, properties.without(Constants.TAG_ID).with(Constants.TAG_SNAPSHOT_ID, snapshotId).toHashMap());
+        return row;
+    }
+
+    /**
+     * Executes the query of a batch and maintains the hashes of the written elements, has to run inside a transaction.
+     * @param group the batch, may be null.
+     * @param notifications the hash notifications to add to, sent after the commit.
+     * @throws NoSuchAlgorithmException if the hash algorithm is missing.
+     */
+    private void executeBatch(final BatchGroup group, final List<Runnable> notifications) throws NoSuchAlgorithmException
+    {
+        if (group == null || group.rows.isEmpty())
+        {
+            return;
+        }
 
-                    try
+        final Map<String, Object> params = Collections.singletonMap(CypherQueryCache.ROWS, group.rows);
+        final Result result = graphDb.execute(group.query, params);
+        switch (group.kind)
+        {
+            case CREATE_NODES:
+                result.close();
+                break;
+            case UPDATE_NODES:
+                for (final Node node : Iterators.asList(result.<Node>columnAs("n")))
+                {
+                    final Object oldHash = node.getProperty(Constants.TAG_HASH, null);
+                    final String label = getLabel(node);
+                    final long elementId = getElementId(node);
+                    final byte[] newHash = HashCreator.hashFromNode(toNodeStorage(node)).toBytes();
+                    node.setProperty(Constants.TAG_HASH, newHash);
+                    notifications.add(() -> hashListener.hashReplaced(IHashListener.ElementType.NODE, label, elementId, oldHash, newHash));
+                }
+                break;
+            case DELETE_NODES:
+                //Deletes the relationships of the node as well, like detach delete.
+                for (final Node node : Iterators.asList(result.<Node>columnAs("n")))
+                {
+                    for (final Relationship relationship : node.getRelationships())
                     {
-                        return HashCreator.sha1FromRelationship(relationshipStorage).equals(n.getProperty(Constants.TAG_HASH));
+                        final String type = relationship.getType().name();
+                        final long elementId = getElementId(relationship);
+                        final Object hash = relationship.getProperty(Constants.TAG_HASH, null);
+                        notifications.add(() -> hashListener.hashRemoved(IHashListener.ElementType.RELATIONSHIP, type, elementId, hash));
+                        relationship.delete();
                     }
-                    catch (NoSuchAlgorithmException e)
+                    final String label = getLabel(node);
+                    final long elementId = getElementId(node);
+                    final Object hash = node.getProperty(Constants.TAG_HASH, null);
+                    notifications.add(() -> hashListener.hashRemoved(IHashListener.ElementType.NODE, label, elementId, hash));
+                    node.delete();
+                }
+                break;
+            case CREATE_RELATIONSHIPS:
+                final Set<Long> createdIds = new HashSet<>();
+                for (final Relationship relationship : Iterators.asList(result.<Relationship>columnAs("r")))
+                {
+                    final String type = relationship.getType().name();
+                    final long elementId = getElementId(relationship);
+                    if (elementId != ElementIds.NONE && !createdIds.add(elementId))
                     {
-                        Log.getLogger().warn("Couldn't execute SHA1 for relationship", e);
+                        //The per operation path rejects creates which don't connect exactly one node pair.
+                        throw new IllegalStateException("Create of relationship " + elementId + " matched more than one start and end node pair");
                     }
-                    break;
+                    final byte[] hash = HashCreator.hashFromRelationship(toRelationshipStorage(relationship)).toBytes();
+                    relationship.setProperty(Constants.TAG_HASH, hash);
+                    notifications.add(() -> hashListener.hashAdded(IHashListener.ElementType.RELATIONSHIP, type, elementId, hash));
                 }
-            }
+                break;
+            case UPDATE_RELATIONSHIPS:
+                for (final Relationship relationship : Iterators.asList(result.<Relationship>columnAs("r")))
+                {
+                    final Object oldHash = relationship.getProperty(Constants.TAG_HASH, null);
+                    final String type = relationship.getType().name();
+                    final long elementId = getElementId(relationship);
+                    final byte[] newHash = HashCreator.hashFromRelationship(toRelationshipStorage(relationship)).toBytes();
+                    relationship.setProperty(Constants.TAG_HASH, newHash);
+                    notifications.add(() -> hashListener.hashReplaced(IHashListener.ElementType.RELATIONSHIP, type, elementId, oldHash, newHash));
+                }
+                break;
+            default:
+                //Deletes of relationships return the type, id and hash of each.
+                while (result.hasNext())
+                {
+                    final Map<String, Object> row = result.next();
+                    final String type = (String) row.get("type");
+                    final long elementId = ElementIds.fromValue(row.get("id"));
+                    final Object hash = row.get("hash");
+                    notifications.add(() -> hashListener.hashRemoved(IHashListener.ElementType.RELATIONSHIP, type, elementId, hash));
+                }
+                break;
         }
+    }
 
-        return false;
+    /**
+     * Consecutive operations of the same kind and shape, executed with one query.
+     */
+    private static final class BatchGroup
+    {
+        private final CypherQueryCache.Kind          kind;
+        private final String                         query;
+        private final List<Map<String, Object>>      rows = new ArrayList<>();
+
+        private BatchGroup(final CypherQueryCache.Kind kind, final String query)
+        {
+            this.kind = kind;
+            this.query = query;
+        }
     }
 
     /**
@@ -1,20 +1,37 @@
 package main.java.com.bag.server.database;
 
+import com.orientechnologies.orient.core.exception.OCommandExecutionException;
 import com.orientechnologies.orient.core.exception.OQueryParsingException;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.intent.OIntentMassiveInsert;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OProperty;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
 import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Parameter;
 import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.orient.OrientEdge;
 import com.tinkerpop.blueprints.impls.orient.OrientGraph;
 import com.tinkerpop.blueprints.impls.orient.OrientGraphFactory;
+import com.tinkerpop.blueprints.impls.orient.OrientGraphNoTx;
+import com.tinkerpop.blueprints.impls.orient.OrientVertex;
+import com.tinkerpop.blueprints.impls.orient.OrientVertexType;
 import main.java.com.bag.exceptions.OutDatedDataException;
+import main.java.com.bag.operations.Operation;
 import main.java.com.bag.server.database.interfaces.IDatabaseAccess;
+import main.java.com.bag.server.database.interfaces.IHashListener;
 import main.java.com.bag.util.*;
+import main.java.com.bag.util.storage.CompactProperties;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -26,7 +43,7 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
     /**
      * The base path of the database.
      */
-    private static final String BASE_PATH = "PLOCAL:../home/ray/IdeaProjects/BAG - Byzantine fault-tolerant Architecture for Graph database/OrientDB";
+    private static final String BASE_PATH = "OrientDB";
 
     /**
      * The id of the server.
@@ -38,6 +55,51 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
      */
     private OrientGraphFactory factory;
 
+    /**
+     * Gets notified about the hashes of written and deleted elements.
+     */
+    private IHashListener hashListener = IHashListener.NONE;
+
+    /**
+     * Amount of query shapes after which the cache is cleared, protects against clients sending arbitrary keys.
+     */
+    private static final int MAX_QUERIES = 4096;
+
+    /**
+     * Base class of all vertices.
+     */
+    private static final String VERTEX_CLASS = "V";
+
+    /**
+     * Parameterized vertex queries by class and property keys.
+     */
+    private final Map<String, String> queries = new ConcurrentHashMap<>();
+
+    /**
+     * Usage counters of the class and property key pairs in lookups, by class and key.
+     */
+    private final Map<String, Map<String, IndexUsage>> indexUsage = new ConcurrentHashMap<>();
+
+    /**
+     * Amount of ordered lookups of a class and property key pair after which an index is created on it, 0 to disable.
+     */
+    private final long autoIndexThreshold = BagConfiguration.getLong("orientdb.index.auto.threshold", 0);
+
+    /**
+     * Pairs which reached the threshold, created before the next ordered request runs.
+     */
+    private final Set<IndexUsage> pendingIndexes = new LinkedHashSet<>();
+
+    /**
+     * Size of the write sets from which on the massive insert intent is declared, 0 to disable.
+     */
+    private final int massiveInsertThreshold = BagConfiguration.getInt("orientdb.massive.insert.threshold", 1000);
+
+    /**
+     * The open transaction of each thread.
+     */
+    private final ThreadLocal<Session> sessions = new ThreadLocal<>();
+
     /**
      * Constructor which sets the id of the server already.
      * @param id sets the id.
@@ -50,7 +112,285 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
     @Override
     public void start()
     {
-        factory = new OrientGraphFactory(BASE_PATH).setupPool(1,10);
+        final String storage = BagConfiguration.getString("orientdb.storage", "plocal");
+        final String path = BagConfiguration.getString("orientdb.path." + id, null);
+        final String url = storage + ":" + (path == null ? BagConfiguration.getString("orientdb.path", BASE_PATH) + id : path);
+        Log.getLogger().info("Starting orientdb database service on " + url);
+
+        factory = new OrientGraphFactory(url).setupPool(BagConfiguration.getInt("orientdb.pool.min", 1), BagConfiguration.getInt("orientdb.pool.max", 10));
+
+        //Schema changes can't run inside a transaction.
+        final OrientGraphNoTx graph = factory.getNoTx();
+        try
+        {
+            createIdIndex(graph, Vertex.class);
+            createIdIndex(graph, Edge.class);
+            createHashIndex(graph, Vertex.class);
+            createHashIndex(graph, Edge.class);
+        }
+        finally
+        {
+            graph.shutdown();
+        }
+
+        for (final String[] index : BagConfiguration.getPairs("orientdb.indexes"))
+        {
+            final int separator = index[1].indexOf(':');
+            if (separator < 0)
+            {
+                createIndex(index[0], index[1], null);
+            }
+            else
+            {
+                createIndex(index[0], index[1].substring(0, separator), OType.valueOf(index[1].substring(separator + 1).toUpperCase(Locale.ROOT)));
+            }
+        }
+    }
+
+    /**
+     * Creates the index on the element id of all vertices or edges if it doesn't exist yet.
+     * @param graph the graph without transaction.
+     * @param elementClass vertex or edge.
+     * @param <T> the element type.
+     */
+    private static <T extends Element> void createIdIndex(final OrientGraphNoTx graph, final Class<T> elementClass)
+    {
+        if (!graph.getIndexedKeys(elementClass).contains(Constants.TAG_ID))
+        {
+            graph.createKeyIndex(Constants.TAG_ID, elementClass, new Parameter<>("type", "NOTUNIQUE"), new Parameter<>("keytype", "LONG"));
+        }
+    }
+
+    /**
+     * Creates the index on the hash of all vertices or edges if it doesn't exist yet.
+     * @param graph the graph without transaction.
+     * @param elementClass vertex or edge.
+     * @param <T> the element type.
+     */
+    private static <T extends Element> void createHashIndex(final OrientGraphNoTx graph, final Class<T> elementClass)
+    {
+        if (!graph.getIndexedKeys(elementClass).contains(Constants.TAG_HASH))
+        {
+            graph.createKeyIndex(Constants.TAG_HASH, elementClass, new Parameter<>("type", "NOTUNIQUE"), new Parameter<>("keytype", "BINARY"));
+        }
+    }
+
+    /**
+     * Creates an index on a property of a vertex class.
+     * The type of the property is taken from the schema or else from the stored values, so all replicas with the same
+     * data create the same index. Only call it while executing ordered requests.
+     * @param label the class.
+     * @param key the property key.
+     * @return true if the index exists afterwards.
+     */
+    @Override
+    public boolean createIndex(final String label, final String key)
+    {
+        return createIndex(label, key, null);
+    }
+
+    /**
+     * Creates an index on a property of a vertex class if it doesn't exist yet.
+     * @param label the class.
+     * @param key the property key.
+     * @param type the type of the property if it isn't in the schema, null to take it from the stored values.
+     * @return true if the index exists afterwards.
+     */
+    private boolean createIndex(final String label, final String key, final OType type)
+    {
+        if (label.isEmpty() || key.isEmpty())
+        {
+            return false;
+        }
+
+        final IndexUsage usage = getIndexUsage(label, key);
+        if (usage.isIndexed())
+        {
+            return true;
+        }
+
+        if (factory == null)
+        {
+            start();
+        }
+
+        //Schema changes can't run inside a transaction.
+        final OrientGraphNoTx graph = factory.getNoTx();
+        try
+        {
+            OrientVertexType vertexType = graph.getVertexType(label);
+            if (vertexType == null)
+            {
+                vertexType = graph.createVertexType(label);
+            }
+
+            if (!vertexType.areIndexed(key))
+            {
+                OProperty property = vertexType.getProperty(key);
+                if (property == null)
+                {
+                    final OType propertyType = type == null ? getStoredType(graph, label, key) : type;
+                    if (propertyType == null)
+                    {
+                        Log.getLogger().warn("Can't create index on " + label + "." + key + " without a type or stored values");
+                        return false;
+                    }
+                    property = vertexType.createProperty(key, propertyType);
+                }
+                property.createIndex(OClass.INDEX_TYPE.NOTUNIQUE);
+                Log.getLogger().info("Created index on " + label + "." + key);
+            }
+            usage.setIndexed(true);
+            return true;
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Couldn't create index on " + label + "." + key + " in server " + id, e);
+            return false;
+        }
+        finally
+        {
+            graph.shutdown();
+        }
+    }
+
+    /**
+     * Gets the type of the first stored value of a property.
+     * @param graph the graph.
+     * @param label the class.
+     * @param key the property key.
+     * @return the type or null if no vertex has the property.
+     */
+    private static OType getStoredType(final OrientGraphNoTx graph, final String label, final String key)
+    {
+        final Iterable<Vertex> vertices = graph.command(
+                new OSQLSynchQuery<Vertex>("SELECT FROM " + escape(label) + " WHERE " + escape(key) + " IS NOT NULL LIMIT 1")).execute();
+        for (final Vertex vertex : vertices)
+        {
+            return OType.getTypeByValue(vertex.getProperty(key));
+        }
+        return null;
+    }
+
+    @Override
+    public List<IndexUsage> getIndexUsage()
+    {
+        final List<IndexUsage> usages = new ArrayList<>();
+        for (final Map<String, IndexUsage> keys : indexUsage.values())
+        {
+            usages.addAll(keys.values());
+        }
+        return usages;
+    }
+
+    /**
+     * Gets the usage counters of a class and property key pair, creates them on the first use.
+     * @param label the class.
+     * @param key the property key.
+     * @return the counters.
+     */
+    private IndexUsage getIndexUsage(final String label, final String key)
+    {
+        return indexUsage.computeIfAbsent(label, l -> new ConcurrentHashMap<>()).computeIfAbsent(key, k -> new IndexUsage(label, k));
+    }
+
+    /**
+     * Counts a lookup of vertices by their class and properties.
+     * The pairs reaching the threshold through ordered lookups are the same on all replicas and become pending indexes.
+     * @param label the class.
+     * @param properties the matched properties.
+     * @param ordered true if executed for an ordered request.
+     */
+    private void recordLookup(final String label, final CompactProperties properties, final boolean ordered)
+    {
+        if (label.isEmpty())
+        {
+            return;
+        }
+
+        for (int i = 0; i < properties.size(); i++)
+        {
+            final IndexUsage usage = getIndexUsage(label, properties.getKey(i));
+            final long orderedLookups = usage.recordLookup(ordered, usage.isIndexed());
+            if (autoIndexThreshold > 0 && orderedLookups == autoIndexThreshold && !usage.isIndexed())
+            {
+                synchronized (pendingIndexes)
+                {
+                    pendingIndexes.add(usage);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the indexes which reached the threshold, called at the start of ordered requests outside of a transaction.
+     */
+    private void createPendingIndexes()
+    {
+        //Inside the transaction of a write set they wait for the next ordered request.
+        if (sessions.get() != null)
+        {
+            return;
+        }
+
+        final List<IndexUsage> pending;
+        synchronized (pendingIndexes)
+        {
+            if (pendingIndexes.isEmpty())
+            {
+                return;
+            }
+            pending = new ArrayList<>(pendingIndexes);
+            pendingIndexes.clear();
+        }
+
+        for (final IndexUsage usage : pending)
+        {
+            createIndex(usage.getLabel(), usage.getKey());
+        }
+    }
+
+    @Override
+    public void setHashListener(final IHashListener listener)
+    {
+        this.hashListener = listener;
+    }
+
+    @Override
+    public void scanHashes(final IHashListener listener)
+    {
+        if (factory == null)
+        {
+            start();
+        }
+
+        OrientGraph graph = factory.getTx();
+        try
+        {
+            for (final Vertex vertex : graph.getVertices())
+            {
+                listener.hashAdded(IHashListener.ElementType.NODE, getLabel(vertex), getElementId(vertex), vertex.getProperty(Constants.TAG_HASH));
+            }
+            for (final Edge edge : graph.getEdges())
+            {
+                listener.hashAdded(IHashListener.ElementType.RELATIONSHIP, edge.getLabel(), getElementId(edge), edge.getProperty(Constants.TAG_HASH));
+            }
+        }
+        finally
+        {
+            graph.shutdown();
+        }
+    }
+
+    /**
+     * Gets the class of a vertex, which is the label of the node.
+     * @param vertex the vertex.
+     * @return the label.
+     */
+    private static String getLabel(final Vertex vertex)
+    {
+        final Object label = vertex.getProperty("@class");
+        return label == null ? "" : label.toString();
     }
 
     /**
@@ -91,16 +431,7 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
             //If nodeStorage is null, we're obviously trying to read relationships.
             if(nodeStorage == null)
             {
-                final String relationshipId = "class:" + relationshipStorage.getId();
-
-                Iterable<Vertex> startNodes = getVertexList(relationshipStorage.getStartNode(), graph);
-                Iterable<Vertex> endNodes = getVertexList(relationshipStorage.getEndNode(), graph);
-
-                List<Edge> list = StreamSupport.stream(startNodes.spliterator(), false)
-                        .flatMap(vertex1 -> StreamSupport.stream(vertex1.getEdges(Direction.OUT, relationshipId).spliterator(), false))
-                        .filter(edge -> StreamSupport.stream(endNodes.spliterator(), false).anyMatch(vertex -> edge.getVertex(Direction.IN).equals(vertex)))
-                        .collect(Collectors.toList());
-                for(Edge edge: list)
+                for(Edge edge: getEdgeList(relationshipStorage, graph, false))
                 {
                     RelationshipStorage tempStorage = getRelationshipStorageFromEdge(edge, snapshotId);
                     returnStorage.add(tempStorage);
@@ -108,7 +439,7 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
             }
             else
             {
-                for (final Vertex tempVertex : getVertexList(nodeStorage, graph))
+                for (final Vertex tempVertex : getVertexList(nodeStorage, graph, false))
                 {
                     NodeStorage tempStorage = getNodeStorageFromVertex(tempVertex);
                     if(tempStorage.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
@@ -171,24 +502,219 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
      * Returns a list of vertices from the database matching the nodeStorage.
      * @param nodeStorage the nodeStorage.
      * @param graph the graph database.
+     * @param ordered true if executed for an ordered request.
+     * @return a list of vertices.
+     */
+    private Iterable<Vertex> getVertexList(final NodeStorage nodeStorage, final OrientGraph graph, final boolean ordered)
+    {
+        //Lookups match on the committed state, the session keeps the vertices written and removed in the open transaction.
+        final Session session = sessions.get();
+        if (session != null && session.graph == graph && !(session.written.isEmpty() && session.removed.isEmpty()))
+        {
+            final Map<ORID, Vertex> vertices = new LinkedHashMap<>();
+            for (final Vertex vertex : findVertices(nodeStorage, graph, ordered))
+            {
+                final ORID identity = ((OrientVertex) vertex).getIdentity();
+                if (!session.removed.contains(identity) && !session.written.containsKey(identity) && matches(vertex, nodeStorage))
+                {
+                    vertices.put(identity, vertex);
+                }
+            }
+            for (final Map.Entry<ORID, Vertex> entry : session.written.entrySet())
+            {
+                if (matches(entry.getValue(), nodeStorage))
+                {
+                    vertices.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return vertices.values();
+        }
+        return findVertices(nodeStorage, graph, ordered);
+    }
+
+    /**
+     * Checks if a vertex matches a nodeStorage.
+     * @param vertex the vertex.
+     * @param nodeStorage the nodeStorage.
+     * @return true if it has the label and the match properties.
+     */
+    private static boolean matches(final Vertex vertex, final NodeStorage nodeStorage)
+    {
+        if (!nodeStorage.getId().isEmpty() && !nodeStorage.getId().equals(getLabel(vertex)))
+        {
+            return false;
+        }
+
+        final CompactProperties properties = nodeStorage.getMatchProperties();
+        for (int i = 0; i < properties.size(); i++)
+        {
+            if (!valueEquals(properties.getValue(i), vertex.getProperty(properties.getKey(i))))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Compares a matched value with a stored one, numbers by value like the queries do.
+     * @param expected the matched value.
+     * @param actual the stored value.
+     * @return true if equal.
+     */
+    private static boolean valueEquals(final Object expected, final Object actual)
+    {
+        if (expected instanceof Number && actual instanceof Number)
+        {
+            if (isIntegral(expected) && isIntegral(actual))
+            {
+                return ((Number) expected).longValue() == ((Number) actual).longValue();
+            }
+            return Double.compare(((Number) expected).doubleValue(), ((Number) actual).doubleValue()) == 0;
+        }
+        return Objects.deepEquals(expected, actual);
+    }
+
+    /**
+     * Checks if a number has no fraction.
+     * @param number the number.
+     * @return true for bytes, shorts, ints and longs.
+     */
+    private static boolean isIntegral(final Object number)
+    {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    /**
+     * Queries the committed vertices matching the nodeStorage.
+     * @param nodeStorage the nodeStorage.
+     * @param graph the graph database.
+     * @param ordered true if executed for an ordered request.
      * @return a list of vertices.
      */
-    private Iterable<Vertex> getVertexList(final NodeStorage nodeStorage, final OrientGraph graph)
+    private Iterable<Vertex> findVertices(final NodeStorage nodeStorage, final OrientGraph graph, final boolean ordered)
     {
-        String[] propertyKeys   = nodeStorage.getProperties().keySet().toArray(new String[0]);
-        Object[] propertyValues = nodeStorage.getProperties().values().toArray();
+        if (nodeStorage.hasElementId())
+        {
+            final Iterable<Vertex> vertices = graph.getVertices(Constants.TAG_ID, nodeStorage.getElementId());
+            if (nodeStorage.getId().isEmpty())
+            {
+                return vertices;
+            }
+            return StreamSupport.stream(vertices.spliterator(), false)
+                    .filter(vertex -> nodeStorage.getId().equals(getLabel(vertex)))
+                    .collect(Collectors.toList());
+        }
+
+        final CompactProperties properties = nodeStorage.getMatchProperties();
+        recordLookup(nodeStorage.getId(), properties, ordered);
+
+        final Object[] params = new Object[properties.size()];
+        for (int i = 0; i < params.length; i++)
+        {
+            params[i] = properties.getValue(i);
+        }
 
         try
         {
-            return graph.getVertices(nodeStorage.getId(), propertyKeys, propertyValues);
+            //The query objects keep their results, so only the text is shared, orientdb caches its parsed form.
+            return graph.command(new OSQLSynchQuery<Vertex>(getVertexQuery(nodeStorage.getId(), properties))).execute(params);
         }
-        catch(OQueryParsingException e)
+        catch(OQueryParsingException | OCommandExecutionException e)
         {
             Log.getLogger().info(String.format("Class %s doesn't exist.", nodeStorage.getId()), e);
             return Collections.emptyList();
         }
     }
 
+    /**
+     * Gets the parameterized query matching vertices of a class on properties, built once per shape.
+     * @param label the class, empty for all vertices.
+     * @param properties the matched properties, their values are the params in the order of the keys.
+     * @return the query text.
+     */
+    private String getVertexQuery(final String label, final CompactProperties properties)
+    {
+        final StringBuilder shape = new StringBuilder(label);
+        for (int i = 0; i < properties.size(); i++)
+        {
+            shape.append('\0').append(properties.getKey(i));
+        }
+
+        final String key = shape.toString();
+        final String query = queries.get(key);
+        if (query != null)
+        {
+            return query;
+        }
+
+        final StringBuilder builder = new StringBuilder("SELECT FROM ").append(label.isEmpty() ? VERTEX_CLASS : escape(label));
+        for (int i = 0; i < properties.size(); i++)
+        {
+            builder.append(i == 0 ? " WHERE " : " AND ").append(escape(properties.getKey(i))).append(" = ?");
+        }
+
+        if (queries.size() >= MAX_QUERIES)
+        {
+            queries.clear();
+        }
+        final String built = builder.toString();
+        queries.put(key, built);
+        return built;
+    }
+
+    /**
+     * Quotes a class or property name with backticks, so labels and keys can't change the query.
+     * @param name the name.
+     * @return the quoted name.
+     */
+    private static String escape(final String name)
+    {
+        return '`' + name.replace("`", "\\`") + '`';
+    }
+
+    /**
+     * Returns a list of edges from the database matching the relationshipStorage.
+     * @param relationshipStorage the relationshipStorage.
+     * @param graph the graph database.
+     * @param ordered true if executed for an ordered request.
+     * @return a list of edges.
+     */
+    private List<Edge> getEdgeList(final RelationshipStorage relationshipStorage, final OrientGraph graph, final boolean ordered)
+    {
+        if (relationshipStorage.hasElementId())
+        {
+            return StreamSupport.stream(graph.getEdges(Constants.TAG_ID, relationshipStorage.getElementId()).spliterator(), false)
+                    .filter(edge -> relationshipStorage.getId().isEmpty() || relationshipStorage.getId().equals(edge.getLabel()))
+                    .collect(Collectors.toList());
+        }
+
+        //The end vertices are queried once, the edges then only compare the record id of their in vertex.
+        final Set<ORID> endNodeIds = new HashSet<>();
+        for (final Vertex vertex : getVertexList(relationshipStorage.getEndNode(), graph, ordered))
+        {
+            endNodeIds.add(((OrientVertex) vertex).getIdentity());
+        }
+        if (endNodeIds.isEmpty())
+        {
+            return Collections.emptyList();
+        }
+
+        final String[] labels = relationshipStorage.getId().isEmpty() ? new String[0] : new String[] {"class:" + relationshipStorage.getId()};
+        final List<Edge> edges = new ArrayList<>();
+        for (final Vertex vertex : getVertexList(relationshipStorage.getStartNode(), graph, ordered))
+        {
+            for (final Edge edge : vertex.getEdges(Direction.OUT, labels))
+            {
+                if (endNodeIds.contains(((OrientEdge) edge).getInVertex().getIdentity()))
+                {
+                    edges.add(edge);
+                }
+            }
+        }
+        return edges;
+    }
+
     /**
      * Kills the graph database.
      */
@@ -212,13 +738,14 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
             start();
         }
 
+        createPendingIndexes();
         OrientGraph graph = factory.getTx();
         try
         {
             //Assuming we only get one node in return.
-            for (final Vertex tempVertex : getVertexList(nodeStorage, graph))
+            for (final Vertex tempVertex : getVertexList(nodeStorage, graph, true))
             {
-                return HashCreator.sha1FromNode(nodeStorage).equals(tempVertex.getProperty("hash"));
+                return HashCreator.hashFromNode(nodeStorage).matches(tempVertex.getProperty(Constants.TAG_HASH));
             }
         }
         catch(NoSuchAlgorithmException e)
@@ -236,135 +763,146 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyUpdate(final NodeStorage key, final NodeStorage value, final long snapshotId)
     {
-        OrientGraph graph = factory.getTx();
+        createPendingIndexes();
+        final Session session = begin();
         try
         {
-            Iterable<Vertex> result = getVertexList(key, graph);
-
-            for (Vertex vertex : result)
+            for (final Vertex vertex : getVertexList(key, session.graph, true))
             {
+                final Object oldHash = vertex.getProperty(Constants.TAG_HASH);
                 for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
                 {
                     vertex.setProperty(entry.getKey(), entry.getValue());
                 }
 
-                vertex.setProperty(Constants.TAG_HASH, HashCreator.sha1FromNode(getNodeStorageFromVertex(vertex)));
+                final byte[] newHash = HashCreator.hashFromNode(getNodeStorageFromVertex(vertex)).toBytes();
+                vertex.setProperty(Constants.TAG_HASH, newHash);
                 vertex.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                session.written.put(((OrientVertex) vertex).getIdentity(), vertex);
+                final String label = getLabel(vertex);
+                final long elementId = getElementId(vertex);
+                session.notifications.add(() -> hashListener.hashReplaced(IHashListener.ElementType.NODE, label, elementId, oldHash, newHash));
             }
-
-            graph.commit();
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute update node transaction in server:  " + id, e);
-            return false;
+            return end(session, false);
         }
-        finally
-        {
-            graph.shutdown();
-        }
-        return true;
+        return end(session, true);
     }
 
     @Override
     public boolean applyCreate(final NodeStorage storage, final long snapshotId)
     {
-        OrientGraph graph = factory.getTx();
+        createPendingIndexes();
+        final Session session = begin();
         try
         {
             String vertexClass = "class:" + storage.getId();
-            Vertex vertex = graph.addVertex(vertexClass);
+            Vertex vertex = session.graph.addVertex(vertexClass);
             for (Map.Entry<String, Object> entry : storage.getProperties().entrySet())
             {
                 vertex.setProperty(entry.getKey(), entry.getValue());
             }
-            vertex.setProperty(Constants.TAG_HASH, HashCreator.sha1FromNode(storage));
+            final byte[] hash = HashCreator.hashFromNode(storage).toBytes();
+            vertex.setProperty(Constants.TAG_HASH, hash);
             vertex.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
-
-            graph.commit();
+            session.written.put(((OrientVertex) vertex).getIdentity(), vertex);
+            session.notifications.add(() -> hashListener.hashAdded(IHashListener.ElementType.NODE, storage.getId(), storage.getElementId(), hash));
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute create node transaction in server:  " + id, e);
-            return false;
+            return end(session, false);
         }
-        finally
+        if (!end(session, true))
         {
-            graph.shutdown();
+            return false;
         }
         Log.getLogger().warn("Successfully executed create node transaction in server:  " + id);
-
         return true;
     }
 
     @Override
     public boolean applyDelete(final NodeStorage storage, final long snapshotId)
     {
-        OrientGraph graph = factory.getTx();
+        createPendingIndexes();
+        final Session session = begin();
         try
         {
-            for (final Vertex vertex : getVertexList(storage, graph))
+            for (final Vertex vertex : getVertexList(storage, session.graph, true))
             {
+                for (final Edge edge : vertex.getEdges(Direction.BOTH))
+                {
+                    notifyRemoved(session, IHashListener.ElementType.RELATIONSHIP, edge.getLabel(), edge);
+                }
+                notifyRemoved(session, IHashListener.ElementType.NODE, getLabel(vertex), vertex);
+                final ORID identity = ((OrientVertex) vertex).getIdentity();
+                session.written.remove(identity);
+                session.removed.add(identity);
                 vertex.remove();
             }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute delete node transaction in server:  " + id, e);
-            return false;
+            return end(session, false);
         }
-        finally
-        {
-            graph.shutdown();
-        }
-        return true;
+        return end(session, true);
     }
 
     @Override
     public boolean applyUpdate(final RelationshipStorage key, final RelationshipStorage value, final long snapshotId)
     {
-        OrientGraph graph = factory.getTx();
+        createPendingIndexes();
+        final Session session = begin();
         try
         {
-            final String relationshipId = "class:" + key.getId();
-
-            Iterable<Vertex> startNodes = getVertexList(key.getStartNode(), graph);
-            Iterable<Vertex> endNodes = getVertexList(key.getEndNode(), graph);
-
-            List<Edge> list = StreamSupport.stream(startNodes.spliterator(), false)
-                    .flatMap(vertex1 -> StreamSupport.stream(vertex1.getEdges(Direction.OUT, relationshipId).spliterator(), false))
-                    .filter(edge -> StreamSupport.stream(endNodes.spliterator(), false).anyMatch(vertex -> edge.getVertex(Direction.IN).equals(vertex)))
-                    .collect(Collectors.toList());
-            for (Edge edge : list)
+            for (Edge edge : getEdgeList(key, session.graph, true))
             {
+                final Object oldHash = edge.getProperty(Constants.TAG_HASH);
                 for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
                 {
                     edge.setProperty(entry.getKey(), entry.getValue());
                 }
-                edge.setProperty(Constants.TAG_HASH, HashCreator.sha1FromRelationship(getRelationshipStorageFromEdge(edge, snapshotId)));
+                final byte[] newHash = HashCreator.hashFromRelationship(getRelationshipStorageFromEdge(edge, snapshotId)).toBytes();
+                edge.setProperty(Constants.TAG_HASH, newHash);
                 edge.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                final String label = edge.getLabel();
+                final long elementId = getElementId(edge);
+                session.notifications.add(() -> hashListener.hashReplaced(IHashListener.ElementType.RELATIONSHIP, label, elementId, oldHash, newHash));
             }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute update relationship transaction in server:  " + id, e);
-            return false;
+            return end(session, false);
         }
-        finally
-        {
-            graph.shutdown();
-        }
-        return true;
+        return end(session, true);
     }
 
     @Override
     public boolean applyCreate(final RelationshipStorage storage, final long snapshotId)
     {
-        OrientGraph graph = factory.getTx();
+        createPendingIndexes();
+        final Session session = begin();
         try
         {
-            Iterable<Vertex> startNodes = this.getVertexList(storage.getStartNode(), graph);
-            Iterable<Vertex> endNodes = this.getVertexList(storage.getEndNode(), graph);
+            final List<Vertex> startNodes = new ArrayList<>();
+            this.getVertexList(storage.getStartNode(), session.graph, true).forEach(startNodes::add);
+            //Materialized, else the query runs again for every start node.
+            final List<Vertex> endNodes = new ArrayList<>();
+            this.getVertexList(storage.getEndNode(), session.graph, true).forEach(endNodes::add);
+
+            //An element id names a single edge, so it can only connect exactly one start and one end vertex.
+            if (storage.hasElementId() && (startNodes.size() != 1 || endNodes.size() != 1))
+            {
+                Log.getLogger().warn("Create of relationship " + storage.getElementId() + " matched " + startNodes.size() + " start and "
+                        + endNodes.size() + " end vertices instead of one each, rejecting it in server: " + id);
+                end(session, true);
+                return false;
+            }
 
             for (Vertex startNode : startNodes)
             {
@@ -377,20 +915,24 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
                     {
                         edge.setProperty(entry.getKey(), entry.getValue());
                     }
-                    edge.setProperty(Constants.TAG_HASH, HashCreator.sha1FromRelationship(storage));
                     edge.setProperty(Constants.TAG_SNAPSHOT_ID, snapshotId);
+
+                    //The hash covers the stored start and end vertex, the request may only reference them.
+                    final byte[] hash = HashCreator.hashFromRelationship(getRelationshipStorageFromEdge(edge, snapshotId)).toBytes();
+                    edge.setProperty(Constants.TAG_HASH, hash);
+                    final long elementId = getElementId(edge);
+                    session.notifications.add(() -> hashListener.hashAdded(IHashListener.ElementType.RELATIONSHIP, storage.getId(), elementId, hash));
                 }
             }
-            graph.commit();
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute create relationship transaction in server:  " + id, e);
-            return false;
+            return end(session, false);
         }
-        finally
+        if (!end(session, true))
         {
-            graph.shutdown();
+            return false;
         }
         Log.getLogger().warn("Successfully executed create relationship transaction in server:  " + id);
         return true;
@@ -399,29 +941,193 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyDelete(final RelationshipStorage storage, final long snapshotId)
     {
-        OrientGraph graph = factory.getTx();
+        createPendingIndexes();
+        final Session session = begin();
         try
         {
-            final String relationshipId = "class:" + storage.getId();
-
-            Iterable<Vertex> startNodes = getVertexList(storage.getStartNode(), graph);
-            Iterable<Vertex> endNodes = getVertexList(storage.getEndNode(), graph);
-
-            StreamSupport.stream(startNodes.spliterator(), false)
-                    .flatMap(vertex1 -> StreamSupport.stream(vertex1.getEdges(Direction.OUT, relationshipId).spliterator(), false))
-                    .filter(edge -> StreamSupport.stream(endNodes.spliterator(), false).anyMatch(vertex -> edge.getVertex(Direction.IN).equals(vertex)))
-                    .forEach(Edge::remove);
+            for (final Edge edge : getEdgeList(storage, session.graph, true))
+            {
+                notifyRemoved(session, IHashListener.ElementType.RELATIONSHIP, edge.getLabel(), edge);
+                edge.remove();
+            }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute delete relationship transaction in server:  " + id, e);
-            return false;
+            return end(session, false);
+        }
+        return end(session, true);
+    }
+
+    /**
+     * Queues the notification about a removed vertex or edge until the transaction is committed.
+     * @param session the session of the thread.
+     * @param type the type of the element.
+     * @param label the label of the element.
+     * @param element the vertex or edge, read before it is removed.
+     */
+    private void notifyRemoved(final Session session, final IHashListener.ElementType type, final String label, final Element element)
+    {
+        final long elementId = getElementId(element);
+        final Object hash = element.getProperty(Constants.TAG_HASH);
+        session.notifications.add(() -> hashListener.hashRemoved(type, label, elementId, hash));
+    }
+
+    /**
+     * Gets the element id of a vertex or edge.
+     * @param element the vertex or edge.
+     * @return the id or ElementIds.NONE if it has none.
+     */
+    private static long getElementId(final Element element)
+    {
+        return ElementIds.fromValue(element.getProperty(Constants.TAG_ID));
+    }
+
+    /**
+     * Applies the write set of a commit in one transaction of one pooled graph.
+     * Queries of orientdb match on the committed state, lookups check the vertices written in the open transaction through the session.
+     * If an operation or the commit fails the whole write set is rolled back and applied per operation.
+     * Large write sets declare the massive insert intent.
+     * @param writeSet the operations of the commit.
+     * @param snapshotId the snapshot id of the commit.
+     */
+    @Override
+    public void applyWriteSet(final List<Operation> writeSet, final long snapshotId)
+    {
+        if (writeSet.size() < 2)
+        {
+            IDatabaseAccess.super.applyWriteSet(writeSet, snapshotId);
+            return;
+        }
+
+        //Schema changes can't run in the transaction of the write set.
+        createPendingIndexes();
+
+        final boolean massiveInsert = massiveInsertThreshold > 0 && writeSet.size() >= massiveInsertThreshold;
+        final Session session = begin();
+        if (massiveInsert)
+        {
+            session.graph.declareIntent(new OIntentMassiveInsert());
+        }
+
+        boolean committed = false;
+        try
+        {
+            for (final Operation op : writeSet)
+            {
+                op.apply(this, snapshotId);
+                if (session.failed)
+                {
+                    break;
+                }
+            }
+            committed = commit(session);
         }
         finally
         {
-            graph.shutdown();
+            if (massiveInsert)
+            {
+                session.graph.declareIntent(null);
+            }
+            sessions.remove();
+            session.graph.shutdown();
+        }
+
+        if (!committed)
+        {
+            Log.getLogger().warn("Couldn't execute write set of " + writeSet.size() + " operations in one transaction in server " + id + ", applying it per operation");
+            IDatabaseAccess.super.applyWriteSet(writeSet, snapshotId);
+            return;
+        }
+        Log.getLogger().debug("Executed write set of " + writeSet.size() + " operations in server: " + id);
+    }
+
+    /**
+     * Joins the open transaction of the thread or takes a graph of the pool for a new one.
+     * @return the session of the thread.
+     */
+    private Session begin()
+    {
+        if (factory == null)
+        {
+            start();
+        }
+
+        Session session = sessions.get();
+        if (session == null)
+        {
+            session = new Session(factory.getTx());
+            sessions.set(session);
+        }
+        session.depth++;
+        return session;
+    }
+
+    /**
+     * Ends an operation in the session of the thread. The outermost operation commits the transaction and returns
+     * the graph to the pool.
+     * @param session the session.
+     * @param success false if the operation failed, the transaction is rolled back.
+     * @return false if the operation or the transaction failed.
+     */
+    private boolean end(final Session session, final boolean success)
+    {
+        session.failed |= !success;
+        if (--session.depth > 0)
+        {
+            return success;
+        }
+
+        sessions.remove();
+        try
+        {
+            return commit(session);
+        }
+        finally
+        {
+            session.graph.shutdown();
+        }
+    }
+
+    /**
+     * Commits the transaction of a session and sends the hash notifications, or rolls it back if an operation failed.
+     * @param session the session.
+     * @return true if committed.
+     */
+    private boolean commit(final Session session)
+    {
+        try
+        {
+            if (session.failed)
+            {
+                session.graph.rollback();
+                return false;
+            }
+
+            try
+            {
+                session.graph.commit();
+            }
+            catch (Exception e)
+            {
+                Log.getLogger().warn("Couldn't commit transaction in server: " + id, e);
+                session.graph.rollback();
+                return false;
+            }
+
+            for (final Runnable notification : session.notifications)
+            {
+                notification.run();
+            }
+            return true;
+        }
+        finally
+        {
+            session.notifications.clear();
+            session.written.clear();
+            session.removed.clear();
+            session.failed = false;
         }
-        return true;
     }
 
     /**
@@ -437,21 +1143,13 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
             start();
         }
 
+        createPendingIndexes();
         OrientGraph graph = factory.getTx();
         try
         {
-            final String relationshipId = "class:" + relationshipStorage.getId();
-
-            Iterable<Vertex> startNodes = getVertexList(relationshipStorage.getStartNode(), graph);
-            Iterable<Vertex> endNodes = getVertexList(relationshipStorage.getEndNode(), graph);
-
-            List<Edge> list = StreamSupport.stream(startNodes.spliterator(), false)
-                    .flatMap(vertex1 -> StreamSupport.stream(vertex1.getEdges(Direction.OUT, relationshipId).spliterator(), false))
-                    .filter(edge -> StreamSupport.stream(endNodes.spliterator(), false).anyMatch(vertex -> edge.getVertex(Direction.IN).equals(vertex)))
-                    .collect(Collectors.toList());
-            for (Edge edge : list)
+            for (Edge edge : getEdgeList(relationshipStorage, graph, true))
             {
-                return HashCreator.sha1FromRelationship(relationshipStorage).equals(edge.getProperty(Constants.TAG_HASH));
+                return HashCreator.hashFromRelationship(relationshipStorage).matches(edge.getProperty(Constants.TAG_HASH));
             }
         }
         catch (NoSuchAlgorithmException e)
@@ -465,4 +1163,23 @@ public class OrientDBDatabaseAccess implements IDatabaseAccess
 
         return false;
     }
+
+    /**
+     * Transaction of a thread on a pooled graph. Operations started while it is open join it,
+     * so the operations of a write set share the graph and transaction. Vertices written and removed in it are kept for lookups.
+     */
+    private static final class Session
+    {
+        private final OrientGraph       graph;
+        private final List<Runnable>    notifications = new ArrayList<>();
+        private final Map<ORID, Vertex> written       = new LinkedHashMap<>();
+        private final Set<ORID>         removed       = new HashSet<>();
+        private int                     depth         = 0;
+        private boolean                 failed        = false;
+
+        private Session(final OrientGraph graph)
+        {
+            this.graph = graph;
+        }
+    }
 }
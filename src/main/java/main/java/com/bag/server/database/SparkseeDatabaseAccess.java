@@ -4,15 +4,19 @@ import com.sparsity.sparksee.gdb.*;
 import com.sparsity.sparksee.gdb.Objects;
 import main.java.com.bag.exceptions.OutDatedDataException;
 import main.java.com.bag.server.database.interfaces.IDatabaseAccess;
+import main.java.com.bag.server.database.interfaces.IHashListener;
 import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.ElementIds;
 import main.java.com.bag.util.HashCreator;
 import main.java.com.bag.util.Log;
+import main.java.com.bag.util.storage.CompactProperties;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
 
 import java.io.FileNotFoundException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Database access for the sparksee graph database.
@@ -22,6 +26,27 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
     private final int id;
     private Database db = null;
     private Sparksee sparksee;
+
+    /**
+     * Gets notified about the hashes of written and deleted elements.
+     */
+    private IHashListener hashListener = IHashListener.NONE;
+
+    /**
+     * The session of each thread, sparksee sessions may only be used by the thread which opened them.
+     */
+    private final ThreadLocal<Session> sessions = new ThreadLocal<>();
+
+    /**
+     * All open sessions, closed on termination.
+     */
+    private final Set<Session> openSessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Cached ids of the types and attributes.
+     */
+    private final SparkseeSchema schema = new SparkseeSchema();
+
     public SparkseeDatabaseAccess(int id)
     {
         this.id = id;
@@ -43,9 +68,121 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
         }
     }
 
+    @Override
+    public void setHashListener(final IHashListener listener)
+    {
+        this.hashListener = listener;
+    }
+
+    @Override
+    public void scanHashes(final IHashListener listener)
+    {
+        if (db == null)
+        {
+            start();
+        }
+
+        Graph graph = getGraph();
+        scanHashes(graph, graph.findNodeTypes(), IHashListener.ElementType.NODE, listener);
+        scanHashes(graph, graph.findEdgeTypes(), IHashListener.ElementType.RELATIONSHIP, listener);
+    }
+
+    /**
+     * Gets the graph of the session of the current thread, opens the session on first use.
+     * @return the graph.
+     */
+    private Graph getGraph()
+    {
+        Session session = sessions.get();
+        if (session == null)
+        {
+            session = db.newSession();
+            sessions.set(session);
+            openSessions.add(session);
+        }
+        return session.getGraph();
+    }
+
+    /**
+     * Reports the stored hashes of all objects of some types.
+     * @param graph the graph.
+     * @param types the node or edge types.
+     * @param elementType node or relationship.
+     * @param listener the listener.
+     */
+    private void scanHashes(final Graph graph, final TypeList types, final IHashListener.ElementType elementType, final IHashListener listener)
+    {
+        TypeListIterator typeIt = types.iterator();
+        while (typeIt.hasNext())
+        {
+            int type = typeIt.nextType();
+            String typeName = graph.getType(type).getName();
+            Objects objs = graph.select(type);
+            ObjectsIterator it = objs.iterator();
+            while (it.hasNext())
+            {
+                long oId = it.next();
+                listener.hashAdded(elementType, typeName, getElementId(graph, oId), getHash(graph, oId));
+            }
+            it.close();
+            objs.close();
+        }
+    }
+
+    /**
+     * Gets the stored hash of a node or edge.
+     * @param graph the graph.
+     * @param oId the object id.
+     * @return the hex hash or null if it has none.
+     */
+    private Object getHash(final Graph graph, final long oId)
+    {
+        int attributeId = schema.findAttribute(graph, Constants.TAG_HASH);
+        if (attributeId == Attribute.InvalidAttribute)
+        {
+            return null;
+        }
+        Value value = graph.getAttribute(oId, attributeId);
+        return value == null || value.isNull() ? null : value.getString();
+    }
+
+    /**
+     * Gets the element id of a node or edge.
+     * @param graph the graph.
+     * @param oId the object id.
+     * @return the id or ElementIds.NONE if it has none.
+     */
+    private long getElementId(final Graph graph, final long oId)
+    {
+        int attributeId = schema.findAttribute(graph, Constants.TAG_ID);
+        if (attributeId == Attribute.InvalidAttribute)
+        {
+            return ElementIds.NONE;
+        }
+        Value value = graph.getAttribute(oId, attributeId);
+        return value == null || value.isNull() ? ElementIds.NONE : ElementIds.fromValue(SparkseeUtils.getObjectFromValue(value));
+    }
+
+    /**
+     * Gets the type name of a node or edge, which is its label.
+     * @param graph the graph.
+     * @param oId the object id.
+     * @return the type name.
+     */
+    private static String getTypeName(final Graph graph, final long oId)
+    {
+        return graph.getType(graph.getObjectType(oId)).getName();
+    }
+
     @Override
     public void terminate()
     {
+        for (final Session session : openSessions)
+        {
+            session.close();
+        }
+        openSessions.clear();
+        schema.invalidate();
         db.close();
         sparksee.close();
     }
@@ -53,8 +190,7 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
     @Override
     public List<Object> readObject(final Object identifier, final long localSnapshotId) throws OutDatedDataException
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
+        Graph graph = getGraph();
 
         NodeStorage nodeStorage = null;
         RelationshipStorage relationshipStorage = null;
@@ -70,7 +206,6 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
         else
         {
             Log.getLogger().warn("Can't read data on object: " + identifier.getClass().toString());
-            sess.close();
             return Collections.emptyList();
         }
 
@@ -78,56 +213,31 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
 
         if (nodeStorage == null)
         {
-            NodeStorage startNode = relationshipStorage.getStartNode();
-            NodeStorage endNode = relationshipStorage.getEndNode();
-
-            Objects objsStart = findNode(graph, startNode);
-            Objects objsEnd = findNode(graph, endNode);
-
-            if (objsStart == null || objsEnd == null || objsStart.isEmpty() || objsEnd.isEmpty())
+            Objects edges = findRelationships(graph, relationshipStorage);
+            if (edges == null)
             {
-                if(objsStart != null)
-                {
-                    objsStart.close();
-                }
-                if(objsEnd != null)
-                {
-                    objsEnd.close();
-                }
-                sess.close();
                 return Collections.emptyList();
             }
 
-            ObjectsIterator itStart = objsStart.iterator();
-            ObjectsIterator itEnd = objsEnd.iterator();
-            //todo if no type given, then what?
-            //Sparkee, can't search for node or relationship without it's type set!
-            int relationshipTypeId = graph.findType(relationshipStorage.getId());
-
-            while (itStart.hasNext())
+            //Relationships of the same nodes share their reads.
+            final Map<Long, NodeStorage> nodes = new HashMap<>();
+            final Value value = new Value();
+            ObjectsIterator it = edges.iterator();
+            while (it.hasNext())
             {
-                long localStartNodeId = itStart.next();
-                while (itEnd.hasNext())
-                {
-                    long localEndNodeId = itEnd.next();
-
-                    long edgeId = graph.findEdge(relationshipTypeId, localStartNodeId, localEndNodeId);
-                    RelationshipStorage storage = getRelationshipFromRelationshipId(graph, edgeId);
-
-                    if (storage.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
-                    {
-                        Object sId = storage.getProperties().get(Constants.TAG_SNAPSHOT_ID);
-                        OutDatedDataException.checkSnapshotId(sId, localSnapshotId);
-                        storage.removeProperty(Constants.TAG_SNAPSHOT_ID);
-                    }
+                RelationshipStorage storage = getRelationshipFromRelationshipId(graph, it.next(), nodes, value);
 
-                    returnStorage.add(storage);
+                if (storage.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
+                {
+                    Object sId = storage.getProperties().get(Constants.TAG_SNAPSHOT_ID);
+                    OutDatedDataException.checkSnapshotId(sId, localSnapshotId);
+                    storage.removeProperty(Constants.TAG_SNAPSHOT_ID);
                 }
+
+                returnStorage.add(storage);
             }
-            objsStart.close();
-            objsEnd.close();
-            itStart.close();
-            itEnd.close();
+            it.close();
+            edges.close();
         }
         else
         {
@@ -135,13 +245,14 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
 
             if (objs == null)
             {
-                sess.close();
                 return Collections.emptyList();
             }
 
-            for (final Long nodeId : objs)
+            final Value value = new Value();
+            ObjectsIterator it = objs.iterator();
+            while (it.hasNext())
             {
-                NodeStorage tempStorage = getNodeFromNodeId(graph, nodeId);
+                NodeStorage tempStorage = getNodeFromNodeId(graph, it.next(), value);
 
                 if (tempStorage.getProperties().containsKey(Constants.TAG_SNAPSHOT_ID))
                 {
@@ -151,14 +262,30 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
                 }
                 returnStorage.add(tempStorage);
             }
-
+            it.close();
             objs.close();
         }
 
-        sess.close();
         return returnStorage;
     }
 
+    /**
+     * Creates a RelationshipStorage from the edgeId.
+     * @param graph the graph.
+     * @param edgeId the edgeId.
+     * @param nodes the nodes read already by their id, the start and end node are added.
+     * @param value value object to reuse for the attributes.
+     * @return the relationshipStorage.
+     */
+    private RelationshipStorage getRelationshipFromRelationshipId(Graph graph, long edgeId, Map<Long, NodeStorage> nodes, Value value)
+    {
+        final EdgeData edgeData = graph.getEdgeData(edgeId);
+        final NodeStorage tempStartNode = getNodeFromNodeId(graph, edgeData.getTail(), nodes, value);
+        final NodeStorage tempEndNode = getNodeFromNodeId(graph, edgeData.getHead(), nodes, value);
+
+        return new RelationshipStorage(getTypeName(graph, edgeId), getProperties(graph, edgeId, value), tempStartNode, tempEndNode);
+    }
+
     /**
      * Creates a RelationshipStorage from the edgeId.
      * @param graph the graph.
@@ -167,19 +294,38 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
      */
     private RelationshipStorage getRelationshipFromRelationshipId(Graph graph, long edgeId)
     {
-        Iterator<Integer> attributes = graph.getAttributes(edgeId).iterator();
-        Map<String, Object> localProperties = new HashMap<>();
-        while (attributes.hasNext())
+        return getRelationshipFromRelationshipId(graph, edgeId, new HashMap<>(), new Value());
+    }
+
+    /**
+     * Creates a NodeStorage from the nodeId or gets it from the nodes read already.
+     * @param graph the graph.
+     * @param nodeId the nodeId.
+     * @param nodes the nodes read already by their id, the node is added.
+     * @param value value object to reuse for the attributes.
+     * @return the nodeStorage.
+     */
+    private NodeStorage getNodeFromNodeId(Graph graph, long nodeId, Map<Long, NodeStorage> nodes, Value value)
+    {
+        NodeStorage node = nodes.get(nodeId);
+        if (node == null)
         {
-            String attributeKey = graph.getAttributeText(edgeId, attributes.next()).toString();
-            Object attributeValue = SparkseeUtils.getObjectFromValue(graph.getAttribute(edgeId, attributes.next()));
-            localProperties.put(attributeKey, attributeValue);
+            node = getNodeFromNodeId(graph, nodeId, value);
+            nodes.put(nodeId, node);
         }
+        return node;
+    }
 
-        NodeStorage tempStartNode = getNodeFromNodeId(graph, graph.getEdgeData(edgeId).getTail());
-        NodeStorage tempEndNode = getNodeFromNodeId(graph, graph.getEdgeData(edgeId).getTail());
-
-        return new RelationshipStorage(graph.getType(graph.getObjectType(edgeId)).getName(), localProperties, tempStartNode, tempEndNode);
+    /**
+     * Creates a NodeStorage from the nodeId.
+     * @param graph the graph.
+     * @param nodeId the nodeId.
+     * @param value value object to reuse for the attributes.
+     * @return the nodeStorage.
+     */
+    private NodeStorage getNodeFromNodeId(Graph graph, long nodeId, Value value)
+    {
+        return new NodeStorage(getTypeName(graph, nodeId), getProperties(graph, nodeId, value));
     }
 
     /**
@@ -190,64 +336,60 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
      */
     private NodeStorage getNodeFromNodeId(Graph graph, long nodeId)
     {
-        AttributeListIterator attributes = graph.getAttributes(nodeId).iterator();
-        Map<String, Object> localProperties = new HashMap<>();
-        while (attributes.hasNext())
-        {
-            String attributeKey = graph.getAttributeText(nodeId, attributes.next()).toString();
-            Object attributeValue = SparkseeUtils.getObjectFromValue(graph.getAttribute(nodeId, attributes.next()));
-            localProperties.put(attributeKey, attributeValue);
-        }
+        return getNodeFromNodeId(graph, nodeId, new Value());
+    }
 
-        return new NodeStorage(graph.getType(graph.getObjectType(nodeId)).getName(), localProperties);
+    /**
+     * Reads all attributes of a node or edge with one attribute list.
+     * The names come from the cached schema and the values are read into one value object.
+     * @param graph the graph.
+     * @param oId the object id.
+     * @param value value object to reuse.
+     * @return the properties by attribute name.
+     */
+    private Map<String, Object> getProperties(Graph graph, long oId, Value value)
+    {
+        final AttributeList attributes = graph.getAttributes(oId);
+        final Map<String, Object> localProperties = new HashMap<>(attributes.count() * 2);
+        final AttributeListIterator it = attributes.iterator();
+        while (it.hasNext())
+        {
+            final int attributeId = it.nextAttribute();
+            graph.getAttribute(oId, attributeId, value);
+            if (!value.isNull())
+            {
+                localProperties.put(schema.getAttributeName(graph, attributeId), SparkseeUtils.getObjectFromValue(value));
+            }
+        }
+        return localProperties;
     }
 
     @Override
     public boolean compareRelationship(final RelationshipStorage storage)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
-        NodeStorage startNode = storage.getStartNode();
-        NodeStorage endNode = storage.getEndNode();
+        Graph graph = getGraph();
+        Objects edges = findRelationships(graph, storage);
 
-        Objects objsStart = findNode(graph, startNode);
-        Objects objsEnd = findNode(graph, endNode);
-
-        if (objsStart == null || objsStart.isEmpty() || objsEnd == null || objsEnd.isEmpty())
+        if (edges == null)
         {
-            if(objsStart != null)
-            {
-                objsStart.close();
-            }
-            if(objsEnd != null)
-            {
-                objsEnd.close();
-            }
-            sess.close();
             return false;
         }
 
-        ObjectsIterator itStart = objsStart.iterator();
-        ObjectsIterator itEnd = objsEnd.iterator();
-
-        int relationshipTypeId = graph.findType(storage.getId());
+        ObjectsIterator it = edges.iterator();
 
         try
         {
-            long oId = graph.findEdge(relationshipTypeId, itStart.next(), itEnd.next());
-            return HashCreator.sha1FromRelationship(storage).equals(graph.getAttribute(oId, graph.findAttribute(Type.getGlobalType(), "hash")).getString());
+            long oId = it.next();
+            return HashCreator.hashFromRelationship(storage).matches(getHash(graph, oId));
         }
         catch (NoSuchAlgorithmException e)
         {
-            Log.getLogger().warn("Couldn't execute SHA1 for node", e);
+            Log.getLogger().warn("Couldn't execute hash for node", e);
         }
         finally
         {
-            sess.close();
-            itStart.close();
-            itEnd.close();
-            objsStart.close();
-            objsEnd.close();
+            it.close();
+            edges.close();
         }
         return false;
     }
@@ -255,8 +397,7 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean compareNode(final NodeStorage storage)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
+        Graph graph = getGraph();
 
         Objects objs = findNode(graph, storage);
 
@@ -266,7 +407,6 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
             {
                 objs.close();
             }
-            sess.close();
             return false;
         }
 
@@ -275,17 +415,16 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
         try
         {
             long oId = it.next();
-            return HashCreator.sha1FromNode(storage).equals(graph.getAttribute(oId, graph.findAttribute(Type.getGlobalType(), "hash")).getString());
+            return HashCreator.hashFromNode(storage).matches(getHash(graph, oId));
         }
         catch (NoSuchAlgorithmException e)
         {
-            Log.getLogger().warn("Couldn't execute SHA1 for node", e);
+            Log.getLogger().warn("Couldn't execute hash for node", e);
         }
         finally
         {
             it.close();
             objs.close();
-            sess.close();
         }
         return false;
     }
@@ -298,25 +437,46 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
      */
     private Objects findNode(Graph graph, NodeStorage storage)
     {
+        if (storage.hasElementId())
+        {
+            return findById(graph, storage.getId(), storage.getElementId());
+        }
+
         Objects objs = null;
 
         if(!storage.getId().isEmpty())
         {
-            int nodeTypeId = SparkseeUtils.createOrFindNodeType(storage, graph);
+            int nodeTypeId = schema.findType(graph, storage.getId());
+            if (nodeTypeId == Type.InvalidType)
+            {
+                return null;
+            }
             objs = graph.select(nodeTypeId);
         }
 
-        for (Map.Entry<String, Object> entry : storage.getProperties().entrySet())
+        final CompactProperties properties = storage.getMatchProperties();
+        final Value value = new Value();
+        for (int i = 0; i < properties.size(); i++)
         {
-            int attributeId = graph.findAttribute(Type.getGlobalType(), entry.getKey());
+            int attributeId = schema.findAttribute(graph, properties.getKey(i));
+            if (attributeId == Attribute.InvalidAttribute)
+            {
+                if (objs != null)
+                {
+                    objs.close();
+                }
+                return null;
+            }
 
             if (objs == null)
             {
-                objs = graph.select(attributeId, Condition.Equal, SparkseeUtils.getValue(entry.getValue()));
+                objs = graph.select(attributeId, Condition.Equal, SparkseeUtils.setValue(value, properties, i));
             }
             else
             {
-                objs = graph.select(attributeId, Condition.Equal, SparkseeUtils.getValue(entry.getValue()), objs);
+                Objects matching = graph.select(attributeId, Condition.Equal, SparkseeUtils.setValue(value, properties, i), objs);
+                objs.close();
+                objs = matching;
             }
 
             if (objs.isEmpty())
@@ -328,92 +488,230 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
         return objs;
     }
 
-    @Override
-    public boolean applyUpdate(final NodeStorage key, final NodeStorage value, final long snapshotId)
+    /**
+     * Return a Objects array with the node or edge of an element id.
+     * @param graph the graph.
+     * @param type the node or edge type, empty if any type.
+     * @param elementId the element id.
+     * @return Objects with the element or null if it doesn't exist.
+     */
+    private Objects findById(Graph graph, String type, long elementId)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
+        int attributeId = schema.findAttribute(graph, Constants.TAG_ID);
+        if (attributeId == Attribute.InvalidAttribute)
+        {
+            return null;
+        }
 
-        Objects objs = findNode(graph, key);
-        if (objs == null || objs.isEmpty())
+        Objects objs = graph.select(attributeId, Condition.Equal, SparkseeUtils.getValue(elementId));
+        if (!type.isEmpty())
         {
-            if(objs != null)
+            int typeId = schema.findType(graph, type);
+            if (typeId == Type.InvalidType)
             {
                 objs.close();
+                return null;
             }
-            return false;
+            Objects ofType = graph.select(typeId);
+            objs.intersection(ofType);
+            ofType.close();
         }
 
-        ObjectsIterator it = objs.iterator();
+        if (objs.isEmpty())
+        {
+            objs.close();
+            return null;
+        }
+        return objs;
+    }
 
-        while(it.hasNext())
+    /**
+     * Return a Objects array with the edges matching the relationshipStorage.
+     * Without element id these are the edges of the type going out of the start nodes into the end nodes.
+     * @param graph the graph.
+     * @param storage the storage of the relationship.
+     * @return Objects with the edges or null if there are none.
+     */
+    private Objects findRelationships(Graph graph, RelationshipStorage storage)
+    {
+        if (storage.hasElementId())
         {
-            long nodeId = it.next();
+            return findById(graph, storage.getId(), storage.getElementId());
+        }
 
-            for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
+        //Sparksee can't search for an edge without its type.
+        int relationshipTypeId = schema.findType(graph, storage.getId());
+        if (relationshipTypeId == Type.InvalidType)
+        {
+            return null;
+        }
+
+        //Ends which match any node don't restrict the edges, sparksee can't select them anyway.
+        final boolean anyStart = matchesAnyNode(storage.getStartNode());
+        final boolean anyEnd = matchesAnyNode(storage.getEndNode());
+        Objects edges;
+        if (anyStart && anyEnd)
+        {
+            edges = graph.select(relationshipTypeId);
+        }
+        else if (anyEnd)
+        {
+            edges = explode(graph, storage.getStartNode(), relationshipTypeId, EdgesDirection.Outgoing);
+        }
+        else if (anyStart)
+        {
+            edges = explode(graph, storage.getEndNode(), relationshipTypeId, EdgesDirection.Ingoing);
+        }
+        else
+        {
+            edges = explode(graph, storage.getStartNode(), relationshipTypeId, EdgesDirection.Outgoing);
+            if (edges != null && !edges.isEmpty())
             {
-                int attributeTypeId = SparkseeUtils.createOrFindAttributeType(entry.getKey(), entry.getValue(), Type.getGlobalType(), graph);
-                graph.setAttribute(nodeId, attributeTypeId, SparkseeUtils.getValue(entry.getValue()));
+                Objects ingoing = explode(graph, storage.getEndNode(), relationshipTypeId, EdgesDirection.Ingoing);
+                if (ingoing == null)
+                {
+                    edges.clear();
+                }
+                else
+                {
+                    edges.intersection(ingoing);
+                    ingoing.close();
+                }
             }
+        }
 
-            int attributeTypeIdHash = SparkseeUtils.createOrFindAttributeType(Constants.TAG_HASH, "", Type.getGlobalType(), graph);
+        if (edges == null)
+        {
+            return null;
+        }
 
-            try
-            {
-                graph.setAttribute(nodeId, attributeTypeIdHash, SparkseeUtils.getValue(HashCreator.sha1FromNode(getNodeFromNodeId(graph, nodeId))));
-            }
-            catch (NoSuchAlgorithmException e)
+        final CompactProperties properties = storage.getMatchProperties();
+        final Value value = new Value();
+        for (int i = 0; i < properties.size() && !edges.isEmpty(); i++)
+        {
+            int attributeId = schema.findAttribute(graph, properties.getKey(i));
+            if (attributeId == Attribute.InvalidAttribute)
             {
-                Log.getLogger().warn("Couldn't execute update node transaction in server:  " + id, e);
-                return false;
+                edges.close();
+                return null;
             }
-            finally
+            Objects matching = graph.select(attributeId, Condition.Equal, SparkseeUtils.setValue(value, properties, i), edges);
+            edges.close();
+            edges = matching;
+        }
+
+        if (edges.isEmpty())
+        {
+            edges.close();
+            return null;
+        }
+        return edges;
+    }
+
+    /**
+     * Return a Objects array with the edges of a type at the nodes matching a nodeStorage.
+     * @param graph the graph.
+     * @param node the storage of the nodes.
+     * @param relationshipTypeId the type of the edges.
+     * @param direction outgoing for start nodes, ingoing for end nodes.
+     * @return Objects with the edges or null if no node matches.
+     */
+    private Objects explode(Graph graph, NodeStorage node, int relationshipTypeId, EdgesDirection direction)
+    {
+        Objects objs = findNode(graph, node);
+        if (objs == null)
+        {
+            return null;
+        }
+
+        Objects edges = graph.explode(objs, relationshipTypeId, direction);
+        objs.close();
+        return edges;
+    }
+
+    /**
+     * Checks if a nodeStorage of a relationship matches any node, it has neither label nor properties.
+     * @param node the storage of the node.
+     * @return true if so.
+     */
+    private static boolean matchesAnyNode(NodeStorage node)
+    {
+        return node.getId().isEmpty() && node.getCompactProperties().size() == 0;
+    }
+
+    @Override
+    public boolean applyUpdate(final NodeStorage key, final NodeStorage value, final long snapshotId)
+    {
+        Graph graph = getGraph();
+
+        Objects objs = findNode(graph, key);
+        if (objs == null || objs.isEmpty())
+        {
+            if(objs != null)
             {
                 objs.close();
-                it.close();
-                sess.close();
             }
+            return false;
+        }
 
-            int attributeTypeIdSnapshotId = SparkseeUtils.createOrFindAttributeType(Constants.TAG_SNAPSHOT_ID, 1L, Type.getGlobalType(), graph);
-            graph.setAttribute(nodeId, attributeTypeIdSnapshotId, SparkseeUtils.getValue(snapshotId));
+        ObjectsIterator it = objs.iterator();
+        try
+        {
+            int attributeTypeIdHash = schema.createOrFindAttribute(graph, Constants.TAG_HASH, DataType.String);
+            int attributeTypeIdSnapshotId = schema.createOrFindAttribute(graph, Constants.TAG_SNAPSHOT_ID, DataType.Long);
+            while(it.hasNext())
+            {
+                long nodeId = it.next();
+                final Object oldHash = getHash(graph, nodeId);
+
+                SparkseeUtils.setAttributes(graph, schema, nodeId, value.getCompactProperties());
+
+                final String newHash = HashCreator.hashFromNode(getNodeFromNodeId(graph, nodeId)).toHex();
+                graph.setAttribute(nodeId, attributeTypeIdHash, SparkseeUtils.getValue(newHash));
+                graph.setAttribute(nodeId, attributeTypeIdSnapshotId, SparkseeUtils.getValue(snapshotId));
+                hashListener.hashReplaced(IHashListener.ElementType.NODE, getTypeName(graph, nodeId), getElementId(graph, nodeId), oldHash, newHash);
+            }
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't execute update node transaction in server:  " + id, e);
+            return false;
+        }
+        finally
+        {
+            it.close();
+            objs.close();
         }
 
-        return false;
+        return true;
     }
 
     @Override
     public boolean applyCreate(final NodeStorage storage, final long snapshotId)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
+        Graph graph = getGraph();
 
-        int nodeTypeId = SparkseeUtils.createOrFindNodeType(storage, graph);
+        int nodeTypeId = schema.createOrFindNodeType(graph, storage.getId());
 
         long nodeId = graph.newNode(nodeTypeId);
 
-        for(Map.Entry<String, Object> entry : storage.getProperties().entrySet())
-        {
-            int attributeId = SparkseeUtils.createOrFindAttributeType(entry.getKey(), entry.getValue(), Type.GlobalType, graph);
-            graph.setAttribute(nodeId, attributeId, SparkseeUtils.getValue(entry.getValue()));
-        }
+        SparkseeUtils.setAttributes(graph, schema, nodeId, storage.getCompactProperties());
 
-        int snapshotAttributeId = SparkseeUtils.createOrFindAttributeType(Constants.TAG_SNAPSHOT_ID, snapshotId, Type.GlobalType, graph);
+        int snapshotAttributeId = schema.createOrFindAttribute(graph, Constants.TAG_SNAPSHOT_ID, DataType.Long);
         graph.setAttribute(nodeId, snapshotAttributeId, SparkseeUtils.getValue(snapshotId));
 
         try
         {
-            int hashAttributeId = SparkseeUtils.createOrFindAttributeType(Constants.TAG_HASH, " ", Type.GlobalType, graph);
-            graph.setAttribute(nodeId, hashAttributeId, SparkseeUtils.getValue(HashCreator.sha1FromNode(storage)));
+            int hashAttributeId = schema.createOrFindAttribute(graph, Constants.TAG_HASH, DataType.String);
+            final String hash = HashCreator.hashFromNode(storage).toHex();
+            graph.setAttribute(nodeId, hashAttributeId, SparkseeUtils.getValue(hash));
+            hashListener.hashAdded(IHashListener.ElementType.NODE, storage.getId(), storage.getElementId(), hash);
         }
         catch (NoSuchAlgorithmException e)
         {
             Log.getLogger().warn("Couldn't execute create node transaction in server:  " + id, e);
             return false;
         }
-        finally
-        {
-            sess.close();
-        }
 
         return true;
     }
@@ -421,100 +719,91 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyDelete(final NodeStorage storage, final long snapshotId)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
+        Graph graph = getGraph();
 
         Objects objs = findNode(graph, storage);
 
         if(objs != null)
         {
+            //Dropping the nodes drops their edges as well.
+            TypeListIterator typeIt = graph.findEdgeTypes().iterator();
+            while (typeIt.hasNext())
+            {
+                int edgeType = typeIt.nextType();
+                Objects edges = graph.explode(objs, edgeType, EdgesDirection.Any);
+                ObjectsIterator edgeIt = edges.iterator();
+                while (edgeIt.hasNext())
+                {
+                    long edge = edgeIt.next();
+                    hashListener.hashRemoved(IHashListener.ElementType.RELATIONSHIP, getTypeName(graph, edge), getElementId(graph, edge), getHash(graph, edge));
+                }
+                edgeIt.close();
+                edges.close();
+            }
+
+            ObjectsIterator it = objs.iterator();
+            while (it.hasNext())
+            {
+                long nodeId = it.next();
+                hashListener.hashRemoved(IHashListener.ElementType.NODE, getTypeName(graph, nodeId), getElementId(graph, nodeId), getHash(graph, nodeId));
+            }
+            it.close();
+
             graph.drop(objs);
             objs.close();
         }
 
-        sess.close();
         return true;
     }
 
     @Override
     public boolean applyUpdate(final RelationshipStorage key, final RelationshipStorage value, final long snapshotId)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
-        Objects startObjs = findNode(graph, key.getStartNode());
-        Objects endObjs = findNode(graph, key.getStartNode());
+        Graph graph = getGraph();
+        Objects edges = findRelationships(graph, key);
 
-        if(startObjs == null || endObjs == null)
+        if(edges == null)
         {
-            if(startObjs != null)
-            {
-                startObjs.close();
-            }
-            if(endObjs != null)
-            {
-                endObjs.close();
-            }
-            sess.close();
             return false;
         }
 
-        ObjectsIterator startIt = startObjs.iterator();
-        ObjectsIterator endIt = endObjs.iterator();
-
-        while(startIt.hasNext())
+        ObjectsIterator it = edges.iterator();
+        try
         {
-            long startNode = startIt.next();
-            while(endIt.hasNext())
+            int attributeTypeIdHash = schema.createOrFindAttribute(graph, Constants.TAG_HASH, DataType.String);
+            int attributeTypeIdSnapshotId = schema.createOrFindAttribute(graph, Constants.TAG_SNAPSHOT_ID, DataType.Long);
+            while(it.hasNext())
             {
-                long endNode = endIt.next();
-                long relationship = graph.findEdge(graph.findType(key.getId()), startNode, endNode);
-
-                for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
-                {
-                    int attributeTypeId = SparkseeUtils.createOrFindAttributeType(entry.getKey(), entry.getValue(), Type.getGlobalType(), graph);
-                    graph.setAttribute(relationship, attributeTypeId, SparkseeUtils.getValue(entry.getValue()));
-                }
+                long relationship = it.next();
+                final Object oldHash = getHash(graph, relationship);
 
-                int attributeTypeIdHash = SparkseeUtils.createOrFindAttributeType(Constants.TAG_HASH, "", Type.getGlobalType(), graph);
+                SparkseeUtils.setAttributes(graph, schema, relationship, value.getCompactProperties());
 
-                try
-                {
-                    graph.setAttribute(relationship, attributeTypeIdHash, SparkseeUtils.getValue(HashCreator.sha1FromRelationship(getRelationshipFromRelationshipId(graph, relationship))));
-                }
-                catch (NoSuchAlgorithmException e)
-                {
-                    Log.getLogger().warn("Couldn't execute update node transaction in server:  " + id, e);
-                    return false;
-                }
-                finally
-                {
-                    startObjs.close();
-                    endObjs.close();
-                    startIt.close();
-                    endIt.close();
-                    sess.close();
-                }
-
-                int attributeTypeIdSnapshotId = SparkseeUtils.createOrFindAttributeType(Constants.TAG_SNAPSHOT_ID, 1L, Type.getGlobalType(), graph);
+                final String newHash = HashCreator.hashFromRelationship(getRelationshipFromRelationshipId(graph, relationship)).toHex();
+                graph.setAttribute(relationship, attributeTypeIdHash, SparkseeUtils.getValue(newHash));
                 graph.setAttribute(relationship, attributeTypeIdSnapshotId, SparkseeUtils.getValue(snapshotId));
+                hashListener.hashReplaced(IHashListener.ElementType.RELATIONSHIP, key.getId(), getElementId(graph, relationship), oldHash, newHash);
             }
         }
-
-        startObjs.close();
-        endObjs.close();
-        startIt.close();
-        endIt.close();
-        sess.close();
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't execute update relationship transaction in server:  " + id, e);
+            return false;
+        }
+        finally
+        {
+            it.close();
+            edges.close();
+        }
         return true;
     }
 
     @Override
     public boolean applyCreate(final RelationshipStorage storage, final long snapshotId)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
+        Graph graph = getGraph();
         Objects startObjs = findNode(graph, storage.getStartNode());
-        Objects endObjs = findNode(graph, storage.getStartNode());
+        Objects endObjs = findNode(graph, storage.getEndNode());
 
         if(startObjs == null || endObjs == null)
         {
@@ -526,99 +815,91 @@ public class SparkseeDatabaseAccess implements IDatabaseAccess
             {
                 endObjs.close();
             }
-            sess.close();
+            return false;
+        }
+
+        //An element id names a single edge, so it can only connect exactly one start and one end node.
+        if(storage.hasElementId() && (startObjs.count() != 1 || endObjs.count() != 1))
+        {
+            Log.getLogger().warn("Create of relationship " + storage.getElementId() + " matched " + startObjs.count() + " start and "
+                    + endObjs.count() + " end nodes instead of one each, rejecting it in server: " + id);
+            startObjs.close();
+            endObjs.close();
             return false;
         }
 
         ObjectsIterator startIt = startObjs.iterator();
-        ObjectsIterator endIt = endObjs.iterator();
 
-        while(startIt.hasNext())
+        try
         {
-            long startNode = startIt.next();
-            while(endIt.hasNext())
-            {
-                long endNode = endIt.next();
+            int relationshipTypeId = schema.createOrFindEdgeType(graph, storage.getId());
+            int snapshotAttributeId = schema.createOrFindAttribute(graph, Constants.TAG_SNAPSHOT_ID, DataType.Long);
+            int hashAttributeId = schema.createOrFindAttribute(graph, Constants.TAG_HASH, DataType.String);
 
-                long relationship = graph.findOrCreateEdge(graph.findType(storage.getId()), startNode, endNode);
-                for(Map.Entry<String, Object> entry : storage.getProperties().entrySet())
+            final Map<Long, NodeStorage> nodes = new HashMap<>();
+            final Value value = new Value();
+            while(startIt.hasNext())
+            {
+                long startNode = startIt.next();
+                ObjectsIterator endIt = endObjs.iterator();
+                try
                 {
-                    graph.setAttribute(relationship, SparkseeUtils.createOrFindAttributeType(entry.getKey(), entry.getValue(), Type.GlobalType, graph), SparkseeUtils.getValue(entry.getValue()));
+                    while(endIt.hasNext())
+                    {
+                        long endNode = endIt.next();
 
-                    int snapshotAttributeId = SparkseeUtils.createOrFindAttributeType(Constants.TAG_SNAPSHOT_ID, snapshotId, Type.GlobalType, graph);
-                    graph.setAttribute(relationship, snapshotAttributeId, SparkseeUtils.getValue(snapshotId));
+                        long relationship = graph.findOrCreateEdge(relationshipTypeId, startNode, endNode);
+                        final Object oldHash = getHash(graph, relationship);
 
-                    try
-                    {
-                        int hashAttributeId = SparkseeUtils.createOrFindAttributeType(Constants.TAG_HASH, " ", Type.GlobalType, graph);
-                        graph.setAttribute(relationship, hashAttributeId, SparkseeUtils.getValue(HashCreator.sha1FromRelationship(storage)));
-                    }
-                    catch (NoSuchAlgorithmException e)
-                    {
-                        Log.getLogger().warn("Couldn't execute create node transaction in server:  " + id, e);
-                        return false;
-                    }
-                    finally
-                    {
-                        sess.close();
-                        endObjs.close();
-                        startObjs.close();
-                        startIt.close();
-                        endIt.close();
+                        SparkseeUtils.setAttributes(graph, schema, relationship, storage.getCompactProperties());
+                        graph.setAttribute(relationship, snapshotAttributeId, SparkseeUtils.getValue(snapshotId));
+
+                        //The hash covers the stored start and end node, the request may only reference them.
+                        final String hash = HashCreator.hashFromRelationship(getRelationshipFromRelationshipId(graph, relationship, nodes, value)).toHex();
+                        graph.setAttribute(relationship, hashAttributeId, SparkseeUtils.getValue(hash));
+                        hashListener.hashReplaced(IHashListener.ElementType.RELATIONSHIP, storage.getId(), getElementId(graph, relationship), oldHash, hash);
                     }
                 }
+                finally
+                {
+                    endIt.close();
+                }
             }
         }
-
-        sess.close();
-        endObjs.close();
-        startObjs.close();
-        startIt.close();
-        endIt.close();
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.getLogger().warn("Couldn't execute create node transaction in server:  " + id, e);
+            return false;
+        }
+        finally
+        {
+            startIt.close();
+            startObjs.close();
+            endObjs.close();
+        }
         return true;
     }
 
     @Override
     public boolean applyDelete(final RelationshipStorage storage, final long snapshotId)
     {
-        Session sess = db.newSession();
-        Graph graph = sess.getGraph();
-        Objects startObjs = findNode(graph, storage.getStartNode());
-        Objects endObjs = findNode(graph, storage.getStartNode());
+        Graph graph = getGraph();
+        Objects edges = findRelationships(graph, storage);
 
-        if(startObjs == null || endObjs == null)
+        if(edges != null)
         {
-            if(startObjs != null)
-            {
-                startObjs.close();
-            }
-            if(endObjs != null)
+            ObjectsIterator it = edges.iterator();
+            while(it.hasNext())
             {
-                endObjs.close();
+                long relationship = it.next();
+                hashListener.hashRemoved(IHashListener.ElementType.RELATIONSHIP, storage.getId(), getElementId(graph, relationship), getHash(graph, relationship));
             }
-            sess.close();
-            return false;
-        }
-
-        ObjectsIterator startIt = startObjs.iterator();
-        ObjectsIterator endIt = endObjs.iterator();
-
-        while(startIt.hasNext())
-        {
-            long startNode = startIt.next();
-            while(endIt.hasNext())
-            {
-                long endNode = endIt.next();
+            it.close();
 
-                graph.drop(graph.findEdge(graph.findType(storage.getId()), startNode, endNode));
-            }
+            graph.drop(edges);
+            edges.close();
         }
 
-        startIt.close();
-        endIt.close();
-        startObjs.close();
-        endObjs.close();
-        sess.close();
         return true;
     }
 }
@@ -0,0 +1,165 @@
+package main.java.com.bag.server.database;
+
+import com.sparsity.sparksee.gdb.*;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of the type and attribute ids of a sparksee database, they never change while the type or attribute exists.
+ * All attributes are global, so they are cached by name only. Misses aren't cached, a reader could otherwise cache
+ * the miss of a type another thread is creating. The whole cache is invalidated when this class changes the schema.
+ */
+class SparkseeSchema
+{
+    /**
+     * Type ids by name.
+     */
+    private final Map<String, Integer> types = new ConcurrentHashMap<>();
+
+    /**
+     * Global attribute ids by name.
+     */
+    private final Map<String, Integer> attributes = new ConcurrentHashMap<>();
+
+    /**
+     * Global attribute names by id.
+     */
+    private final Map<Integer, String> attributeNames = new ConcurrentHashMap<>();
+
+    /**
+     * Finds a node or edge type.
+     * @param graph the graph.
+     * @param name the name of the type.
+     * @return the id or Type.InvalidType if it doesn't exist.
+     */
+    int findType(final Graph graph, final String name)
+    {
+        final Integer typeId = types.get(name);
+        if (typeId != null)
+        {
+            return typeId;
+        }
+
+        final int found = graph.findType(name);
+        if (found != Type.InvalidType)
+        {
+            types.put(name, found);
+        }
+        return found;
+    }
+
+    /**
+     * Finds a node type, creates it if it doesn't exist.
+     * @param graph the graph.
+     * @param name the name of the type.
+     * @return the id.
+     */
+    int createOrFindNodeType(final Graph graph, final String name)
+    {
+        final int typeId = findType(graph, name);
+        if (typeId != Type.InvalidType)
+        {
+            return typeId;
+        }
+        return changeSchema(types, name, graph.newNodeType(name));
+    }
+
+    /**
+     * Finds an edge type, creates it as directed type with neighbor index if it doesn't exist.
+     * @param graph the graph.
+     * @param name the name of the type.
+     * @return the id.
+     */
+    int createOrFindEdgeType(final Graph graph, final String name)
+    {
+        final int typeId = findType(graph, name);
+        if (typeId != Type.InvalidType)
+        {
+            return typeId;
+        }
+        return changeSchema(types, name, graph.newEdgeType(name, true, true));
+    }
+
+    /**
+     * Finds a global attribute.
+     * @param graph the graph.
+     * @param name the name of the attribute.
+     * @return the id or Attribute.InvalidAttribute if it doesn't exist.
+     */
+    int findAttribute(final Graph graph, final String name)
+    {
+        final Integer attributeId = attributes.get(name);
+        if (attributeId != null)
+        {
+            return attributeId;
+        }
+
+        final int found = graph.findAttribute(Type.getGlobalType(), name);
+        if (found != Attribute.InvalidAttribute)
+        {
+            attributes.put(name, found);
+        }
+        return found;
+    }
+
+    /**
+     * Finds a global attribute, creates it as indexed attribute of the data type if it doesn't exist.
+     * @param graph the graph.
+     * @param name the name of the attribute.
+     * @param dataType the data type of new attributes.
+     * @return the id.
+     */
+    int createOrFindAttribute(final Graph graph, final String name, final DataType dataType)
+    {
+        final int attributeId = findAttribute(graph, name);
+        if (attributeId != Attribute.InvalidAttribute)
+        {
+            return attributeId;
+        }
+        return changeSchema(attributes, name, graph.newAttribute(Type.getGlobalType(), name, dataType, AttributeKind.Indexed));
+    }
+
+    /**
+     * Gets the name of a global attribute.
+     * @param graph the graph.
+     * @param attributeId the id of the attribute.
+     * @return the name.
+     */
+    String getAttributeName(final Graph graph, final int attributeId)
+    {
+        final String name = attributeNames.get(attributeId);
+        if (name != null)
+        {
+            return name;
+        }
+
+        final String found = graph.getAttribute(attributeId).getName();
+        attributeNames.put(attributeId, found);
+        return found;
+    }
+
+    /**
+     * Drops all cached ids, they are looked up again on the next use.
+     */
+    void invalidate()
+    {
+        types.clear();
+        attributes.clear();
+        attributeNames.clear();
+    }
+
+    /**
+     * Invalidates the cache after a schema change and caches the created type or attribute.
+     * @param cache the cache of the created type or attribute.
+     * @param name its name.
+     * @param createdId its id.
+     * @return the id.
+     */
+    private int changeSchema(final Map<String, Integer> cache, final String name, final int createdId)
+    {
+        invalidate();
+        cache.put(name, createdId);
+        return createdId;
+    }
+}
@@ -1,7 +1,7 @@
 package main.java.com.bag.server.database;
 
 import com.sparsity.sparksee.gdb.*;
-import main.java.com.bag.util.storage.NodeStorage;
+import main.java.com.bag.util.storage.CompactProperties;
 
 import static com.sparsity.sparksee.gdb.DataType.*;
 import static com.sparsity.sparksee.gdb.DataType.String;
@@ -67,6 +67,82 @@ public class SparkseeUtils
         }
     }
 
+    /**
+     * Returns a Value object for a long, without boxing it.
+     * @param value ingoing long.
+     * @return outgoing value.
+     */
+    protected static Value getValue(long value)
+    {
+        return new Value().setLong(value);
+    }
+
+    /**
+     * Sets a property into a Value object, primitives are read from their column without boxing.
+     * @param value the value object to reuse.
+     * @param properties the properties.
+     * @param index the position of the property.
+     * @return the value object.
+     */
+    protected static Value setValue(Value value, CompactProperties properties, int index)
+    {
+        switch (properties.getType(index))
+        {
+            case CompactProperties.TYPE_INT:
+                return value.setInteger((int) properties.getLong(index));
+            case CompactProperties.TYPE_LONG:
+                return value.setLong(properties.getLong(index));
+            case CompactProperties.TYPE_FLOAT:
+            case CompactProperties.TYPE_DOUBLE:
+                return value.setDouble(properties.getDouble(index));
+            case CompactProperties.TYPE_BOOLEAN:
+                return value.setBoolean(properties.getBoolean(index));
+            default:
+                return value.setString(java.lang.String.valueOf(properties.getValue(index)));
+        }
+    }
+
+    /**
+     * Gets the dataType of a property.
+     * @param properties the properties.
+     * @param index the position of the property.
+     * @return outgoing dataType, default a string.
+     */
+    protected static DataType getDataType(CompactProperties properties, int index)
+    {
+        switch (properties.getType(index))
+        {
+            case CompactProperties.TYPE_INT:
+                return Integer;
+            case CompactProperties.TYPE_LONG:
+                return Long;
+            case CompactProperties.TYPE_FLOAT:
+            case CompactProperties.TYPE_DOUBLE:
+                return Double;
+            case CompactProperties.TYPE_BOOLEAN:
+                return Boolean;
+            default:
+                return String;
+        }
+    }
+
+    /**
+     * Sets all properties as attributes of a node or edge, reusing one value object.
+     * @param graph graph object.
+     * @param schema the cached ids of the attributes.
+     * @param oid the id of the node or edge.
+     * @param properties the properties.
+     */
+    protected static void setAttributes(Graph graph, SparkseeSchema schema, long oid, CompactProperties properties)
+    {
+        final Value value = new Value();
+        for (int i = 0; i < properties.size(); i++)
+        {
+            int attributeId = schema.createOrFindAttribute(graph, properties.getKey(i), getDataType(properties, i));
+            graph.setAttribute(oid, attributeId, setValue(value, properties, i));
+        }
+    }
+
     /**
      * Gets a dataType from a certain object.
      * @param obj the ingoing object.
@@ -93,40 +169,4 @@ public class SparkseeUtils
 
         return String;
     }
-
-    /**
-     * Tries to find a nodeType, if not able, creates it.
-     * @param storage node of type.
-     * @param graph graph object.
-     * @return id of the type.
-     */
-    protected static int createOrFindNodeType(NodeStorage storage, Graph graph)
-    {
-        int nodeTypeId = graph.findType(storage.getId());
-        if (Type.InvalidType == nodeTypeId)
-        {
-            return graph.newNodeType(storage.getId());
-        }
-        return nodeTypeId;
-    }
-
-    /**
-     * Tries to find an attributeType, if not able, creates it.
-     * @param key attributeKey.
-     * @param value attributeValue.
-     * @param nodeTypeId id of the nodeType.
-     * @param graph graph object.
-     * @return id of the type.
-     */
-    public static int createOrFindAttributeType(String key, Object value, int nodeTypeId, Graph graph)
-    {
-        int attributeId = graph.findAttribute(nodeTypeId, key);
-        if (Attribute.InvalidAttribute == attributeId)
-        {
-            attributeId = graph.newAttribute(Type.getGlobalType(), key, SparkseeUtils.getDataTypeFromObject(value), AttributeKind.Indexed);
-        }
-        return attributeId;
-    }
-
-
 }
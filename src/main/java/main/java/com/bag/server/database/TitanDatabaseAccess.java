@@ -1,11 +1,23 @@
 package main.java.com.bag.server.database;
 
+import com.thinkaurelius.titan.core.EdgeLabel;
+import com.thinkaurelius.titan.core.PropertyKey;
 import com.thinkaurelius.titan.core.TitanFactory;
 import com.thinkaurelius.titan.core.TitanGraph;
+import com.thinkaurelius.titan.core.TitanTransaction;
 import com.thinkaurelius.titan.core.TitanVertex;
+import com.thinkaurelius.titan.core.schema.SchemaAction;
+import com.thinkaurelius.titan.core.schema.SchemaStatus;
+import com.thinkaurelius.titan.core.schema.TitanGraphIndex;
+import com.thinkaurelius.titan.core.schema.TitanManagement;
+import com.thinkaurelius.titan.core.schema.TitanSchemaType;
+import com.thinkaurelius.titan.graphdb.database.management.ManagementSystem;
 import main.java.com.bag.exceptions.OutDatedDataException;
+import main.java.com.bag.operations.Operation;
 import main.java.com.bag.server.database.interfaces.IDatabaseAccess;
+import main.java.com.bag.server.database.interfaces.IHashListener;
 import main.java.com.bag.util.*;
+import main.java.com.bag.util.storage.CompactProperties;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
 import org.apache.tinkerpop.gremlin.process.traversal.P;
@@ -19,6 +31,7 @@ import org.apache.tinkerpop.gremlin.structure.Vertex;
 import org.jetbrains.annotations.NotNull;
 
 import java.security.NoSuchAlgorithmException;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -27,12 +40,60 @@ import java.util.stream.Collectors;
  */
 public class TitanDatabaseAccess implements IDatabaseAccess
 {
-    private static final String DIRECTORY ="/home/ray/IdeaProjects/BAG - Byzantine fault-tolerant Architecture for Graph database/TitanDB";
+    /**
+     * Default directory of the stores, the id of the replica is appended.
+     */
+    private static final String DIRECTORY = "TitanDB";
+
+    /**
+     * Backend which keeps the graph in memory only.
+     */
+    private static final String IN_MEMORY_BACKEND = "inmemory";
+
+    /**
+     * Titan options which can be set in the configuration with the prefix "titan.".
+     */
+    private static final String[] OPTIONS = {
+            "cache.db-cache",
+            "cache.db-cache-size",
+            "cache.db-cache-time",
+            "cache.tx-cache-size",
+            "storage.batch-loading",
+            "storage.berkeleyje.cache-percentage",
+            "ids.block-size",
+            "ids.authority.wait-time"};
+
+    /**
+     * Names of the composite indexes on the element id.
+     */
+    private static final String VERTEX_ID_INDEX = "vertexByBagId";
+    private static final String EDGE_ID_INDEX   = "edgeByBagId";
+
+    /**
+     * Names of the composite indexes on the hash.
+     */
+    private static final String VERTEX_HASH_INDEX = "vertexByHash";
+    private static final String EDGE_HASH_INDEX   = "edgeByHash";
+
+    /**
+     * Seconds to wait for an index to reach the next status before serving requests anyway.
+     */
+    private final long indexTimeout = BagConfiguration.getLong("titan.index.timeout", 60);
 
     private TitanGraph graph;
 
     private final int id;
 
+    /**
+     * Gets notified about the hashes of written and deleted elements.
+     */
+    private IHashListener hashListener = IHashListener.NONE;
+
+    /**
+     * The open transaction of each thread.
+     */
+    private final ThreadLocal<Session> sessions = new ThreadLocal<>();
+
     public TitanDatabaseAccess(int id)
     {
         this.id = id;
@@ -43,10 +104,425 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     {
         TitanFactory.Builder config = TitanFactory.build();
 
-        config.set("storage.backend", "berkeleyje");
-        config.set("storage.directory", DIRECTORY);
+        final String backend = BagConfiguration.getString("titan.backend", "berkeleyje");
+        config.set("storage.backend", backend);
+        if (!IN_MEMORY_BACKEND.equals(backend))
+        {
+            final String directory = BagConfiguration.getString("titan.path." + id, null);
+            config.set("storage.directory", directory == null ? BagConfiguration.getString("titan.path", DIRECTORY) + id : directory);
+        }
 
+        for (final String option : OPTIONS)
+        {
+            final String value = BagConfiguration.getString("titan." + option, null);
+            if (value != null)
+            {
+                config.set(option, value);
+            }
+        }
+
+        Log.getLogger().info("Starting titan database service with " + backend + " on " + id);
         graph = config.open();
+        createSchema();
+    }
+
+    /**
+     * Sets up the indexes of the schema and waits until they are enabled.
+     * The element id and hash get composite indexes on vertices and edges, "titan.indexes" adds composite vertex
+     * indexes on label.key pairs and "titan.edge.indexes" vertex-centric indexes on type.key pairs.
+     * The names only depend on the configuration, so all replicas with the same configuration build the same indexes.
+     */
+    private void createSchema()
+    {
+        final List<String> graphIndexes = new ArrayList<>();
+        final List<String[]> edgeIndexes = new ArrayList<>();
+
+        final TitanManagement management = graph.openManagement();
+        try
+        {
+            final PropertyKey idKey = getPropertyKey(management, Constants.TAG_ID, Long.class);
+            final PropertyKey hashKey = getPropertyKey(management, Constants.TAG_HASH, byte[].class);
+
+            graphIndexes.add(buildGraphIndex(management, VERTEX_ID_INDEX, Vertex.class, idKey, null));
+            graphIndexes.add(buildGraphIndex(management, EDGE_ID_INDEX, Edge.class, idKey, null));
+            graphIndexes.add(buildGraphIndex(management, VERTEX_HASH_INDEX, Vertex.class, hashKey, null));
+            graphIndexes.add(buildGraphIndex(management, EDGE_HASH_INDEX, Edge.class, hashKey, null));
+
+            for (final String[] index : BagConfiguration.getPairs("titan.indexes"))
+            {
+                graphIndexes.add(buildGraphIndex(management, getIndexName(index[0], index[1]), Vertex.class,
+                        management.getOrCreatePropertyKey(index[1]), management.getOrCreateVertexLabel(index[0])));
+            }
+
+            for (final String[] index : BagConfiguration.getPairs("titan.edge.indexes"))
+            {
+                final EdgeLabel label = management.getOrCreateEdgeLabel(index[0]);
+                final String name = getIndexName("", index[1]);
+                if (!management.containsRelationIndex(label, name))
+                {
+                    management.buildEdgeIndex(label, name, Direction.BOTH, management.getOrCreatePropertyKey(index[1]));
+                }
+                edgeIndexes.add(new String[] {index[0], name});
+            }
+            management.commit();
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Couldn't create the indexes in server " + id, e);
+            management.rollback();
+            return;
+        }
+
+        for (final String name : graphIndexes)
+        {
+            enableGraphIndex(name);
+        }
+        for (final String[] index : edgeIndexes)
+        {
+            enableEdgeIndex(index[0], index[1]);
+        }
+    }
+
+    /**
+     * Creates a composite index on a vertex label and property key and waits until it is enabled.
+     * Only call it while executing ordered requests, so all replicas have the same indexes.
+     * @param label the vertex label.
+     * @param key the property key.
+     * @return true if the index is enabled afterwards.
+     */
+    @Override
+    public boolean createIndex(final String label, final String key)
+    {
+        if (label.isEmpty() || key.isEmpty())
+        {
+            return false;
+        }
+
+        if (graph == null)
+        {
+            start();
+        }
+
+        final String name = getIndexName(label, key);
+        final TitanManagement management = graph.openManagement();
+        try
+        {
+            buildGraphIndex(management, name, Vertex.class, management.getOrCreatePropertyKey(key), management.getOrCreateVertexLabel(label));
+            management.commit();
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Couldn't create the index " + name + " in server " + id, e);
+            management.rollback();
+            return false;
+        }
+        return enableGraphIndex(name);
+    }
+
+    /**
+     * Gets a property key of the schema, creates it with the data type if it doesn't exist.
+     * @param management the open management.
+     * @param key the name of the key.
+     * @param dataType the data type of new keys.
+     * @return the property key.
+     */
+    private static PropertyKey getPropertyKey(final TitanManagement management, final String key, final Class<?> dataType)
+    {
+        return management.containsPropertyKey(key) ? management.getPropertyKey(key) : management.makePropertyKey(key).dataType(dataType).make();
+    }
+
+    /**
+     * Gets the name of the index of a label and property key.
+     * @param label the label, empty for indexes on all labels.
+     * @param key the property key.
+     * @return the name.
+     */
+    private static String getIndexName(final String label, final String key)
+    {
+        return label.isEmpty() ? "by_" + key : label + "_by_" + key;
+    }
+
+    /**
+     * Builds a composite index if it doesn't exist yet.
+     * @param management the open management.
+     * @param name the name of the index.
+     * @param elementType vertices or edges.
+     * @param key the indexed property key.
+     * @param label the only indexed label, null for all.
+     * @return the name of the index.
+     */
+    private static String buildGraphIndex(
+            final TitanManagement management,
+            final String name,
+            final Class<? extends Element> elementType,
+            final PropertyKey key,
+            final TitanSchemaType label)
+    {
+        if (!management.containsGraphIndex(name))
+        {
+            final TitanManagement.IndexBuilder builder = management.buildIndex(name, elementType).addKey(key);
+            if (label != null)
+            {
+                builder.indexOnly(label);
+            }
+            builder.buildCompositeIndex();
+        }
+        return name;
+    }
+
+    /**
+     * Waits until a composite index is enabled, indexes on existing keys are reindexed first.
+     * @param name the name of the index.
+     * @return true if it is enabled.
+     */
+    private boolean enableGraphIndex(final String name)
+    {
+        try
+        {
+            SchemaStatus status = getGraphIndexStatus(name);
+            if (status == SchemaStatus.INSTALLED)
+            {
+                ManagementSystem.awaitGraphIndexStatus(graph, name).status(SchemaStatus.REGISTERED).timeout(indexTimeout, ChronoUnit.SECONDS).call();
+                status = getGraphIndexStatus(name);
+            }
+            if (status == SchemaStatus.REGISTERED)
+            {
+                final TitanManagement management = graph.openManagement();
+                management.updateIndex(management.getGraphIndex(name), SchemaAction.REINDEX).get();
+                management.commit();
+                status = ManagementSystem.awaitGraphIndexStatus(graph, name).status(SchemaStatus.ENABLED)
+                        .timeout(indexTimeout, ChronoUnit.SECONDS).call().getSucceeded() ? SchemaStatus.ENABLED : getGraphIndexStatus(name);
+            }
+            if (status != SchemaStatus.ENABLED)
+            {
+                Log.getLogger().warn("Index " + name + " is " + status + " in server " + id);
+                return false;
+            }
+            return true;
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Couldn't enable the index " + name + " in server " + id, e);
+            return false;
+        }
+    }
+
+    /**
+     * Waits until a vertex-centric edge index is enabled, indexes on existing labels are reindexed first.
+     * @param label the edge label.
+     * @param name the name of the index.
+     */
+    private void enableEdgeIndex(final String label, final String name)
+    {
+        try
+        {
+            SchemaStatus status = getEdgeIndexStatus(label, name);
+            if (status == SchemaStatus.INSTALLED)
+            {
+                ManagementSystem.awaitRelationIndexStatus(graph, name, label).status(SchemaStatus.REGISTERED).timeout(indexTimeout, ChronoUnit.SECONDS).call();
+                status = getEdgeIndexStatus(label, name);
+            }
+            if (status == SchemaStatus.REGISTERED)
+            {
+                final TitanManagement management = graph.openManagement();
+                management.updateIndex(management.getRelationIndex(management.getEdgeLabel(label), name), SchemaAction.REINDEX).get();
+                management.commit();
+                ManagementSystem.awaitRelationIndexStatus(graph, name, label).status(SchemaStatus.ENABLED).timeout(indexTimeout, ChronoUnit.SECONDS).call();
+                status = getEdgeIndexStatus(label, name);
+            }
+            if (status != SchemaStatus.ENABLED)
+            {
+                Log.getLogger().warn("Index " + label + "." + name + " is " + status + " in server " + id);
+            }
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Couldn't enable the index " + label + "." + name + " in server " + id, e);
+        }
+    }
+
+    /**
+     * Gets the status of a composite index, the lowest status of its keys.
+     * @param name the name of the index.
+     * @return the status.
+     */
+    private SchemaStatus getGraphIndexStatus(final String name)
+    {
+        final TitanManagement management = graph.openManagement();
+        try
+        {
+            final TitanGraphIndex index = management.getGraphIndex(name);
+            SchemaStatus status = SchemaStatus.ENABLED;
+            for (final PropertyKey key : index.getFieldKeys())
+            {
+                final SchemaStatus keyStatus = index.getIndexStatus(key);
+                if (keyStatus.ordinal() < status.ordinal() || keyStatus == SchemaStatus.DISABLED)
+                {
+                    status = keyStatus;
+                }
+            }
+            return status;
+        }
+        finally
+        {
+            management.rollback();
+        }
+    }
+
+    /**
+     * Gets the status of a vertex-centric edge index.
+     * @param label the edge label.
+     * @param name the name of the index.
+     * @return the status.
+     */
+    private SchemaStatus getEdgeIndexStatus(final String label, final String name)
+    {
+        final TitanManagement management = graph.openManagement();
+        try
+        {
+            return management.getRelationIndex(management.getEdgeLabel(label), name).getIndexStatus();
+        }
+        finally
+        {
+            management.rollback();
+        }
+    }
+
+    @Override
+    public void setHashListener(final IHashListener listener)
+    {
+        this.hashListener = listener;
+    }
+
+    @Override
+    public void scanHashes(final IHashListener listener)
+    {
+        final Session session = begin();
+        try
+        {
+            session.g.V().forEachRemaining(vertex -> listener.hashAdded(IHashListener.ElementType.NODE, vertex.label(), getElementId(vertex), getHash(vertex)));
+            session.g.E().forEachRemaining(edge -> listener.hashAdded(IHashListener.ElementType.RELATIONSHIP, edge.label(), getElementId(edge), getHash(edge)));
+        }
+        finally
+        {
+            end(session, true);
+        }
+    }
+
+    /**
+     * Joins the open transaction of the thread or opens a new one.
+     * @return the session of the thread.
+     */
+    private Session begin()
+    {
+        if(graph == null)
+        {
+            start();
+        }
+
+        Session session = sessions.get();
+        if (session == null)
+        {
+            session = new Session(graph.newTransaction());
+            sessions.set(session);
+        }
+        session.depth++;
+        return session;
+    }
+
+    /**
+     * Ends an operation in the session of the thread. The outermost operation commits the transaction and then sends
+     * the hash notifications, or rolls it back if any operation in it failed.
+     * @param session the session.
+     * @param success false if the operation failed.
+     * @return false if the operation or the transaction failed.
+     */
+    private boolean end(final Session session, final boolean success)
+    {
+        session.failed |= !success;
+        if (--session.depth > 0)
+        {
+            return success;
+        }
+
+        sessions.remove();
+        if (session.failed)
+        {
+            session.tx.rollback();
+            return false;
+        }
+
+        try
+        {
+            session.tx.commit();
+        }
+        catch (Exception e)
+        {
+            Log.getLogger().warn("Couldn't commit transaction in server: " + id, e);
+            return false;
+        }
+
+        for (final Runnable notification : session.notifications)
+        {
+            notification.run();
+        }
+        return true;
+    }
+
+    /**
+     * Applies the write set of a commit in one transaction.
+     * If an operation fails the transaction is rolled back and the operations are applied one by one.
+     * @param writeSet the operations of the commit.
+     * @param snapshotId the snapshot id of the commit.
+     */
+    @Override
+    public void applyWriteSet(final List<Operation> writeSet, final long snapshotId)
+    {
+        final Session session = begin();
+        for (final Operation op : writeSet)
+        {
+            op.apply(this, snapshotId);
+        }
+
+        if (!end(session, true) && writeSet.size() > 1)
+        {
+            Log.getLogger().warn("Couldn't execute write set in one transaction in server " + id + ", applying it per operation");
+            IDatabaseAccess.super.applyWriteSet(writeSet, snapshotId);
+        }
+    }
+
+    /**
+     * Queues the notification about a removed vertex or edge until the transaction is committed.
+     * @param session the session of the thread.
+     * @param type the type of the element.
+     * @param element the vertex or edge, read before it is removed.
+     */
+    private void notifyRemoved(final Session session, final IHashListener.ElementType type, final Element element)
+    {
+        final String label = element.label();
+        final long elementId = getElementId(element);
+        final Object hash = getHash(element);
+        session.notifications.add(() -> hashListener.hashRemoved(type, label, elementId, hash));
+    }
+
+    /**
+     * Gets the stored hash of a vertex or edge.
+     * @param element the vertex or edge.
+     * @return the hash or null if it has none.
+     */
+    private static Object getHash(final Element element)
+    {
+        return element.property(Constants.TAG_HASH).orElse(null);
+    }
+
+    /**
+     * Gets the element id of a vertex or edge.
+     * @param element the vertex or edge.
+     * @return the id or ElementIds.NONE if it has none.
+     */
+    private static long getElementId(final Element element)
+    {
+        return ElementIds.fromValue(element.property(Constants.TAG_ID).orElse(null));
     }
 
     /**
@@ -74,31 +550,24 @@ public class TitanDatabaseAccess implements IDatabaseAccess
             return Collections.emptyList();
         }
 
-        if(graph == null)
-        {
-            start();
-        }
-
         ArrayList<Object> returnStorage =  new ArrayList<>();
 
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
-
             //If nodeStorage is null, we're obviously trying to read relationships.
             if(nodeStorage == null)
             {
-                returnStorage.addAll(getRelationshipStorages(relationshipStorage, g, snapshotId));
+                returnStorage.addAll(getRelationshipStorages(relationshipStorage, session.g, snapshotId));
             }
             else
             {
-                returnStorage.addAll(getNodeStorages(nodeStorage, g, snapshotId));
+                returnStorage.addAll(getNodeStorages(nodeStorage, session.g, snapshotId));
             }
         }
         finally
         {
-            graph.tx().commit();
+            end(session, true);
         }
 
 
@@ -115,26 +584,7 @@ public class TitanDatabaseAccess implements IDatabaseAccess
             throws OutDatedDataException
     {
         ArrayList<Edge> relationshipList =  new ArrayList<>();
-        //g.V(1).bothE().where(otherV().hasId(2)).hasLabel('knows').has('weight',gt(0.0))
-
-        ArrayList<Vertex> nodeStartList =  getVertexList(relationshipStorage.getStartNode(), g, snapshotId);
-        ArrayList<Vertex> nodeEndList =  getVertexList(relationshipStorage.getEndNode(), g, snapshotId);
-
-        GraphTraversal<Vertex, Edge> tempOutput =  graph.traversal().V(nodeStartList.toArray()).bothE().filter(__.otherV().is(P.within(nodeEndList.toArray())));
-
-        for (Map.Entry<String, Object> entry : relationshipStorage.getProperties().entrySet())
-        {
-            if (tempOutput == null)
-            {
-                break;
-            }
-            tempOutput = tempOutput.has(entry.getKey(), entry.getValue());
-        }
-
-        if(tempOutput != null)
-        {
-            tempOutput.fill(relationshipList);
-        }
+        getEdgeList(relationshipStorage, g).fill(relationshipList);
 
         ArrayList<RelationshipStorage> returnList = new ArrayList<>();
 
@@ -230,7 +680,7 @@ public class TitanDatabaseAccess implements IDatabaseAccess
         RelationshipStorage tempStorage = new RelationshipStorage(edge.label(), getNodeStorageFromVertex(edge.outVertex()), getNodeStorageFromVertex(edge.inVertex()));
         for(String s: edge.keys())
         {
-            tempStorage.addProperty(s, edge.property(s));
+            tempStorage.addProperty(s, edge.property(s).value());
         }
         return tempStorage;
     }
@@ -252,27 +702,12 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean compareNode(final NodeStorage nodeStorage)
     {
-        if(graph == null)
-        {
-            start();
-        }
-
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
-            GraphTraversal<Vertex, Vertex> tempOutput = g.V().hasLabel(nodeStorage.getId());
+            GraphTraversal<Vertex, Vertex> tempOutput = getVertexList(nodeStorage, session.g);
 
-            for (Map.Entry<String, Object> entry : nodeStorage.getProperties().entrySet())
-            {
-                if (tempOutput == null)
-                {
-                    break;
-                }
-                tempOutput = tempOutput.has(entry.getKey(), entry.getValue());
-            }
-
-            if(tempOutput == null || !HashCreator.sha1FromNode(nodeStorage).equals(tempOutput.values("hash").toString()))
+            if(!HashCreator.hashFromNode(nodeStorage).matches(tempOutput.values(Constants.TAG_HASH).tryNext().orElse(null)))
             {
                 return false;
             }
@@ -283,7 +718,7 @@ public class TitanDatabaseAccess implements IDatabaseAccess
         }
         finally
         {
-            graph.tx().commit();
+            end(session, true);
         }
 
         return true;
@@ -292,10 +727,10 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyUpdate(final NodeStorage key, final NodeStorage value, final long snapshotId)
     {
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
+            final GraphTraversalSource g = session.g;
 
             //Can't change label in titan!
 
@@ -304,23 +739,29 @@ public class TitanDatabaseAccess implements IDatabaseAccess
             while (tempNode.hasNext())
             {
                 Vertex vertex = tempNode.next();
+                final Object oldHash = getHash(vertex);
 
                 for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
                 {
                     vertex.property(entry.getKey(), entry.getValue());
                 }
-                vertex.property(Constants.TAG_HASH, HashCreator.sha1FromNode(getNodeStorageFromVertex(vertex)));
+                final byte[] newHash = HashCreator.hashFromNode(getNodeStorageFromVertex(vertex)).toBytes();
+                vertex.property(Constants.TAG_HASH, newHash);
                 vertex.property(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                final String label = vertex.label();
+                final long elementId = getElementId(vertex);
+                session.notifications.add(() -> hashListener.hashReplaced(IHashListener.ElementType.NODE, label, elementId, oldHash, newHash));
             }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute update node transaction in server:  " + id, e);
+            end(session, false);
             return false;
         }
-        finally
+        if (!end(session, true))
         {
-            graph.tx().commit();
+            return false;
         }
         Log.getLogger().warn("Successfully executed update node transaction in server:  " + id);
 
@@ -330,26 +771,28 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyCreate(final NodeStorage storage, final long snapshotId)
     {
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-
-            TitanVertex vertex = graph.addVertex(storage.getId());
+            TitanVertex vertex = session.tx.addVertex(storage.getId());
             for (Map.Entry<String, Object> entry : storage.getProperties().entrySet())
             {
                 vertex.property(entry.getKey(), entry.getValue());
             }
-            vertex.property(Constants.TAG_HASH, HashCreator.sha1FromNode(storage));
+            final byte[] hash = HashCreator.hashFromNode(storage).toBytes();
+            vertex.property(Constants.TAG_HASH, hash);
             vertex.property(Constants.TAG_SNAPSHOT_ID, snapshotId);
+            session.notifications.add(() -> hashListener.hashAdded(IHashListener.ElementType.NODE, storage.getId(), storage.getElementId(), hash));
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute create node transaction in server:  " + id, e);
+            end(session, false);
             return false;
         }
-        finally
+        if (!end(session, true))
         {
-            graph.tx().commit();
+            return false;
         }
         Log.getLogger().warn("Successfully executed create node transaction in server:  " + id);
         return true;
@@ -358,26 +801,30 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyDelete(final NodeStorage storage, final long snapshotId)
     {
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
+            final GraphTraversalSource g = session.g;
 
             GraphTraversal<Vertex, Vertex> tempNode = getVertexList(storage, g);
 
             while (tempNode.hasNext())
             {
-                tempNode.next().remove();
+                final Vertex vertex = tempNode.next();
+                vertex.edges(Direction.BOTH).forEachRemaining(edge -> notifyRemoved(session, IHashListener.ElementType.RELATIONSHIP, edge));
+                notifyRemoved(session, IHashListener.ElementType.NODE, vertex);
+                vertex.remove();
             }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute delete node transaction in server:  " + id, e);
+            end(session, false);
             return false;
         }
-        finally
+        if (!end(session, true))
         {
-            graph.tx().commit();
+            return false;
         }
         Log.getLogger().warn("Successfully executed delete node transaction in server:  " + id);
         return true;
@@ -386,52 +833,38 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyUpdate(final RelationshipStorage key, final RelationshipStorage value, final long snapshotId)
     {
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
-
-            GraphTraversal<Vertex, Vertex> startNode = getVertexList(key.getStartNode(), g);
-            GraphTraversal<Vertex, Vertex> endNode = getVertexList(key.getEndNode(), g);
-
-            //Max size is the mix between properties of both maps + 4 (hash and snapshotId)
+            final GraphTraversalSource g = session.g;
 
-            RelationshipStorage tempStorage = new RelationshipStorage(value.getId(),
-                    key.getProperties(),
-                    key.getStartNode(),
-                    key.getEndNode());
-            for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
-            {
-                tempStorage.addProperty(entry.getKey(), entry.getValue());
-            }
+            GraphTraversal<?, Edge> edges = getEdgeList(key, g);
 
-            while (startNode.hasNext())
+            while (edges.hasNext())
             {
-                while (endNode.hasNext())
+                Edge edge = edges.next();
+                final Object oldHash = getHash(edge);
+                for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
                 {
-                    Iterator<Edge> edges = startNode.next().edges(Direction.OUT, key.getId());
-
-                    while (edges.hasNext())
-                    {
-                        Edge edge = edges.next();
-                        for (Map.Entry<String, Object> entry : value.getProperties().entrySet())
-                        {
-                            edge.property(entry.getKey(), entry.getValue());
-                        }
-                        edge.property(Constants.TAG_HASH, HashCreator.sha1FromRelationship(getRelationshipStorageFromEdge(edge)));
-                        edge.property(Constants.TAG_SNAPSHOT_ID, snapshotId);
-                    }
+                    edge.property(entry.getKey(), entry.getValue());
                 }
+                final byte[] newHash = HashCreator.hashFromRelationship(getRelationshipStorageFromEdge(edge)).toBytes();
+                edge.property(Constants.TAG_HASH, newHash);
+                edge.property(Constants.TAG_SNAPSHOT_ID, snapshotId);
+                final String label = edge.label();
+                final long elementId = getElementId(edge);
+                session.notifications.add(() -> hashListener.hashReplaced(IHashListener.ElementType.RELATIONSHIP, label, elementId, oldHash, newHash));
             }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute update relationship transaction in server:  " + id, e);
+            end(session, false);
             return false;
         }
-        finally
+        if (!end(session, true))
         {
-            graph.tx().commit();
+            return false;
         }
         Log.getLogger().warn("Successfully executed update relationship transaction in server:  " + id);
         return true;
@@ -440,39 +873,53 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyCreate(final RelationshipStorage storage, final long snapshotId)
     {
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
+            final GraphTraversalSource g = session.g;
 
-            GraphTraversal<Vertex, Vertex> startNode = getVertexList(storage.getStartNode(), g);
-            GraphTraversal<Vertex, Vertex> endNode = getVertexList(storage.getEndNode(), g);
+            final List<Vertex> startNodes = getVertexList(storage.getStartNode(), g).toList();
+            //Materialized as every start vertex connects to all of them.
+            final List<Vertex> endNodes = getVertexList(storage.getEndNode(), g).toList();
 
-            while (startNode.hasNext())
+            //An element id names a single edge, so it can only connect exactly one start and one end vertex.
+            if (storage.hasElementId() && (startNodes.size() != 1 || endNodes.size() != 1))
             {
-                Vertex tempVertex = startNode.next();
-                while (endNode.hasNext())
-                {
-                    Edge edge  = tempVertex.addEdge(storage.getId(), endNode.next());
+                Log.getLogger().warn("Create of relationship " + storage.getElementId() + " matched " + startNodes.size() + " start and "
+                        + endNodes.size() + " end vertices instead of one each, rejecting it in server: " + id);
+                end(session, true);
+                return false;
+            }
 
-                    edge.property(Constants.TAG_HASH, HashCreator.sha1FromRelationship(storage));
-                    edge.property(Constants.TAG_SNAPSHOT_ID, snapshotId);
+            for (final Vertex tempVertex : startNodes)
+            {
+                for (final Vertex endNode : endNodes)
+                {
+                    Edge edge  = tempVertex.addEdge(storage.getId(), endNode);
 
                     for (Map.Entry<String, Object> entry : storage.getProperties().entrySet())
                     {
                         edge.property(entry.getKey(), entry.getValue());
                     }
+                    edge.property(Constants.TAG_SNAPSHOT_ID, snapshotId);
+
+                    //The hash covers the stored start and end vertex, the request may only reference them.
+                    final byte[] hash = HashCreator.hashFromRelationship(getRelationshipStorageFromEdge(edge)).toBytes();
+                    edge.property(Constants.TAG_HASH, hash);
+                    final long elementId = getElementId(edge);
+                    session.notifications.add(() -> hashListener.hashAdded(IHashListener.ElementType.RELATIONSHIP, storage.getId(), elementId, hash));
                 }
             }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute create relationship transaction in server:  " + id, e);
+            end(session, false);
             return false;
         }
-        finally
+        if (!end(session, true))
         {
-            graph.tx().commit();
+            return false;
         }
         Log.getLogger().warn("Successfully executed create relationship transaction in server:  " + id);
         return true;
@@ -481,38 +928,32 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean applyDelete(final RelationshipStorage storage, final long snapshotId)
     {
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
+            final GraphTraversalSource g = session.g;
 
-            ArrayList<Vertex> nodeStartList = getVertexList(storage.getStartNode(), g, snapshotId);
-            ArrayList<Vertex> nodeEndList = getVertexList(storage.getEndNode(), g, snapshotId);
-            GraphTraversal<Vertex, Edge> tempOutput = g.V(nodeStartList.toArray()).bothE().where(__.is(P.within(nodeEndList.toArray()))).hasLabel(storage.getId());
+            GraphTraversal<?, Edge> tempOutput = getEdgeList(storage, g);
 
-            for (Map.Entry<String, Object> entry : storage.getProperties().entrySet())
+            if (tempOutput != null && (tempOutput.has(Constants.TAG_SNAPSHOT_ID) == null || (tempOutput = tempOutput.has(Constants.TAG_SNAPSHOT_ID, P.lte(snapshotId))) != null))
             {
-                if (tempOutput == null)
+                while (tempOutput.hasNext())
                 {
-                    break;
+                    final Edge edge = tempOutput.next();
+                    notifyRemoved(session, IHashListener.ElementType.RELATIONSHIP, edge);
+                    edge.remove();
                 }
-                tempOutput = tempOutput.has(entry.getKey(), entry.getValue());
-            }
-
-            if (tempOutput != null && (tempOutput.has(Constants.TAG_SNAPSHOT_ID) == null || (tempOutput = tempOutput.has(Constants.TAG_SNAPSHOT_ID, P.lte(snapshotId))) != null))
-            {
-
-                tempOutput.remove();
             }
         }
         catch (Exception e)
         {
             Log.getLogger().warn("Couldn't execute delete relationship transaction in server:  " + id, e);
+            end(session, false);
             return false;
         }
-        finally
+        if (!end(session, true))
         {
-            graph.tx().commit();
+            return false;
         }
         Log.getLogger().warn("Successfully executed delete relationship transaction in server:  " + id);
         return true;
@@ -526,27 +967,12 @@ public class TitanDatabaseAccess implements IDatabaseAccess
     @Override
     public boolean compareRelationship(final RelationshipStorage relationshipStorage)
     {
-        if(graph == null)
-        {
-            start();
-        }
-
+        final Session session = begin();
         try
         {
-            graph.newTransaction();
-            GraphTraversalSource g = graph.traversal();
-            GraphTraversal<Vertex, Vertex> tempOutput = g.V().hasLabel(relationshipStorage.getId());
+            GraphTraversal<?, Edge> tempOutput = getEdgeList(relationshipStorage, session.g);
 
-            for (Map.Entry<String, Object> entry : relationshipStorage.getProperties().entrySet())
-            {
-                if (tempOutput == null)
-                {
-                    break;
-                }
-                tempOutput = tempOutput.has(entry.getKey(), entry.getValue());
-            }
-
-            if(tempOutput == null || !HashCreator.sha1FromRelationship(relationshipStorage).equals(tempOutput.values("hash").toString()))
+            if(!HashCreator.hashFromRelationship(relationshipStorage).matches(tempOutput.values(Constants.TAG_HASH).tryNext().orElse(null)))
             {
                 return false;
             }
@@ -557,7 +983,7 @@ public class TitanDatabaseAccess implements IDatabaseAccess
         }
         finally
         {
-            graph.tx().commit();
+            end(session, true);
         }
 
         return true;
@@ -571,17 +997,75 @@ public class TitanDatabaseAccess implements IDatabaseAccess
      */
     private GraphTraversal<Vertex, Vertex> getVertexList(final NodeStorage nodeStorage, final GraphTraversalSource g)
     {
-        GraphTraversal<Vertex, Vertex> tempOutput = g.V().hasLabel(nodeStorage.getId());
+        //Starting with the id lets titan answer it from the composite index.
+        GraphTraversal<Vertex, Vertex> tempOutput = nodeStorage.hasElementId()
+                ? g.V().has(Constants.TAG_ID, nodeStorage.getElementId())
+                : has(g.V(), nodeStorage.getMatchProperties());
 
-        for (Map.Entry<String, Object> entry : nodeStorage.getProperties().entrySet())
+        if (!nodeStorage.getId().isEmpty())
         {
-            if (tempOutput == null)
-            {
-                break;
-            }
-            tempOutput = tempOutput.has(entry.getKey(), entry.getValue());
+            tempOutput = tempOutput.hasLabel(nodeStorage.getId());
         }
 
         return tempOutput;
     }
+
+    /**
+     * Gets the graph traversal object for a relationshipStorage.
+     * Relationships with an id are looked up in the edge index, else they're searched in the edges of the matching start vertices.
+     * @param relationshipStorage the storage.
+     * @param g the graph.
+     * @return the traversal object.
+     */
+    private GraphTraversal<?, Edge> getEdgeList(final RelationshipStorage relationshipStorage, final GraphTraversalSource g)
+    {
+        final String label = relationshipStorage.getId();
+        if (relationshipStorage.hasElementId())
+        {
+            final GraphTraversal<?, Edge> tempOutput = g.E().has(Constants.TAG_ID, relationshipStorage.getElementId());
+            return label.isEmpty() ? tempOutput : tempOutput.hasLabel(label);
+        }
+
+        //The label and properties directly on outE are answered from the adjacency list and the vertex-centric indexes.
+        final List<Vertex> nodeEndList = getVertexList(relationshipStorage.getEndNode(), g).toList();
+        final GraphTraversal<Vertex, Vertex> startNodes = getVertexList(relationshipStorage.getStartNode(), g);
+        return has(label.isEmpty() ? startNodes.outE() : startNodes.outE(label), relationshipStorage.getMatchProperties())
+                .filter(__.inV().is(P.within(nodeEndList)));
+    }
+
+    /**
+     * Adds a filter for each property to a traversal.
+     * @param traversal the traversal.
+     * @param properties the properties to match.
+     * @param <S> the start type of the traversal.
+     * @param <E> the element type of the traversal.
+     * @return the filtered traversal.
+     */
+    private static <S, E extends Element> GraphTraversal<S, E> has(GraphTraversal<S, E> traversal, final CompactProperties properties)
+    {
+        for (int i = 0; i < properties.size(); i++)
+        {
+            traversal = traversal.has(properties.getKey(i), properties.getValue(i));
+        }
+        return traversal;
+    }
+
+    /**
+     * Transaction of a thread with its traversal source. Operations started while it is open join it,
+     * so all operations of a write set run in one transaction.
+     */
+    private static final class Session
+    {
+        private final TitanTransaction     tx;
+        private final GraphTraversalSource g;
+        private final List<Runnable>       notifications = new ArrayList<>();
+        private int                        depth         = 0;
+        private boolean                    failed        = false;
+
+        private Session(final TitanTransaction tx)
+        {
+            this.tx = tx;
+            this.g = tx.traversal();
+        }
+    }
 }
@@ -2,9 +2,14 @@ package main.java.com.bag.server.database.interfaces;
 
 
 import main.java.com.bag.exceptions.OutDatedDataException;
+import main.java.com.bag.operations.Operation;
+import main.java.com.bag.server.database.IndexUsage;
+import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.Log;
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -22,6 +27,53 @@ public interface IDatabaseAccess
      */
     void terminate();
 
+    /**
+     * Sets the listener which gets notified about the hashes of the elements written or deleted by the apply methods.
+     * @param listener the listener.
+     */
+    void setHashListener(IHashListener listener);
+
+    /**
+     * Reports the stored hash of every element in the database to the listener.
+     * @param listener the listener.
+     */
+    void scanHashes(IHashListener listener);
+
+    /**
+     * Creates an index on a property of a label or type.
+     * Only call it while executing ordered requests, so all replicas have the same indexes.
+     * @param label the label or type.
+     * @param key the property key.
+     * @return true if the index exists afterwards.
+     */
+    default boolean createIndex(final String label, final String key)
+    {
+        Log.getLogger().warn("Index creation not supported by " + getClass().getSimpleName());
+        return false;
+    }
+
+    /**
+     * Gets the usage counters of the label and property key pairs used in lookups.
+     * @return the counters, empty if not tracked.
+     */
+    default List<IndexUsage> getIndexUsage()
+    {
+        return Collections.emptyList();
+    }
+
+    /**
+     * Applies the write set of a commit in its order.
+     * @param writeSet the operations of the commit.
+     * @param snapshotId the snapshot id of the commit.
+     */
+    default void applyWriteSet(final List<Operation> writeSet, final long snapshotId)
+    {
+        for (final Operation op : writeSet)
+        {
+            op.apply(this, snapshotId);
+        }
+    }
+
     /**
      * Method used to check if the hashes inside a readSet are correct.
      */
@@ -55,7 +107,10 @@ public interface IDatabaseAccess
         {
             if(storage instanceof RelationshipStorage)
             {
-                RelationshipStorage relationshipStorage = (RelationshipStorage) storage;
+                final RelationshipStorage readStorage = (RelationshipStorage) storage;
+                final RelationshipStorage relationshipStorage = new RelationshipStorage(readStorage.getId(),
+                        withoutHash(readStorage.getStartNode()), withoutHash(readStorage.getEndNode()));
+                relationshipStorage.setCompactProperties(readStorage.getCompactProperties().without(Constants.TAG_HASH));
 
                 if(!compareRelationship(relationshipStorage))
                 {
@@ -77,7 +132,7 @@ public interface IDatabaseAccess
         {
             if(storage instanceof NodeStorage)
             {
-                NodeStorage nodeStorage = (NodeStorage) storage;
+                final NodeStorage nodeStorage = withoutHash((NodeStorage) storage);
 
                 if(!compareNode(nodeStorage))
                 {
@@ -88,6 +143,18 @@ public interface IDatabaseAccess
         return true;
     }
 
+    /**
+     * Removes the stored hash from the properties of a read, it is a raw digest and the lookups match on the remaining properties.
+     * @param storage the read node.
+     * @return a copy of the node without the hash.
+     */
+    default NodeStorage withoutHash(final NodeStorage storage)
+    {
+        final NodeStorage copy = new NodeStorage(storage.getId());
+        copy.setCompactProperties(storage.getCompactProperties().without(Constants.TAG_HASH));
+        return copy;
+    }
+
     /**
      * Compares the relationshipStorage with it's hash from the database.
      * @param storage the storage to compare.
@@ -0,0 +1,73 @@
+package main.java.com.bag.server.database.interfaces;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Gets notified by the database access about the stored hashes of the elements which are written or deleted.
+ */
+public interface IHashListener
+{
+    /**
+     * Listener ignoring all notifications, used until a real one is set.
+     */
+    IHashListener NONE = new IHashListener()
+    {
+        @Override
+        public void hashAdded(@NotNull final ElementType type, @NotNull final String label, final long elementId, @Nullable final Object hash)
+        {
+            /*
+             * Intentionally left empty.
+             */
+        }
+
+        @Override
+        public void hashRemoved(@NotNull final ElementType type, @NotNull final String label, final long elementId, @Nullable final Object hash)
+        {
+            /*
+             * Intentionally left empty.
+             */
+        }
+    };
+
+    /**
+     * The kind of element the hash belongs to.
+     */
+    enum ElementType
+    {
+        NODE,
+        RELATIONSHIP
+    }
+
+    /**
+     * An element with this hash has been stored.
+     * @param type node or relationship.
+     * @param label the label of the node or the type of the relationship.
+     * @param elementId the element id, ElementIds.NONE if it has none.
+     * @param hash the stored hash, a byte array or hex string, ignored if null.
+     */
+    void hashAdded(@NotNull ElementType type, @NotNull String label, long elementId, @Nullable Object hash);
+
+    /**
+     * An element with this hash has been changed or deleted.
+     * @param type node or relationship.
+     * @param label the label of the node or the type of the relationship.
+     * @param elementId the element id, ElementIds.NONE if it has none.
+     * @param hash the previously stored hash, a byte array or hex string, ignored if null.
+     */
+    void hashRemoved(@NotNull ElementType type, @NotNull String label, long elementId, @Nullable Object hash);
+
+    /**
+     * An element got a new hash.
+     * @param type node or relationship.
+     * @param label the label of the node or the type of the relationship.
+     * @param elementId the element id, ElementIds.NONE if it has none.
+     * @param oldHash the previously stored hash.
+     * @param newHash the newly stored hash.
+     */
+    default void hashReplaced(@NotNull ElementType type, @NotNull String label, long elementId, @Nullable Object oldHash, @Nullable Object newHash)
+    {
+        hashRemoved(type, label, elementId, oldHash);
+        hashAdded(type, label, elementId, newHash);
+    }
+}
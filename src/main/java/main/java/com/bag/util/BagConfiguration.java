@@ -0,0 +1,147 @@
+package main.java.com.bag.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Deployment settings of bag, read from config/bag.config next to the BFT-SMaRt configuration.
+ * Missing files or keys fall back to the given defaults.
+ */
+public class BagConfiguration
+{
+    /**
+     * Location of the configuration file.
+     */
+    private static final String CONFIG_FILE = "config" + java.io.File.separator + "bag.config";
+
+    /**
+     * The loaded settings.
+     */
+    private static Properties properties = null;
+
+    /**
+     * Private constructor to hide the public one.
+     */
+    private BagConfiguration()
+    {
+        //Hides implicit constructor.
+    }
+
+    /**
+     * Gets the loaded settings, loads them on first access.
+     * @return the settings.
+     */
+    private static synchronized Properties getProperties()
+    {
+        if (properties == null)
+        {
+            properties = new Properties();
+            final Path path = Paths.get(CONFIG_FILE);
+            if (Files.exists(path))
+            {
+                try (InputStream stream = new FileInputStream(path.toFile()))
+                {
+                    properties.load(stream);
+                }
+                catch (IOException e)
+                {
+                    Log.getLogger().warn("Couldn't read " + CONFIG_FILE + ", using the defaults", e);
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Gets a string setting.
+     * @param key the key.
+     * @param defaultValue the value if not configured.
+     * @return the trimmed value.
+     */
+    public static String getString(@NotNull final String key, final String defaultValue)
+    {
+        final String value = getProperties().getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    /**
+     * Gets an int setting.
+     * @param key the key.
+     * @param defaultValue the value if not configured or invalid.
+     * @return the value.
+     */
+    public static int getInt(@NotNull final String key, final int defaultValue)
+    {
+        return (int) getLong(key, defaultValue);
+    }
+
+    /**
+     * Gets a long setting.
+     * @param key the key.
+     * @param defaultValue the value if not configured or invalid.
+     * @return the value.
+     */
+    public static long getLong(@NotNull final String key, final long defaultValue)
+    {
+        final String value = getString(key, null);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            Log.getLogger().warn("Invalid value " + value + " for " + key + ", using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a list of name.key pairs, separated by commas, like label and property key of indexes.
+     * Invalid entries are skipped with a warning.
+     * @param key the key.
+     * @return the name and key of each pair, in the configured order.
+     */
+    public static List<String[]> getPairs(@NotNull final String key)
+    {
+        final List<String[]> pairs = new ArrayList<>();
+        for (final String pair : getString(key, "").split(","))
+        {
+            final int separator = pair.indexOf('.');
+            if (separator > 0 && separator < pair.length() - 1)
+            {
+                pairs.add(new String[] {pair.substring(0, separator).trim(), pair.substring(separator + 1).trim()});
+            }
+            else if (!pair.trim().isEmpty())
+            {
+                Log.getLogger().warn("Invalid entry " + pair + " in " + key + ", expected name.key");
+            }
+        }
+        return pairs;
+    }
+
+    /**
+     * Gets a boolean setting.
+     * @param key the key.
+     * @param defaultValue the value if not configured.
+     * @return the value.
+     */
+    public static boolean getBoolean(@NotNull final String key, final boolean defaultValue)
+    {
+        final String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+}
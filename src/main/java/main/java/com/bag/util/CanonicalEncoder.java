@@ -0,0 +1,623 @@
+package main.java.com.bag.util;
+
+import main.java.com.bag.util.storage.CompactProperties;
+import main.java.com.bag.util.storage.NodeStorage;
+import main.java.com.bag.util.storage.RelationshipStorage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Encodes nodes and relationships into a canonical binary form, independent of the map order and the backend value types.
+ * Keys are sorted, values are tagged with their type, integral numbers are widened to 8 byte longs, floating point numbers
+ * to 8 byte doubles and strings are length prefixed UTF-8. The stored hash and snapshotId are not part of the encoding.
+ * The bytes are written into a small buffer and handed to the sink in chunks, no intermediate strings are created.
+ */
+public class CanonicalEncoder
+{
+    /**
+     * Receiver of the encoded bytes, for example a MessageDigest.
+     */
+    @FunctionalInterface
+    public interface Sink
+    {
+        /**
+         * Consumes a chunk of encoded bytes.
+         * @param bytes the buffer.
+         * @param offset the start of the chunk.
+         * @param length the length of the chunk.
+         */
+        void write(byte[] bytes, int offset, int length);
+    }
+
+    /**
+     * Element and value tags.
+     */
+    private static final byte TAG_NODE         = 'N';
+    private static final byte TAG_RELATIONSHIP = 'R';
+    private static final byte TAG_NULL         = 0;
+    private static final byte TAG_BOOLEAN      = 1;
+    private static final byte TAG_LONG         = 2;
+    private static final byte TAG_DOUBLE       = 3;
+    private static final byte TAG_STRING       = 4;
+    private static final byte TAG_BYTES        = 5;
+    private static final byte TAG_ARRAY        = 6;
+    private static final byte TAG_OTHER        = 7;
+
+    /**
+     * Size of the buffer, large enough to hold any single encoded character or number.
+     */
+    private static final int BUFFER_SIZE = 256;
+
+    /**
+     * The sink the encoded bytes are flushed to.
+     */
+    private final Sink sink;
+
+    /**
+     * The buffer the bytes are collected in.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Current position in the buffer.
+     */
+    private int position = 0;
+
+    /**
+     * Creates an encoder writing into a sink, the encoder may be reused after a flush.
+     * @param sink the sink.
+     */
+    public CanonicalEncoder(@NotNull final Sink sink)
+    {
+        this.sink = sink;
+    }
+
+    /**
+     * Encodes a node into a new byte array.
+     * @param node the node.
+     * @return the canonical bytes.
+     */
+    public static byte[] encode(@NotNull final NodeStorage node)
+    {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final CanonicalEncoder encoder = new CanonicalEncoder(outputStream::write);
+        encoder.writeNode(node);
+        encoder.flush();
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Encodes a relationship into a new byte array.
+     * @param relationship the relationship.
+     * @return the canonical bytes.
+     */
+    public static byte[] encode(@NotNull final RelationshipStorage relationship)
+    {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final CanonicalEncoder encoder = new CanonicalEncoder(outputStream::write);
+        encoder.writeRelationship(relationship);
+        encoder.flush();
+        return outputStream.toByteArray();
+    }
+
+    /**
+     * Normalizes a property value to the type it has in the canonical encoding.
+     * @param value the value.
+     * @return a Long for integral numbers, a Double for floating point numbers and a String for characters, else the value itself.
+     */
+    @Nullable
+    public static Object normalize(@Nullable final Object value)
+    {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+        {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float)
+        {
+            return ((Float) value).doubleValue();
+        }
+        if (value instanceof Character)
+        {
+            return value.toString();
+        }
+        return value;
+    }
+
+    /**
+     * Checks if two property values are equal in the canonical encoding, for example an Integer and a Long with the same value.
+     * @param first the first value.
+     * @param second the second value.
+     * @return true if they encode the same.
+     */
+    public static boolean valueEquals(@Nullable final Object first, @Nullable final Object second)
+    {
+        final Object a = normalize(first);
+        final Object b = normalize(second);
+        if (a == b)
+        {
+            return true;
+        }
+        if (a == null || b == null)
+        {
+            return false;
+        }
+        if (a instanceof byte[] && b instanceof byte[])
+        {
+            return Arrays.equals((byte[]) a, (byte[]) b);
+        }
+        if (isSequence(a) && isSequence(b) && !(a instanceof byte[]) && !(b instanceof byte[]))
+        {
+            final Object[] left = toArray(a);
+            final Object[] right = toArray(b);
+            if (left.length != right.length)
+            {
+                return false;
+            }
+            for (int i = 0; i < left.length; i++)
+            {
+                if (!valueEquals(left[i], right[i]))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (a instanceof Double && b instanceof Double)
+        {
+            return Double.doubleToLongBits((Double) a) == Double.doubleToLongBits((Double) b);
+        }
+        return a.equals(b);
+    }
+
+    /**
+     * Checks if all properties of the subset are contained in the superset with canonically equal values.
+     * @param superset the larger property map.
+     * @param subset the smaller property map.
+     * @return true if so.
+     */
+    public static boolean containsAll(@NotNull final Map<String, Object> superset, @NotNull final Map<String, Object> subset)
+    {
+        for (final Map.Entry<String, Object> entry : subset.entrySet())
+        {
+            if (!superset.containsKey(entry.getKey()) || !valueEquals(superset.get(entry.getKey()), entry.getValue()))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if all properties of the subset are contained in the superset with canonically equal values.
+     * Works on the sorted keys directly, nothing is allocated.
+     * @param superset the larger properties.
+     * @param subset the smaller properties.
+     * @return true if so.
+     */
+    public static boolean containsAll(@NotNull final CompactProperties superset, @NotNull final CompactProperties subset)
+    {
+        if (subset.size() > superset.size())
+        {
+            return false;
+        }
+
+        int position = 0;
+        for (int i = 0; i < subset.size(); i++)
+        {
+            final String key = subset.getKey(i);
+            while (position < superset.size() && superset.getKey(position).compareTo(key) < 0)
+            {
+                position++;
+            }
+            if (position >= superset.size() || !superset.getKey(position).equals(key)
+                    || !valueEquals(superset, position, subset, i))
+            {
+                return false;
+            }
+            position++;
+        }
+        return true;
+    }
+
+    /**
+     * Checks if two property values are equal in the canonical encoding, primitives are compared without boxing.
+     * @param first the first properties.
+     * @param firstIndex the position in the first properties.
+     * @param second the second properties.
+     * @param secondIndex the position in the second properties.
+     * @return true if they encode the same.
+     */
+    private static boolean valueEquals(
+            @NotNull final CompactProperties first,
+            final int firstIndex,
+            @NotNull final CompactProperties second,
+            final int secondIndex)
+    {
+        if (first.isPrimitive(firstIndex) && second.isPrimitive(secondIndex))
+        {
+            return canonicalTag(first.getType(firstIndex)) == canonicalTag(second.getType(secondIndex))
+                    && first.getPrimitiveBits(firstIndex) == second.getPrimitiveBits(secondIndex);
+        }
+        return valueEquals(first.getValue(firstIndex), second.getValue(secondIndex));
+    }
+
+    /**
+     * Gets the tag a primitive column type is encoded with.
+     * @param type the column type.
+     * @return the tag.
+     */
+    private static byte canonicalTag(final byte type)
+    {
+        switch (type)
+        {
+            case CompactProperties.TYPE_INT:
+            case CompactProperties.TYPE_LONG:
+                return TAG_LONG;
+            case CompactProperties.TYPE_FLOAT:
+            case CompactProperties.TYPE_DOUBLE:
+                return TAG_DOUBLE;
+            case CompactProperties.TYPE_BOOLEAN:
+                return TAG_BOOLEAN;
+            default:
+                return TAG_OTHER;
+        }
+    }
+
+    /**
+     * Writes a node.
+     * @param node the node.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeNode(@NotNull final NodeStorage node)
+    {
+        writeByte(TAG_NODE);
+        writeString(node.getId());
+        writeProperties(node.getCompactProperties());
+        return this;
+    }
+
+    /**
+     * Writes a relationship with its start and end node.
+     * @param relationship the relationship.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeRelationship(@NotNull final RelationshipStorage relationship)
+    {
+        writeByte(TAG_RELATIONSHIP);
+        writeString(relationship.getId());
+        writeProperties(relationship.getCompactProperties());
+        writeNode(relationship.getStartNode());
+        writeNode(relationship.getEndNode());
+        return this;
+    }
+
+    /**
+     * Writes the properties sorted by key, without the stored hash and snapshotId.
+     * @param properties the properties.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeProperties(@NotNull final Map<String, Object> properties)
+    {
+        final String[] keys = new String[properties.size()];
+        int count = 0;
+        for (final String key : properties.keySet())
+        {
+            if (!Constants.TAG_HASH.equals(key) && !Constants.TAG_SNAPSHOT_ID.equals(key))
+            {
+                keys[count++] = key;
+            }
+        }
+        Arrays.sort(keys, 0, count);
+
+        writeInt(count);
+        for (int i = 0; i < count; i++)
+        {
+            writeString(keys[i]);
+            writeValue(properties.get(keys[i]));
+        }
+        return this;
+    }
+
+    /**
+     * Writes properties which are already sorted, without the stored hash and snapshotId.
+     * @param properties the properties.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeProperties(@NotNull final CompactProperties properties)
+    {
+        final int hashIndex = properties.indexOf(Constants.TAG_HASH);
+        final int snapshotIndex = properties.indexOf(Constants.TAG_SNAPSHOT_ID);
+
+        writeInt(properties.size() - (hashIndex < 0 ? 0 : 1) - (snapshotIndex < 0 ? 0 : 1));
+        for (int i = 0; i < properties.size(); i++)
+        {
+            if (i != hashIndex && i != snapshotIndex)
+            {
+                writeString(properties.getKey(i));
+                if (properties.isPrimitive(i))
+                {
+                    final byte tag = canonicalTag(properties.getType(i));
+                    writeByte(tag);
+                    if (tag == TAG_BOOLEAN)
+                    {
+                        writeByte((byte) properties.getPrimitiveBits(i));
+                    }
+                    else
+                    {
+                        writeLong(properties.getPrimitiveBits(i));
+                    }
+                }
+                else
+                {
+                    writeValue(properties.getValue(i));
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a type tagged property value.
+     * @param value the value.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeValue(@Nullable final Object value)
+    {
+        final Object normalized = normalize(value);
+        if (normalized == null)
+        {
+            writeByte(TAG_NULL);
+        }
+        else if (normalized instanceof Boolean)
+        {
+            writeByte(TAG_BOOLEAN);
+            writeByte((byte) ((Boolean) normalized ? 1 : 0));
+        }
+        else if (normalized instanceof Long)
+        {
+            writeByte(TAG_LONG);
+            writeLong((Long) normalized);
+        }
+        else if (normalized instanceof Double)
+        {
+            writeByte(TAG_DOUBLE);
+            writeLong(Double.doubleToLongBits((Double) normalized));
+        }
+        else if (normalized instanceof String)
+        {
+            writeByte(TAG_STRING);
+            writeString((String) normalized);
+        }
+        else if (normalized instanceof byte[])
+        {
+            final byte[] bytes = (byte[]) normalized;
+            writeByte(TAG_BYTES);
+            writeInt(bytes.length);
+            writeBytes(bytes, 0, bytes.length);
+        }
+        else if (isSequence(normalized))
+        {
+            final Object[] elements = toArray(normalized);
+            writeByte(TAG_ARRAY);
+            writeInt(elements.length);
+            for (final Object element : elements)
+            {
+                writeValue(element);
+            }
+        }
+        else
+        {
+            writeByte(TAG_OTHER);
+            writeString(normalized.toString());
+        }
+        return this;
+    }
+
+    /**
+     * Writes a length prefixed UTF-8 string.
+     * @param value the string.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeString(@NotNull final String value)
+    {
+        writeInt(utf8Length(value));
+        for (int i = 0; i < value.length(); i++)
+        {
+            ensure(4);
+            final char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                buffer[position++] = (byte) c;
+            }
+            else if (c < 0x800)
+            {
+                buffer[position++] = (byte) (0xc0 | (c >> 6));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                final int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[position++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else if (Character.isSurrogate(c))
+            {
+                buffer[position++] = '?';
+            }
+            else
+            {
+                buffer[position++] = (byte) (0xe0 | (c >> 12));
+                buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Writes a big endian 8 byte long.
+     * @param value the long.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeLong(final long value)
+    {
+        ensure(Long.BYTES);
+        for (int i = 0; i < Long.BYTES; i++)
+        {
+            buffer[position++] = (byte) (value >>> (56 - i * 8));
+        }
+        return this;
+    }
+
+    /**
+     * Writes a big endian 4 byte int.
+     * @param value the int.
+     * @return this encoder.
+     */
+    public CanonicalEncoder writeInt(final int value)
+    {
+        ensure(Integer.BYTES);
+        for (int i = 0; i < Integer.BYTES; i++)
+        {
+            buffer[position++] = (byte) (value >>> (24 - i * 8));
+        }
+        return this;
+    }
+
+    /**
+     * Hands the buffered bytes to the sink.
+     */
+    public void flush()
+    {
+        if (position > 0)
+        {
+            sink.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+
+    /**
+     * Drops the buffered bytes without handing them to the sink.
+     */
+    public void discard()
+    {
+        position = 0;
+    }
+
+    /**
+     * Writes a single byte.
+     * @param value the byte.
+     */
+    private void writeByte(final byte value)
+    {
+        ensure(1);
+        buffer[position++] = value;
+    }
+
+    /**
+     * Writes raw bytes, large arrays are handed to the sink directly.
+     * @param bytes the bytes.
+     * @param offset the start.
+     * @param length the amount.
+     */
+    private void writeBytes(final byte[] bytes, final int offset, final int length)
+    {
+        if (length > BUFFER_SIZE - position)
+        {
+            flush();
+            sink.write(bytes, offset, length);
+            return;
+        }
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Makes sure the buffer has room for some bytes, flushes it otherwise.
+     * @param length the amount of bytes.
+     */
+    private void ensure(final int length)
+    {
+        if (position + length > BUFFER_SIZE)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Calculates the length of the UTF-8 encoding of a string, unpaired surrogates count as one byte.
+     * @param value the string.
+     * @return the amount of bytes.
+     */
+    private static int utf8Length(@NotNull final String value)
+    {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            if (c < 0x80)
+            {
+                length += 1;
+            }
+            else if (c < 0x800)
+            {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1)))
+            {
+                length += 4;
+                i++;
+            }
+            else if (Character.isSurrogate(c))
+            {
+                length += 1;
+            }
+            else
+            {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Checks if a value is an array or a collection.
+     * @param value the value.
+     * @return true if so.
+     */
+    private static boolean isSequence(@NotNull final Object value)
+    {
+        return value.getClass().isArray() || value instanceof Collection;
+    }
+
+    /**
+     * Gets the elements of an array or collection.
+     * @param value the array or collection.
+     * @return the elements.
+     */
+    private static Object[] toArray(@NotNull final Object value)
+    {
+        if (value instanceof Collection)
+        {
+            return ((Collection) value).toArray();
+        }
+        if (value instanceof Object[])
+        {
+            return (Object[]) value;
+        }
+        final Object[] elements = new Object[Array.getLength(value)];
+        for (int i = 0; i < elements.length; i++)
+        {
+            elements[i] = Array.get(value, i);
+        }
+        return elements;
+    }
+}
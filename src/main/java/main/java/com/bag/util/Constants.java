@@ -6,11 +6,22 @@ package main.java.com.bag.util;
 public class Constants
 {
     public static final String COMMIT_MESSAGE             = "commit";
+    public static final String BATCH_COMMIT_MESSAGE       = "commit/batch";
     public static final String READ_MESSAGE               = "node/read";
     public static final String RELATIONSHIP_READ_MESSAGE  = "relationship/read";
+    public static final String BFT_READ_MESSAGE           = "read/bft";
+    public static final String MERKLE_MESSAGE             = "merkle";
+    public static final String INDEX_MESSAGE              = "index/create";
+    public static final String INDEX_USAGE_MESSAGE        = "index/usage";
     public static final String COMMIT_RESPONSE            = "commit/response";
+    public static final String BATCH_COMMIT_RESPONSE      = "commit/batch/response";
     public static final String NODE_READ_RESPONSE         = "node/read/response";
     public static final String RELATIONSHIP_READ_RESPONSE = "relationship/read/response";
+    public static final String BFT_READ_FULL_RESPONSE     = "read/bft/full";
+    public static final String BFT_READ_DIGEST_RESPONSE   = "read/bft/digest";
+    public static final String MERKLE_RESPONSE            = "merkle/response";
+    public static final String INDEX_RESPONSE             = "index/create/response";
+    public static final String INDEX_USAGE_RESPONSE       = "index/usage/response";
     public static final String NEO4J                      = "neo4";
     public static final String ORIENTDB                   = "orientDB";
     public static final String TITAN                      = "titan";
@@ -19,6 +30,7 @@ public class Constants
     public static final String COMMIT                     = "commit";
     public static final String ABORT                      = "abort";
     public static final String TAG_HASH                   = "hash";
+    public static final String TAG_ID                     = "bagId";
     /**
      * Used to hide the implicit default constructor.
      */
@@ -0,0 +1,141 @@
+package main.java.com.bag.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Immutable raw hash-sum of a node or relationship.
+ */
+public final class Digest
+{
+    /**
+     * Hex characters used for the legacy string representation.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * The raw digest.
+     */
+    private final byte[] bytes;
+
+    /**
+     * Cached hashCode, computed once from the leading bytes of the digest.
+     */
+    private final int hash;
+
+    /**
+     * Creates a digest, takes ownership of the array.
+     * @param bytes the raw digest.
+     */
+    Digest(@NotNull final byte[] bytes)
+    {
+        this.bytes = bytes;
+        int tempHash = 0;
+        for (int i = 0; i < Math.min(4, bytes.length); i++)
+        {
+            tempHash = (tempHash << 8) | (bytes[i] & 0xff);
+        }
+        this.hash = tempHash;
+    }
+
+    /**
+     * Getter of the length of the digest.
+     * @return the amount of bytes.
+     */
+    public int length()
+    {
+        return bytes.length;
+    }
+
+    /**
+     * Returns a copy of the raw digest, this is the representation stored in the databases.
+     * @return a byte array.
+     */
+    @NotNull
+    public byte[] toBytes()
+    {
+        return bytes.clone();
+    }
+
+    /**
+     * Returns the lower case hex representation of the digest.
+     * @return the hex string.
+     */
+    @NotNull
+    public String toHex()
+    {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Checks if a hash stored in a database equals this digest.
+     * Accepts the raw byte array as well as the hex string of older stores.
+     * @param stored the stored hash.
+     * @return true if it matches.
+     */
+    public boolean matches(@Nullable final Object stored)
+    {
+        if (stored instanceof byte[])
+        {
+            return Arrays.equals(bytes, (byte[]) stored);
+        }
+        if (stored instanceof Digest)
+        {
+            return equals(stored);
+        }
+        if (stored instanceof String)
+        {
+            final String hex = (String) stored;
+            if (hex.length() != bytes.length * 2)
+            {
+                return false;
+            }
+            for (int i = 0; i < bytes.length; i++)
+            {
+                if (Character.digit(hex.charAt(i * 2), 16) != ((bytes[i] >> 4) & 0xf)
+                        || Character.digit(hex.charAt(i * 2 + 1), 16) != (bytes[i] & 0xf))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass())
+        {
+            return false;
+        }
+
+        final Digest that = (Digest) o;
+        return hash == that.hash && Arrays.equals(bytes, that.bytes);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public String toString()
+    {
+        return toHex();
+    }
+}
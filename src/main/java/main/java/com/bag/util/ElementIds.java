@@ -0,0 +1,85 @@
+package main.java.com.bag.util;
+
+/**
+ * Creates the stable ids of nodes and relationships, stored as @Constants.TAG_ID in every backend.
+ * The id is assigned when the creating commit is executed: the snapshotId of the commit in the upper bits
+ * and the position of the create in the write set in the lower bits, so all replicas assign the same id.
+ * Elements of a bulk import get negative ids. A relationship create with an id is rejected unless its start and end
+ * match exactly one node each, so no id names several edges.
+ */
+public class ElementIds
+{
+    /**
+     * Amount of bits for the position inside the write set.
+     */
+    private static final int SEQUENCE_BITS = 20;
+
+    /**
+     * Maximum amount of creates in a single commit.
+     */
+    public static final int MAX_CREATES_PER_COMMIT = 1 << SEQUENCE_BITS;
+
+    /**
+     * Id of elements which have none, commits start at snapshotId 1 and imported ids are negative, so it is never assigned.
+     */
+    public static final long NONE = 0;
+
+    /**
+     * Used to hide the implicit default constructor.
+     */
+    private ElementIds()
+    {
+        /**
+         * Intentionally left empty.
+         */
+    }
+
+    /**
+     * Creates the id of an element.
+     * @param snapshotId the snapshotId of the commit creating the element.
+     * @param sequence the position of the create in the write set.
+     * @return the id.
+     */
+    public static long create(final long snapshotId, final int sequence)
+    {
+        if (sequence < 0 || sequence >= MAX_CREATES_PER_COMMIT)
+        {
+            throw new IllegalArgumentException("Too many creates in one commit: " + sequence);
+        }
+        return (snapshotId << SEQUENCE_BITS) | sequence;
+    }
+
+    /**
+     * Creates the id of an element loaded by a bulk import, these are negative so they never collide with ids of commits.
+     * @param position the position of the element in the import.
+     * @return the id.
+     */
+    public static long createImported(final long position)
+    {
+        if (position < 0)
+        {
+            throw new IllegalArgumentException("Invalid import position: " + position);
+        }
+        return -1 - position;
+    }
+
+    /**
+     * Gets an element id out of a stored property value.
+     * @param value the stored value of @Constants.TAG_ID.
+     * @return the id or NONE if the value is no id.
+     */
+    public static long fromValue(final Object value)
+    {
+        return value instanceof Number ? ((Number) value).longValue() : NONE;
+    }
+
+    /**
+     * Gets the snapshotId of the commit which created an element.
+     * @param elementId the id of the element.
+     * @return the snapshotId, 0 for imported elements.
+     */
+    public static long getSnapshotId(final long elementId)
+    {
+        return elementId < 0 ? 0 : elementId >>> SEQUENCE_BITS;
+    }
+}
@@ -2,56 +2,139 @@ package main.java.com.bag.util;
 
 import main.java.com.bag.util.storage.NodeStorage;
 import main.java.com.bag.util.storage.RelationshipStorage;
+import org.jetbrains.annotations.NotNull;
 
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 /**
  * Class used to create a Hash out of a node or relationship.
+ * The algorithm is set in config/bag.config: "hash.algorithm" for the hashes stored and compared between
+ * clients and replicas (sha-256, sha-1 or murmur3-128, default sha-1 to match older stores, all replicas and clients
+ * have to use the same) and "hash.local.algorithm" for hashes which never leave a replica (default murmur3-128).
  */
 public class HashCreator
 {
     /**
-     * Create a sha1 hash-sum from a @NodeStorage.
-     * @param node the input @NodeStorage
-     * @return the return string (hash-sum)
-     * @throws NoSuchAlgorithmException possible exception.
+     * Configuration key of the replicated algorithm.
+     */
+    public static final String ALGORITHM_KEY = "hash.algorithm";
+
+    /**
+     * Configuration key of the replica-local algorithm.
+     */
+    public static final String LOCAL_ALGORITHM_KEY = "hash.local.algorithm";
+
+    /**
+     * Provider of the hashes stored and compared between clients and replicas.
      */
-    public static String sha1FromNode(NodeStorage node) throws NoSuchAlgorithmException
+    private static HashProvider provider = HashProvider.forAlgorithm(BagConfiguration.getString(ALGORITHM_KEY, HashProvider.SHA1));
+
+    /**
+     * Provider of the hashes which are only used inside a replica.
+     */
+    private static HashProvider localProvider = HashProvider.forAlgorithm(BagConfiguration.getString(LOCAL_ALGORITHM_KEY, HashProvider.MURMUR3));
+
+    /**
+     * Used to hide the implicit default constructor.
+     */
+    private HashCreator()
     {
-        MessageDigest mDigest = MessageDigest.getInstance("SHA1");
+        /**
+         * Intentionally left empty.
+         */
+    }
 
-        byte[] result = mDigest.digest(node.getBytes());
+    /**
+     * Getter of the provider of the replicated hashes.
+     * @return the provider.
+     */
+    public static HashProvider getProvider()
+    {
+        return provider;
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (final byte aResult : result)
-        {
-            sb.append(Integer.toString((aResult & 0xff) + 0x100, 16).substring(1));
-        }
+    /**
+     * Overrides the configured provider of the replicated hashes.
+     * @param provider the provider.
+     */
+    public static void setProvider(@NotNull final HashProvider provider)
+    {
+        HashCreator.provider = provider;
+    }
 
-        return sb.toString();
+    /**
+     * Getter of the provider of the replica-local hashes.
+     * @return the provider.
+     */
+    public static HashProvider getLocalProvider()
+    {
+        return localProvider;
     }
 
     /**
-     * Create a sha1 hash-sum from a @RelationshipStorage.
+     * Overrides the configured provider of the replica-local hashes.
+     * @param localProvider the provider.
+     */
+    public static void setLocalProvider(@NotNull final HashProvider localProvider)
+    {
+        HashCreator.localProvider = localProvider;
+    }
+
+    /**
+     * Create a hash-sum from a @NodeStorage.
+     * @param node the input @NodeStorage
+     * @return the hash-sum.
+     * @throws NoSuchAlgorithmException possible exception.
+     */
+    public static Digest hashFromNode(NodeStorage node) throws NoSuchAlgorithmException
+    {
+        return provider.hash(node);
+    }
+
+    /**
+     * Create a hash-sum from a @RelationshipStorage.
      * @param relationShip the input @RelationshipStorage
-     * @return the return string (hash-sum)
+     * @return the hash-sum.
      * @throws NoSuchAlgorithmException possible exception.
      */
-    public static String sha1FromRelationship(RelationshipStorage relationShip) throws NoSuchAlgorithmException
+    public static Digest hashFromRelationship(RelationshipStorage relationShip) throws NoSuchAlgorithmException
     {
-        MessageDigest mDigest = MessageDigest.getInstance("SHA1");
+        return provider.hash(relationShip);
+    }
 
-        byte[] result = mDigest.digest(relationShip.getBytes());
+    /**
+     * Create a digest of the result of a read, used by replicas which don't return the full result.
+     * @param snapshotId the snapshotId the read has been executed on.
+     * @param nodes the nodes which have been read.
+     * @param relationships the relationships which have been read.
+     * @return the raw digest.
+     * @throws NoSuchAlgorithmException possible exception.
+     */
+    public static byte[] hashFromReadResult(long snapshotId, List<NodeStorage> nodes, List<RelationshipStorage> relationships) throws NoSuchAlgorithmException
+    {
+        return provider.hash(snapshotId, nodes, relationships).toBytes();
+    }
 
-        StringBuilder sb = new StringBuilder();
-        for (final byte aResult : result)
-        {
-            sb.append(Integer.toString((aResult & 0xff) + 0x100, 16).substring(1));
-        }
+    /**
+     * Create a replica-local hash-sum from a @NodeStorage, must not be sent to other replicas or clients.
+     * @param node the input @NodeStorage
+     * @return the hash-sum.
+     * @throws NoSuchAlgorithmException possible exception.
+     */
+    public static Digest localHashFromNode(NodeStorage node) throws NoSuchAlgorithmException
+    {
+        return localProvider.hash(node);
+    }
 
-        return sb.toString();
+    /**
+     * Create a replica-local hash-sum from a @RelationshipStorage, must not be sent to other replicas or clients.
+     * @param relationShip the input @RelationshipStorage
+     * @return the hash-sum.
+     * @throws NoSuchAlgorithmException possible exception.
+     */
+    public static Digest localHashFromRelationship(RelationshipStorage relationShip) throws NoSuchAlgorithmException
+    {
+        return localProvider.hash(relationShip);
     }
 }
-
-
@@ -0,0 +1,115 @@
+package main.java.com.bag.util;
+
+import main.java.com.bag.util.storage.NodeStorage;
+import main.java.com.bag.util.storage.RelationshipStorage;
+import org.jetbrains.annotations.NotNull;
+
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Hash algorithm used to create the hash-sums of nodes, relationships and read results.
+ */
+public interface HashProvider
+{
+    /**
+     * Name of the SHA-256 algorithm, safe against byzantine replicas and clients.
+     */
+    String SHA256 = "sha-256";
+
+    /**
+     * Name of the SHA-1 algorithm, compatible with the hashes of older stores.
+     */
+    String SHA1 = "sha-1";
+
+    /**
+     * Name of the 128 bit murmur3 algorithm, fast but only usable to detect changes on a single replica.
+     */
+    String MURMUR3 = "murmur3-128";
+
+    /**
+     * Getter of the algorithm name.
+     * @return the name.
+     */
+    String getAlgorithm();
+
+    /**
+     * Gets the reset hasher of the current thread.
+     * @return the hasher.
+     * @throws NoSuchAlgorithmException if the JVM doesn't support the algorithm.
+     */
+    Hasher getHasher() throws NoSuchAlgorithmException;
+
+    /**
+     * Create a hash-sum from a @NodeStorage.
+     * @param node the input @NodeStorage
+     * @return the hash-sum.
+     * @throws NoSuchAlgorithmException possible exception.
+     */
+    default Digest hash(@NotNull final NodeStorage node) throws NoSuchAlgorithmException
+    {
+        final Hasher hasher = getHasher();
+        hasher.getEncoder().writeNode(node);
+        return new Digest(hasher.digest());
+    }
+
+    /**
+     * Create a hash-sum from a @RelationshipStorage.
+     * @param relationship the input @RelationshipStorage
+     * @return the hash-sum.
+     * @throws NoSuchAlgorithmException possible exception.
+     */
+    default Digest hash(@NotNull final RelationshipStorage relationship) throws NoSuchAlgorithmException
+    {
+        final Hasher hasher = getHasher();
+        hasher.getEncoder().writeRelationship(relationship);
+        return new Digest(hasher.digest());
+    }
+
+    /**
+     * Create a hash-sum of the result of a read.
+     * @param snapshotId the snapshotId the read has been executed on.
+     * @param nodes the nodes which have been read.
+     * @param relationships the relationships which have been read.
+     * @return the hash-sum.
+     * @throws NoSuchAlgorithmException possible exception.
+     */
+    default Digest hash(final long snapshotId, @NotNull final List<NodeStorage> nodes, @NotNull final List<RelationshipStorage> relationships) throws NoSuchAlgorithmException
+    {
+        final Hasher hasher = getHasher();
+        final CanonicalEncoder encoder = hasher.getEncoder();
+
+        encoder.writeLong(snapshotId).writeInt(nodes.size()).writeInt(relationships.size());
+        for (final NodeStorage node : nodes)
+        {
+            encoder.writeNode(node);
+        }
+        for (final RelationshipStorage relationship : relationships)
+        {
+            encoder.writeRelationship(relationship);
+        }
+        return new Digest(hasher.digest());
+    }
+
+    /**
+     * Creates the provider of an algorithm.
+     * @param algorithm the name, one of SHA256, SHA1 and MURMUR3, case and dashes are ignored.
+     * @return the provider.
+     * @throws IllegalArgumentException if the algorithm is unknown.
+     */
+    static HashProvider forAlgorithm(@NotNull final String algorithm)
+    {
+        switch (algorithm.toLowerCase().replace("-", "").replace("_", ""))
+        {
+            case "sha256":
+                return new MessageDigestHashProvider(SHA256, "SHA-256");
+            case "sha1":
+                return new MessageDigestHashProvider(SHA1, "SHA-1");
+            case "murmur3":
+            case "murmur3128":
+                return new Murmur3HashProvider();
+            default:
+                throw new IllegalArgumentException("Unknown hash algorithm " + algorithm);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package main.java.com.bag.util;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Incremental hash function fed through a canonical encoder, reused after each digest.
+ */
+public abstract class Hasher implements CanonicalEncoder.Sink
+{
+    /**
+     * The encoder writing into this hasher.
+     */
+    private final CanonicalEncoder encoder = new CanonicalEncoder(this);
+
+    /**
+     * Getter of the encoder feeding this hasher.
+     * @return the encoder.
+     */
+    @NotNull
+    public CanonicalEncoder getEncoder()
+    {
+        return encoder;
+    }
+
+    /**
+     * Completes the hash of everything encoded so far and resets the hasher.
+     * @return the raw digest.
+     */
+    @NotNull
+    public byte[] digest()
+    {
+        encoder.flush();
+        return finish();
+    }
+
+    /**
+     * Discards everything fed so far.
+     */
+    public void reset()
+    {
+        encoder.discard();
+        resetState();
+    }
+
+    /**
+     * Discards the state of the hash function.
+     */
+    protected abstract void resetState();
+
+    /**
+     * Completes the hash and resets the hasher.
+     * @return the raw digest.
+     */
+    @NotNull
+    protected abstract byte[] finish();
+}
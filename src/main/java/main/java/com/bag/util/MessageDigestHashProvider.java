@@ -0,0 +1,82 @@
+package main.java.com.bag.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hash provider backed by a JDK MessageDigest, one instance per thread.
+ * On JDKs with SHA intrinsics SHA-256 runs on the hardware extensions of the CPU.
+ */
+public class MessageDigestHashProvider implements HashProvider
+{
+    /**
+     * The name of the algorithm in the configuration.
+     */
+    private final String algorithm;
+
+    /**
+     * The name of the algorithm in the JDK.
+     */
+    private final String jdkAlgorithm;
+
+    /**
+     * The hasher of each thread.
+     */
+    private final ThreadLocal<Hasher> hashers = new ThreadLocal<>();
+
+    /**
+     * Creates the provider.
+     * @param algorithm the name of the algorithm in the configuration.
+     * @param jdkAlgorithm the name of the algorithm in the JDK.
+     */
+    public MessageDigestHashProvider(@NotNull final String algorithm, @NotNull final String jdkAlgorithm)
+    {
+        this.algorithm = algorithm;
+        this.jdkAlgorithm = jdkAlgorithm;
+    }
+
+    @Override
+    public String getAlgorithm()
+    {
+        return algorithm;
+    }
+
+    @Override
+    public Hasher getHasher() throws NoSuchAlgorithmException
+    {
+        Hasher hasher = hashers.get();
+        if (hasher == null)
+        {
+            final MessageDigest mDigest = MessageDigest.getInstance(jdkAlgorithm);
+            hasher = new Hasher()
+            {
+                @Override
+                public void write(final byte[] bytes, final int offset, final int length)
+                {
+                    mDigest.update(bytes, offset, length);
+                }
+
+                @Override
+                protected void resetState()
+                {
+                    mDigest.reset();
+                }
+
+                @NotNull
+                @Override
+                protected byte[] finish()
+                {
+                    return mDigest.digest();
+                }
+            };
+            hashers.set(hasher);
+        }
+        else
+        {
+            hasher.reset();
+        }
+        return hasher;
+    }
+}
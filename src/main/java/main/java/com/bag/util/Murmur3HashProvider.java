@@ -0,0 +1,201 @@
+package main.java.com.bag.util;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Hash provider computing the 128 bit x64 variant of MurmurHash3.
+ * Much faster than the cryptographic digests, but a byzantine client or replica can craft collisions,
+ * so it may only be used to detect changes inside a single replica.
+ */
+public class Murmur3HashProvider implements HashProvider
+{
+    /**
+     * The hasher of each thread.
+     */
+    private final ThreadLocal<Hasher> hashers = ThreadLocal.withInitial(Murmur3Hasher::new);
+
+    @Override
+    public String getAlgorithm()
+    {
+        return MURMUR3;
+    }
+
+    @Override
+    public Hasher getHasher()
+    {
+        final Hasher hasher = hashers.get();
+        hasher.reset();
+        return hasher;
+    }
+
+    /**
+     * Streaming MurmurHash3 x64 128 with seed 0.
+     */
+    private static class Murmur3Hasher extends Hasher
+    {
+        private static final long C1 = 0x87c37b91114253d5L;
+        private static final long C2 = 0x4cf5ad432745937fL;
+
+        /**
+         * The current state.
+         */
+        private long h1 = 0;
+        private long h2 = 0;
+
+        /**
+         * Bytes not yet forming a full 16 byte block.
+         */
+        private final byte[] tail = new byte[16];
+        private int tailLength = 0;
+
+        /**
+         * Total amount of bytes fed.
+         */
+        private long length = 0;
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int count)
+        {
+            length += count;
+            int position = offset;
+            final int end = offset + count;
+
+            if (tailLength > 0)
+            {
+                while (tailLength < 16 && position < end)
+                {
+                    tail[tailLength++] = bytes[position++];
+                }
+                if (tailLength < 16)
+                {
+                    return;
+                }
+                mixBlock(getLong(tail, 0), getLong(tail, 8));
+                tailLength = 0;
+            }
+
+            while (end - position >= 16)
+            {
+                mixBlock(getLong(bytes, position), getLong(bytes, position + 8));
+                position += 16;
+            }
+
+            while (position < end)
+            {
+                tail[tailLength++] = bytes[position++];
+            }
+        }
+
+        @Override
+        protected void resetState()
+        {
+            h1 = 0;
+            h2 = 0;
+            tailLength = 0;
+            length = 0;
+        }
+
+        @NotNull
+        @Override
+        protected byte[] finish()
+        {
+            long k1 = 0;
+            long k2 = 0;
+            for (int i = tailLength - 1; i >= 8; i--)
+            {
+                k2 ^= (tail[i] & 0xffL) << ((i - 8) * 8);
+            }
+            for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--)
+            {
+                k1 ^= (tail[i] & 0xffL) << (i * 8);
+            }
+            if (tailLength > 8)
+            {
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            }
+            if (tailLength > 0)
+            {
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+            }
+
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = fmix(h1);
+            h2 = fmix(h2);
+            h1 += h2;
+            h2 += h1;
+
+            final byte[] result = new byte[16];
+            for (int i = 0; i < 8; i++)
+            {
+                result[i] = (byte) (h1 >>> (i * 8));
+                result[i + 8] = (byte) (h2 >>> (i * 8));
+            }
+            resetState();
+            return result;
+        }
+
+        /**
+         * Mixes a full block into the state.
+         * @param block1 the first half of the block.
+         * @param block2 the second half of the block.
+         */
+        private void mixBlock(long block1, long block2)
+        {
+            block1 *= C1;
+            block1 = Long.rotateLeft(block1, 31);
+            block1 *= C2;
+            h1 ^= block1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            block2 *= C2;
+            block2 = Long.rotateLeft(block2, 33);
+            block2 *= C1;
+            h2 ^= block2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        /**
+         * Reads a little endian long.
+         * @param bytes the bytes.
+         * @param offset the start.
+         * @return the long.
+         */
+        private static long getLong(final byte[] bytes, final int offset)
+        {
+            long value = 0;
+            for (int i = 7; i >= 0; i--)
+            {
+                value = (value << 8) | (bytes[offset + i] & 0xffL);
+            }
+            return value;
+        }
+
+        /**
+         * Final avalanche of a state word.
+         * @param k the word.
+         * @return the mixed word.
+         */
+        private static long fmix(long k)
+        {
+            k ^= k >>> 33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k >>> 33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k >>> 33;
+            return k;
+        }
+    }
+}
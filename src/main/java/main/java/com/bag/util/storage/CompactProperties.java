@@ -0,0 +1,917 @@
+package main.java.com.bag.util.storage;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Immutable properties of a node or relationship.
+ * The keys are interned and sorted, the values are held in typed columns at the index of their key:
+ * ints, longs, floats, doubles and booleans are stored unboxed in a long column, everything else in an object column.
+ * Lookups are a binary search over the keys and the map view reads the columns directly, nothing is copied.
+ * Changes create a new instance, several changes at once should go through a @Builder.
+ */
+public final class CompactProperties implements Serializable
+{
+    /**
+     * Value types of the columns.
+     */
+    public static final byte TYPE_OBJECT  = 0;
+    public static final byte TYPE_INT     = 1;
+    public static final byte TYPE_LONG    = 2;
+    public static final byte TYPE_FLOAT   = 3;
+    public static final byte TYPE_DOUBLE  = 4;
+    public static final byte TYPE_BOOLEAN = 5;
+
+    /**
+     * Instance without properties.
+     */
+    public static final CompactProperties EMPTY = new CompactProperties(new String[0], new byte[0], new long[0], new Object[0]);
+
+    /**
+     * The sorted and interned keys.
+     */
+    @NotNull
+    private final String[] keys;
+
+    /**
+     * The type of each value.
+     */
+    @NotNull
+    private final byte[] types;
+
+    /**
+     * The primitive values, floating point numbers as the bits of the double and booleans as 0 or 1.
+     */
+    @NotNull
+    private final long[] primitives;
+
+    /**
+     * The values which are no primitives, null at the index of a primitive.
+     */
+    @NotNull
+    private final Object[] values;
+
+    /**
+     * Cached hash code, 0 if not computed yet.
+     */
+    private transient int hash;
+
+    /**
+     * Cached map view.
+     */
+    @Nullable
+    private transient Map<String, Object> mapView;
+
+    /**
+     * Creates the properties from columns which are already sorted and interned and are not shared.
+     * @param keys the keys.
+     * @param types the types.
+     * @param primitives the primitive values.
+     * @param values the object values.
+     */
+    private CompactProperties(@NotNull final String[] keys, @NotNull final byte[] types, @NotNull final long[] primitives, @NotNull final Object[] values)
+    {
+        this.keys = keys;
+        this.types = types;
+        this.primitives = primitives;
+        this.values = values;
+    }
+
+    /**
+     * Creates the properties of a map, boxed primitives are unboxed.
+     * @param properties the map, may be null.
+     * @return the properties.
+     */
+    @NotNull
+    public static CompactProperties of(@Nullable final Map<?, ?> properties)
+    {
+        if (properties == null || properties.isEmpty())
+        {
+            return EMPTY;
+        }
+        final Builder builder = new Builder(properties.size());
+        for (final Map.Entry<?, ?> entry : properties.entrySet())
+        {
+            builder.put(String.valueOf(entry.getKey()), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates an empty builder.
+     * @return the builder.
+     */
+    @NotNull
+    public static Builder builder()
+    {
+        return new Builder(8);
+    }
+
+    /**
+     * Creates an empty builder.
+     * @param capacity the expected amount of properties.
+     * @return the builder.
+     */
+    @NotNull
+    public static Builder builder(final int capacity)
+    {
+        return new Builder(capacity);
+    }
+
+    /**
+     * Creates a builder starting with these properties.
+     * @return the builder.
+     */
+    @NotNull
+    public Builder toBuilder()
+    {
+        final Builder builder = new Builder(keys.length + 4);
+        for (int i = 0; i < keys.length; i++)
+        {
+            builder.append(keys[i], types[i], primitives[i], values[i]);
+        }
+        return builder;
+    }
+
+    /**
+     * Amount of properties.
+     * @return the size.
+     */
+    public int size()
+    {
+        return keys.length;
+    }
+
+    /**
+     * Checks if there are no properties.
+     * @return true if so.
+     */
+    public boolean isEmpty()
+    {
+        return keys.length == 0;
+    }
+
+    /**
+     * Gets the key at a position, the keys are sorted.
+     * @param index the position.
+     * @return the key.
+     */
+    @NotNull
+    public String getKey(final int index)
+    {
+        return keys[index];
+    }
+
+    /**
+     * Gets the type of the value at a position.
+     * @param index the position.
+     * @return one of the TYPE constants.
+     */
+    public byte getType(final int index)
+    {
+        return types[index];
+    }
+
+    /**
+     * Checks if the value at a position is stored unboxed.
+     * @param index the position.
+     * @return true if so.
+     */
+    public boolean isPrimitive(final int index)
+    {
+        return types[index] != TYPE_OBJECT;
+    }
+
+    /**
+     * Gets an int or long value without boxing.
+     * @param index the position.
+     * @return the value.
+     */
+    public long getLong(final int index)
+    {
+        if (types[index] != TYPE_INT && types[index] != TYPE_LONG)
+        {
+            throw new IllegalStateException("Property " + keys[index] + " is no integral number");
+        }
+        return primitives[index];
+    }
+
+    /**
+     * Gets a float or double value without boxing.
+     * @param index the position.
+     * @return the value.
+     */
+    public double getDouble(final int index)
+    {
+        if (types[index] != TYPE_FLOAT && types[index] != TYPE_DOUBLE)
+        {
+            throw new IllegalStateException("Property " + keys[index] + " is no floating point number");
+        }
+        return Double.longBitsToDouble(primitives[index]);
+    }
+
+    /**
+     * Gets a boolean value without boxing.
+     * @param index the position.
+     * @return the value.
+     */
+    public boolean getBoolean(final int index)
+    {
+        if (types[index] != TYPE_BOOLEAN)
+        {
+            throw new IllegalStateException("Property " + keys[index] + " is no boolean");
+        }
+        return primitives[index] != 0;
+    }
+
+    /**
+     * Gets the raw bits of a primitive value, the bits of the double for floating point numbers.
+     * @param index the position.
+     * @return the bits.
+     */
+    public long getPrimitiveBits(final int index)
+    {
+        return primitives[index];
+    }
+
+    /**
+     * Gets the value at a position, primitives are boxed to their original type.
+     * @param index the position.
+     * @return the value.
+     */
+    @Nullable
+    public Object getValue(final int index)
+    {
+        switch (types[index])
+        {
+            case TYPE_INT:
+                return (int) primitives[index];
+            case TYPE_LONG:
+                return primitives[index];
+            case TYPE_FLOAT:
+                return (float) Double.longBitsToDouble(primitives[index]);
+            case TYPE_DOUBLE:
+                return Double.longBitsToDouble(primitives[index]);
+            case TYPE_BOOLEAN:
+                return primitives[index] != 0;
+            default:
+                return values[index];
+        }
+    }
+
+    /**
+     * Gets the position of a key.
+     * @param key the key.
+     * @return the position or a negative number if not contained.
+     */
+    public int indexOf(@Nullable final Object key)
+    {
+        if (!(key instanceof String))
+        {
+            return -1;
+        }
+        return Arrays.binarySearch(keys, key);
+    }
+
+    /**
+     * Checks if a key is contained.
+     * @param key the key.
+     * @return true if so.
+     */
+    public boolean containsKey(@Nullable final Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Gets the value of a key.
+     * @param key the key.
+     * @return the value or null if not contained.
+     */
+    @Nullable
+    public Object get(@Nullable final Object key)
+    {
+        final int index = indexOf(key);
+        return index < 0 ? null : getValue(index);
+    }
+
+    /**
+     * Returns the properties with one property added or replaced.
+     * @param key the key.
+     * @param value the value.
+     * @return the new properties.
+     */
+    @NotNull
+    public CompactProperties with(@NotNull final String key, @Nullable final Object value)
+    {
+        final byte type = typeOf(value);
+        return with(key, type, type == TYPE_OBJECT ? 0 : toBits(value), type == TYPE_OBJECT ? value : null);
+    }
+
+    /**
+     * Returns the properties with one property added or replaced.
+     * @param key the key.
+     * @param type the type.
+     * @param bits the primitive value.
+     * @param value the object value.
+     * @return the new properties.
+     */
+    @NotNull
+    private CompactProperties with(@NotNull final String key, final byte type, final long bits, @Nullable final Object value)
+    {
+        final int index = Arrays.binarySearch(keys, key);
+        if (index >= 0)
+        {
+            final byte[] newTypes = types.clone();
+            final long[] newPrimitives = primitives.clone();
+            final Object[] newValues = values.clone();
+            newTypes[index] = type;
+            newPrimitives[index] = bits;
+            newValues[index] = value;
+            return new CompactProperties(keys, newTypes, newPrimitives, newValues);
+        }
+
+        final int insert = -index - 1;
+        final int length = keys.length + 1;
+        final String[] newKeys = new String[length];
+        final byte[] newTypes = new byte[length];
+        final long[] newPrimitives = new long[length];
+        final Object[] newValues = new Object[length];
+        System.arraycopy(keys, 0, newKeys, 0, insert);
+        System.arraycopy(types, 0, newTypes, 0, insert);
+        System.arraycopy(primitives, 0, newPrimitives, 0, insert);
+        System.arraycopy(values, 0, newValues, 0, insert);
+        newKeys[insert] = key.intern();
+        newTypes[insert] = type;
+        newPrimitives[insert] = bits;
+        newValues[insert] = value;
+        System.arraycopy(keys, insert, newKeys, insert + 1, keys.length - insert);
+        System.arraycopy(types, insert, newTypes, insert + 1, keys.length - insert);
+        System.arraycopy(primitives, insert, newPrimitives, insert + 1, keys.length - insert);
+        System.arraycopy(values, insert, newValues, insert + 1, keys.length - insert);
+        return new CompactProperties(newKeys, newTypes, newPrimitives, newValues);
+    }
+
+    /**
+     * Returns the properties without a property.
+     * @param key the key.
+     * @return the new properties or this if the key is not contained.
+     */
+    @NotNull
+    public CompactProperties without(@Nullable final Object key)
+    {
+        final int index = indexOf(key);
+        if (index < 0)
+        {
+            return this;
+        }
+        if (keys.length == 1)
+        {
+            return EMPTY;
+        }
+
+        final int length = keys.length - 1;
+        final int tail = length - index;
+        final String[] newKeys = new String[length];
+        final byte[] newTypes = new byte[length];
+        final long[] newPrimitives = new long[length];
+        final Object[] newValues = new Object[length];
+        System.arraycopy(keys, 0, newKeys, 0, index);
+        System.arraycopy(types, 0, newTypes, 0, index);
+        System.arraycopy(primitives, 0, newPrimitives, 0, index);
+        System.arraycopy(values, 0, newValues, 0, index);
+        System.arraycopy(keys, index + 1, newKeys, index, tail);
+        System.arraycopy(types, index + 1, newTypes, index, tail);
+        System.arraycopy(primitives, index + 1, newPrimitives, index, tail);
+        System.arraycopy(values, index + 1, newValues, index, tail);
+        return new CompactProperties(newKeys, newTypes, newPrimitives, newValues);
+    }
+
+    /**
+     * Returns the properties with all properties of a map added or replaced.
+     * @param properties the map.
+     * @return the new properties.
+     */
+    @NotNull
+    public CompactProperties withAll(@NotNull final Map<String, Object> properties)
+    {
+        if (properties.isEmpty())
+        {
+            return this;
+        }
+        if (keys.length == 0)
+        {
+            return of(properties);
+        }
+        final Builder builder = toBuilder();
+        for (final Map.Entry<String, Object> entry : properties.entrySet())
+        {
+            builder.put(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Unmodifiable map view reading the columns directly, iterates in key order.
+     * Primitives are boxed when they are read through the view.
+     * @return the map.
+     */
+    @NotNull
+    public Map<String, Object> asMap()
+    {
+        Map<String, Object> view = mapView;
+        if (view == null)
+        {
+            view = keys.length == 0 ? Collections.emptyMap() : new MapView();
+            mapView = view;
+        }
+        return view;
+    }
+
+    /**
+     * Copies the properties into a new modifiable map.
+     * @return the map.
+     */
+    @NotNull
+    public HashMap<String, Object> toHashMap()
+    {
+        final HashMap<String, Object> map = new HashMap<>((int) (keys.length / 0.75f) + 1);
+        for (int i = 0; i < keys.length; i++)
+        {
+            map.put(keys[i], getValue(i));
+        }
+        return map;
+    }
+
+    /**
+     * The hash code follows the contract of @Map, equal to the one of the map view, primitives are not boxed.
+     * @return the hash code.
+     */
+    @Override
+    public int hashCode()
+    {
+        int result = hash;
+        if (result == 0 && keys.length > 0)
+        {
+            for (int i = 0; i < keys.length; i++)
+            {
+                result += keys[i].hashCode() ^ valueHashCode(i);
+            }
+            hash = result;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the hash code the boxed value would have.
+     * @param index the position.
+     * @return the hash code.
+     */
+    private int valueHashCode(final int index)
+    {
+        switch (types[index])
+        {
+            case TYPE_INT:
+                return Integer.hashCode((int) primitives[index]);
+            case TYPE_LONG:
+                return Long.hashCode(primitives[index]);
+            case TYPE_FLOAT:
+                return Float.hashCode((float) Double.longBitsToDouble(primitives[index]));
+            case TYPE_DOUBLE:
+                return Double.hashCode(Double.longBitsToDouble(primitives[index]));
+            case TYPE_BOOLEAN:
+                return Boolean.hashCode(primitives[index] != 0);
+            default:
+                return values[index] instanceof byte[] ? Arrays.hashCode((byte[]) values[index]) : Objects.hashCode(values[index]);
+        }
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (this == o)
+        {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass())
+        {
+            return false;
+        }
+
+        final CompactProperties that = (CompactProperties) o;
+        return hashCode() == that.hashCode()
+                && Arrays.equals(keys, that.keys)
+                && Arrays.equals(types, that.types)
+                && Arrays.equals(primitives, that.primitives)
+                && Arrays.deepEquals(values, that.values);
+    }
+
+    @Override
+    public String toString()
+    {
+        return asMap().toString();
+    }
+
+    /**
+     * Keeps the keys interned and the empty instance unique after java serialization.
+     * @return the instance to use.
+     * @throws ObjectStreamException never.
+     */
+    private Object readResolve() throws ObjectStreamException
+    {
+        if (keys.length == 0)
+        {
+            return EMPTY;
+        }
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = keys[i].intern();
+        }
+        return this;
+    }
+
+    /**
+     * Gets the column type of a value.
+     * @param value the value.
+     * @return the type.
+     */
+    private static byte typeOf(@Nullable final Object value)
+    {
+        if (value instanceof Integer)
+        {
+            return TYPE_INT;
+        }
+        if (value instanceof Long)
+        {
+            return TYPE_LONG;
+        }
+        if (value instanceof Double)
+        {
+            return TYPE_DOUBLE;
+        }
+        if (value instanceof Boolean)
+        {
+            return TYPE_BOOLEAN;
+        }
+        if (value instanceof Float)
+        {
+            return TYPE_FLOAT;
+        }
+        return TYPE_OBJECT;
+    }
+
+    /**
+     * Converts a boxed primitive into the bits of the long column.
+     * @param value the value.
+     * @return the bits.
+     */
+    private static long toBits(@NotNull final Object value)
+    {
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value ? 1 : 0;
+        }
+        if (value instanceof Double || value instanceof Float)
+        {
+            return Double.doubleToLongBits(((Number) value).doubleValue());
+        }
+        return ((Number) value).longValue();
+    }
+
+    /**
+     * Collects properties and creates the immutable instance at the end.
+     */
+    public static final class Builder
+    {
+        /**
+         * The columns collected so far.
+         */
+        private String[] keys;
+        private byte[]   types;
+        private long[]   primitives;
+        private Object[] values;
+
+        /**
+         * Amount of properties collected so far.
+         */
+        private int size = 0;
+
+        /**
+         * Creates a builder.
+         * @param capacity the expected amount of properties.
+         */
+        private Builder(final int capacity)
+        {
+            final int length = Math.max(capacity, 1);
+            keys = new String[length];
+            types = new byte[length];
+            primitives = new long[length];
+            values = new Object[length];
+        }
+
+        /**
+         * Adds or replaces a property, boxed primitives are unboxed.
+         * @param key the key.
+         * @param value the value.
+         * @return this builder.
+         */
+        @NotNull
+        public Builder put(@NotNull final String key, @Nullable final Object value)
+        {
+            final byte type = typeOf(value);
+            return append(key, type, type == TYPE_OBJECT ? 0 : toBits(value), type == TYPE_OBJECT ? value : null);
+        }
+
+        /**
+         * Adds or replaces an int property.
+         * @param key the key.
+         * @param value the value.
+         * @return this builder.
+         */
+        @NotNull
+        public Builder putInt(@NotNull final String key, final int value)
+        {
+            return append(key, TYPE_INT, value, null);
+        }
+
+        /**
+         * Adds or replaces a long property.
+         * @param key the key.
+         * @param value the value.
+         * @return this builder.
+         */
+        @NotNull
+        public Builder putLong(@NotNull final String key, final long value)
+        {
+            return append(key, TYPE_LONG, value, null);
+        }
+
+        /**
+         * Adds or replaces a float property.
+         * @param key the key.
+         * @param value the value.
+         * @return this builder.
+         */
+        @NotNull
+        public Builder putFloat(@NotNull final String key, final float value)
+        {
+            return append(key, TYPE_FLOAT, Double.doubleToLongBits(value), null);
+        }
+
+        /**
+         * Adds or replaces a double property.
+         * @param key the key.
+         * @param value the value.
+         * @return this builder.
+         */
+        @NotNull
+        public Builder putDouble(@NotNull final String key, final double value)
+        {
+            return append(key, TYPE_DOUBLE, Double.doubleToLongBits(value), null);
+        }
+
+        /**
+         * Adds or replaces a boolean property.
+         * @param key the key.
+         * @param value the value.
+         * @return this builder.
+         */
+        @NotNull
+        public Builder putBoolean(@NotNull final String key, final boolean value)
+        {
+            return append(key, TYPE_BOOLEAN, value ? 1 : 0, null);
+        }
+
+        /**
+         * Adds or replaces a property in all columns.
+         * @param key the key.
+         * @param type the type.
+         * @param bits the primitive value.
+         * @param value the object value.
+         * @return this builder.
+         */
+        @NotNull
+        private Builder append(@NotNull final String key, final byte type, final long bits, @Nullable final Object value)
+        {
+            int index = 0;
+            while (index < size && !keys[index].equals(key))
+            {
+                index++;
+            }
+            if (index == size)
+            {
+                if (size == keys.length)
+                {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    types = Arrays.copyOf(types, size * 2);
+                    primitives = Arrays.copyOf(primitives, size * 2);
+                    values = Arrays.copyOf(values, size * 2);
+                }
+                keys[size] = key;
+                size++;
+            }
+            types[index] = type;
+            primitives[index] = bits;
+            values[index] = value;
+            return this;
+        }
+
+        /**
+         * Removes a property.
+         * @param key the key.
+         * @return this builder.
+         */
+        @NotNull
+        public Builder remove(@NotNull final String key)
+        {
+            for (int i = 0; i < size; i++)
+            {
+                if (keys[i].equals(key))
+                {
+                    size--;
+                    keys[i] = keys[size];
+                    types[i] = types[size];
+                    primitives[i] = primitives[size];
+                    values[i] = values[size];
+                    keys[size] = null;
+                    values[size] = null;
+                    return this;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Creates the immutable properties, the builder may be reused afterwards.
+         * @return the properties.
+         */
+        @NotNull
+        public CompactProperties build()
+        {
+            if (size == 0)
+            {
+                return EMPTY;
+            }
+
+            final String[] sortedKeys = new String[size];
+            final byte[] sortedTypes = new byte[size];
+            final long[] sortedPrimitives = new long[size];
+            final Object[] sortedValues = new Object[size];
+
+            //Insertion sort, there are only a few properties per element.
+            for (int i = 0; i < size; i++)
+            {
+                final String key = keys[i].intern();
+                int position = i;
+                while (position > 0 && sortedKeys[position - 1].compareTo(key) > 0)
+                {
+                    sortedKeys[position] = sortedKeys[position - 1];
+                    sortedTypes[position] = sortedTypes[position - 1];
+                    sortedPrimitives[position] = sortedPrimitives[position - 1];
+                    sortedValues[position] = sortedValues[position - 1];
+                    position--;
+                }
+                sortedKeys[position] = key;
+                sortedTypes[position] = types[i];
+                sortedPrimitives[position] = primitives[i];
+                sortedValues[position] = values[i];
+            }
+            return new CompactProperties(sortedKeys, sortedTypes, sortedPrimitives, sortedValues);
+        }
+    }
+
+    /**
+     * Unmodifiable map over the columns.
+     */
+    private final class MapView extends AbstractMap<String, Object>
+    {
+        /**
+         * The entry set, created on first use.
+         */
+        private Set<Map.Entry<String, Object>> entries;
+
+        @Override
+        public int size()
+        {
+            return keys.length;
+        }
+
+        @Override
+        public boolean containsKey(final Object key)
+        {
+            return CompactProperties.this.containsKey(key);
+        }
+
+        @Override
+        public Object get(final Object key)
+        {
+            return CompactProperties.this.get(key);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return CompactProperties.this.hashCode();
+        }
+
+        /**
+         * Compares the values by content like the hash code does, byte arrays such as the stored hash included.
+         * @param o the other object.
+         * @return true if it's a map with the same keys and values.
+         */
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (o == this)
+            {
+                return true;
+            }
+            if (o instanceof MapView)
+            {
+                return CompactProperties.this.equals(((MapView) o).getProperties());
+            }
+            if (!(o instanceof Map) || ((Map<?, ?>) o).size() != size())
+            {
+                return false;
+            }
+
+            final Map<?, ?> other = (Map<?, ?>) o;
+            for (int i = 0; i < keys.length; i++)
+            {
+                final Object value = getValue(i);
+                if (!Objects.deepEquals(value, other.get(keys[i])) || (value == null && !other.containsKey(keys[i])))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Gets the properties this is a view of.
+         * @return the properties.
+         */
+        private CompactProperties getProperties()
+        {
+            return CompactProperties.this;
+        }
+
+        @NotNull
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet()
+        {
+            if (entries == null)
+            {
+                entries = new AbstractSet<Map.Entry<String, Object>>()
+                {
+                    @NotNull
+                    @Override
+                    public Iterator<Map.Entry<String, Object>> iterator()
+                    {
+                        return new Iterator<Map.Entry<String, Object>>()
+                        {
+                            private int index = 0;
+
+                            @Override
+                            public boolean hasNext()
+                            {
+                                return index < keys.length;
+                            }
+
+                            @Override
+                            public Map.Entry<String, Object> next()
+                            {
+                                if (index >= keys.length)
+                                {
+                                    throw new NoSuchElementException();
+                                }
+                                final int current = index++;
+                                return new SimpleImmutableEntry<>(keys[current], getValue(current));
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size()
+                    {
+                        return keys.length;
+                    }
+                };
+            }
+            return entries;
+        }
+    }
+}
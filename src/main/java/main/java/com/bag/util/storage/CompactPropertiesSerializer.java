@@ -0,0 +1,89 @@
+package main.java.com.bag.util.storage;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+/**
+ * Kryo serializer of @CompactProperties, primitives are written with their type tag and never boxed.
+ * Integral numbers are written as variable length longs, other values with their class.
+ */
+public class CompactPropertiesSerializer extends Serializer<CompactProperties>
+{
+    /**
+     * Creates the serializer, the properties are immutable and need no copy.
+     */
+    public CompactPropertiesSerializer()
+    {
+        super(false, true);
+    }
+
+    @Override
+    public void write(final Kryo kryo, final Output output, final CompactProperties properties)
+    {
+        output.writeVarInt(properties.size(), true);
+        for (int i = 0; i < properties.size(); i++)
+        {
+            final byte type = properties.getType(i);
+            output.writeString(properties.getKey(i));
+            output.writeByte(type);
+            switch (type)
+            {
+                case CompactProperties.TYPE_INT:
+                case CompactProperties.TYPE_LONG:
+                    output.writeVarLong(properties.getLong(i), false);
+                    break;
+                case CompactProperties.TYPE_FLOAT:
+                case CompactProperties.TYPE_DOUBLE:
+                    output.writeLong(properties.getPrimitiveBits(i));
+                    break;
+                case CompactProperties.TYPE_BOOLEAN:
+                    output.writeBoolean(properties.getBoolean(i));
+                    break;
+                default:
+                    kryo.writeClassAndObject(output, properties.getValue(i));
+                    break;
+            }
+        }
+    }
+
+    @Override
+    public CompactProperties read(final Kryo kryo, final Input input, final Class<CompactProperties> type)
+    {
+        final int size = input.readVarInt(true);
+        if (size == 0)
+        {
+            return CompactProperties.EMPTY;
+        }
+
+        final CompactProperties.Builder builder = CompactProperties.builder(size);
+        for (int i = 0; i < size; i++)
+        {
+            final String key = input.readString();
+            final byte valueType = input.readByte();
+            switch (valueType)
+            {
+                case CompactProperties.TYPE_INT:
+                    builder.putInt(key, (int) input.readVarLong(false));
+                    break;
+                case CompactProperties.TYPE_LONG:
+                    builder.putLong(key, input.readVarLong(false));
+                    break;
+                case CompactProperties.TYPE_FLOAT:
+                    builder.putFloat(key, (float) Double.longBitsToDouble(input.readLong()));
+                    break;
+                case CompactProperties.TYPE_DOUBLE:
+                    builder.putDouble(key, Double.longBitsToDouble(input.readLong()));
+                    break;
+                case CompactProperties.TYPE_BOOLEAN:
+                    builder.putBoolean(key, input.readBoolean());
+                    break;
+                default:
+                    builder.put(key, kryo.readClassAndObject(input));
+                    break;
+            }
+        }
+        return builder.build();
+    }
+}
@@ -1,11 +1,12 @@
 package main.java.com.bag.util.storage;
 
+import main.java.com.bag.util.CanonicalEncoder;
+import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.ElementIds;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.Serializable;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -21,9 +22,10 @@ public class NodeStorage implements Serializable
 
     /**
      * The properties of the node, may be empty as well.
+     * Immutable, the setters replace the instance.
      */
-    @Nullable
-    private Map<String, Object> properties;
+    @NotNull
+    private CompactProperties properties = CompactProperties.EMPTY;
 
     public NodeStorage()
     {
@@ -47,7 +49,7 @@ public class NodeStorage implements Serializable
     public NodeStorage(@NotNull String id, @Nullable Map properties)
     {
         this.id = id;
-        this.properties = properties;
+        this.properties = CompactProperties.of(properties);
     }
     /**
      * Getter of the id.
@@ -65,23 +67,112 @@ public class NodeStorage implements Serializable
     @NotNull
     public Map<String, Object> getProperties()
     {
-        return properties == null ? Collections.emptyMap() : new HashMap<>(properties);
+        return properties.asMap();
     }
 
     /**
-     * Sets or adds new properties.
-     * @param properties a property map.
+     * Getter of the immutable properties.
+     * @return the properties.
+     */
+    @NotNull
+    public CompactProperties getCompactProperties()
+    {
+        return properties;
+    }
+
+    /**
+     * Replaces the properties.
+     * @param properties the new properties.
+     */
+    public void setCompactProperties(@NotNull final CompactProperties properties)
+    {
+        this.properties = properties;
+    }
+
+    /**
+     * Creates a node which only references an existing node by its id, lookups with it use the id index.
+     * @param id the label of the node, used by the backends which index per label.
+     * @param elementId the id assigned when the node was created.
+     * @return the reference.
+     */
+    public static NodeStorage reference(@NotNull final String id, final long elementId)
+    {
+        final NodeStorage storage = new NodeStorage(id);
+        storage.addProperty(Constants.TAG_ID, elementId);
+        return storage;
+    }
+
+    /**
+     * Gets the id assigned when the node was created.
+     * @return the id or ElementIds.NONE if it has none.
+     */
+    public long getElementId()
+    {
+        return getElementId(properties);
+    }
+
+    /**
+     * Checks if the node has an id assigned.
+     * @return true if so.
+     */
+    public boolean hasElementId()
+    {
+        return getElementId() != ElementIds.NONE;
+    }
+
+    /**
+     * Gets the properties a lookup of this node has to match, only the id if the node has one.
+     * @return the properties.
+     */
+    @NotNull
+    public CompactProperties getMatchProperties()
+    {
+        return getMatchProperties(properties);
+    }
+
+    /**
+     * Gets the element id out of properties.
+     * @param properties the properties.
+     * @return the id or ElementIds.NONE if there is none.
      */
-    public void setProperties(@NotNull final HashMap<String, Object> properties)
+    static long getElementId(@NotNull final CompactProperties properties)
     {
-        if(this.properties == null)
+        final int index = properties.indexOf(Constants.TAG_ID);
+        if (index < 0)
         {
-            this.properties = properties;
+            return ElementIds.NONE;
         }
-        else
+        if (properties.getType(index) == CompactProperties.TYPE_INT || properties.getType(index) == CompactProperties.TYPE_LONG)
         {
-            this.properties.putAll(properties);
+            return properties.getLong(index);
         }
+        final Object value = properties.getValue(index);
+        return value instanceof Number ? ((Number) value).longValue() : ElementIds.NONE;
+    }
+
+    /**
+     * Reduces properties to the id if they contain one.
+     * @param properties the properties.
+     * @return the properties to match.
+     */
+    @NotNull
+    static CompactProperties getMatchProperties(@NotNull final CompactProperties properties)
+    {
+        final long elementId = getElementId(properties);
+        if (elementId == ElementIds.NONE || properties.size() == 1)
+        {
+            return properties;
+        }
+        return CompactProperties.builder(1).putLong(Constants.TAG_ID, elementId).build();
+    }
+
+    /**
+     * Sets or adds new properties.
+     * @param properties a property map.
+     */
+    public void setProperties(@NotNull final Map<String, Object> properties)
+    {
+        this.properties = this.properties.withAll(properties);
     }
 
     /**
@@ -91,11 +182,7 @@ public class NodeStorage implements Serializable
      */
     public void addProperty(String description, Object value)
     {
-        if(this.properties == null)
-        {
-            this.properties = new HashMap<>();
-        }
-        this.properties.put(description, value);
+        this.properties = this.properties.with(description, value);
     }
 
 
@@ -119,14 +206,14 @@ public class NodeStorage implements Serializable
             return false;
         }
         //todo is the same if valid subset in whatEver direction.
-        return this.getProperties().entrySet().containsAll(that.getProperties().entrySet())
-                || that.getProperties().entrySet().containsAll(this.getProperties().entrySet());
+        return CanonicalEncoder.containsAll(this.properties, that.properties)
+                || CanonicalEncoder.containsAll(that.properties, this.properties);
     }
 
     @Override
     public int hashCode()
     {
-        return 31 * (31 * getId().hashCode() + getProperties().hashCode());
+        return 31 * (31 * getId().hashCode() + properties.hashCode());
     }
 
     /**
@@ -135,27 +222,15 @@ public class NodeStorage implements Serializable
      */
     public void removeProperty(String key)
     {
-        if(properties != null)
-        {
-            properties.remove(key);
-        }
+        this.properties = this.properties.without(key);
     }
 
     /**
-     * Returns a byte representation of the nodeStorage.
+     * Returns the canonical byte representation of the nodeStorage, see @CanonicalEncoder.
      * @return a byte array.
      */
     public byte[] getBytes()
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append(id);
-        if (properties != null)
-        {
-            for(Map.Entry<String, Object> entry: properties.entrySet())
-            {
-                sb.append(entry.getKey()).append(entry.getValue());
-            }
-        }
-        return sb.toString().getBytes();
+        return CanonicalEncoder.encode(this);
     }
 }
@@ -1,13 +1,12 @@
 package main.java.com.bag.util.storage;
 
-import main.java.com.bag.util.Log;
+import main.java.com.bag.util.CanonicalEncoder;
+import main.java.com.bag.util.Constants;
+import main.java.com.bag.util.ElementIds;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.Serializable;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,9 +23,10 @@ public class RelationshipStorage implements Serializable
 
     /**
      * The properties of the relationship, may be empty as well.
+     * Immutable, the setters replace the instance.
      */
-    @Nullable
-    private Map<String, Object> properties;
+    @NotNull
+    private CompactProperties properties = CompactProperties.EMPTY;
 
     /**
      * The node the relationship starts.
@@ -85,7 +85,7 @@ public class RelationshipStorage implements Serializable
     public RelationshipStorage(@NotNull String id, @Nullable Map<String, Object> properties, @NotNull NodeStorage startNode, @NotNull NodeStorage endNode)
     {
         this(id, startNode, endNode);
-        this.properties = properties;
+        this.properties = CompactProperties.of(properties);
     }
 
     /**
@@ -100,7 +100,7 @@ public class RelationshipStorage implements Serializable
     public RelationshipStorage(@NotNull String id, @Nullable String type, @Nullable HashMap properties, @NotNull NodeStorage startNode, @NotNull NodeStorage endNode)
     {
         this(id, startNode, endNode);
-        this.properties = properties;
+        this.properties = CompactProperties.of(properties);
     }
 
     /**
@@ -121,7 +121,54 @@ public class RelationshipStorage implements Serializable
     @NotNull
     public Map<String, Object> getProperties()
     {
-        return properties == null ? Collections.emptyMap() : new HashMap<>(properties);
+        return properties.asMap();
+    }
+
+    /**
+     * Getter of the immutable properties.
+     * @return the properties.
+     */
+    @NotNull
+    public CompactProperties getCompactProperties()
+    {
+        return properties;
+    }
+
+    /**
+     * Replaces the properties.
+     * @param properties the new properties.
+     */
+    public void setCompactProperties(@NotNull final CompactProperties properties)
+    {
+        this.properties = properties;
+    }
+
+    /**
+     * Gets the id assigned when the relationship was created.
+     * @return the id or ElementIds.NONE if it has none.
+     */
+    public long getElementId()
+    {
+        return NodeStorage.getElementId(properties);
+    }
+
+    /**
+     * Checks if the relationship has an id assigned.
+     * @return true if so.
+     */
+    public boolean hasElementId()
+    {
+        return getElementId() != ElementIds.NONE;
+    }
+
+    /**
+     * Gets the properties a lookup of this relationship has to match, only the id if the relationship has one.
+     * @return the properties.
+     */
+    @NotNull
+    public CompactProperties getMatchProperties()
+    {
+        return NodeStorage.getMatchProperties(properties);
     }
 
     /**
@@ -129,16 +176,9 @@ public class RelationshipStorage implements Serializable
      *
      * @param properties a property map.
      */
-    public void setProperties(@NotNull final HashMap<String, Object> properties)
+    public void setProperties(@NotNull final Map<String, Object> properties)
     {
-        if (this.properties == null)
-        {
-            this.properties = properties;
-        }
-        else
-        {
-            this.properties.putAll(properties);
-        }
+        this.properties = this.properties.withAll(properties);
     }
 
     /**
@@ -149,11 +189,7 @@ public class RelationshipStorage implements Serializable
      */
     public void addProperty(String description, Object value)
     {
-        if (this.properties == null)
-        {
-            this.properties = new HashMap<>();
-        }
-        this.properties.put(description, value);
+        this.properties = this.properties.with(description, value);
     }
 
     /**
@@ -195,8 +231,8 @@ public class RelationshipStorage implements Serializable
             return false;
         }
 
-        if (!(this.getProperties().entrySet().containsAll(that.getProperties().entrySet())
-                || that.getProperties().entrySet().containsAll(this.getProperties().entrySet())))
+        if (!(CanonicalEncoder.containsAll(this.properties, that.properties)
+                || CanonicalEncoder.containsAll(that.properties, this.properties)))
         {
             return false;
         }
@@ -207,7 +243,7 @@ public class RelationshipStorage implements Serializable
     public int hashCode()
     {
         return 31 * (31 * (31 * (31 * getId().hashCode()
-                + getProperties().hashCode())
+                + properties.hashCode())
                 + getStartNode().hashCode()) + getEndNode().hashCode());
     }
 
@@ -217,42 +253,15 @@ public class RelationshipStorage implements Serializable
      */
     public void removeProperty(String key)
     {
-        if(properties != null)
-        {
-            properties.remove(key);
-        }
+        this.properties = this.properties.without(key);
     }
 
     /**
-     * Returns a byte representation of the nodeStorage.
+     * Returns the canonical byte representation of the relationshipStorage, see @CanonicalEncoder.
      * @return a byte array.
      */
     public byte[] getBytes()
     {
-        StringBuilder sb = new StringBuilder();
-        sb.append(id);
-
-        if (properties != null)
-        {
-            for(Map.Entry<String, Object> entry: properties.entrySet())
-            {
-                sb.append(entry.getKey()).append(entry.getValue());
-            }
-        }
-
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream( );
-        try
-        {
-            outputStream.write( sb.toString().getBytes() );
-            outputStream.write( startNode.getBytes() );
-            outputStream.write( endNode.getBytes() );
-
-        }
-        catch (IOException e)
-        {
-            Log.getLogger().info(e.getMessage());
-        }
-
-        return outputStream.toByteArray();
+        return CanonicalEncoder.encode(this);
     }
 }